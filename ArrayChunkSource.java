@@ -0,0 +1,49 @@
+/**
+   A ChunkSource backed by tiles that are already in
+   memory, such as the ones parsed from a map.dat file.
+
+   The tiles are kept in a PackedTileLayer, so a parsed map
+   only takes a few bits per tile once the source is made.
+**/
+public class ArrayChunkSource implements ChunkSource
+{
+  private PackedTileLayer Tiles;   // The tile IDs
+
+  /** Packs the tile IDs, indexed [row][col] **/
+  public ArrayChunkSource(char[][] CharMap)
+  {
+    int height = CharMap.length;
+    int width  = (height == 0) ? 0 : CharMap[0].length;
+    char[] ids = new char[width * height];
+    for (int y = 0; y < height; y++)
+        System.arraycopy(CharMap[y], 0, ids, y * width, width);
+
+    Tiles = new PackedTileLayer(width, height);
+    Tiles.setAll(ids);
+  }
+
+  public int getWidth()
+  {
+    return Tiles.getWidth();
+  }
+
+  public int getHeight()
+  {
+    return Tiles.getHeight();
+  }
+
+  public void read(int col, int row, int width, int height, char[] dest)
+  {
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+          dest[y * width + x] = (char)Tiles.get(col + x, row + y);
+    }
+  }
+
+  /** Returns the memory the packed tiles use, in bytes **/
+  public long getBytes()
+  {
+    return Tiles.getBytes();
+  }
+}
@@ -0,0 +1,280 @@
+import java.awt.image.*;
+import java.lang.ref.*;
+import java.util.*;
+
+/**
+   A shared cache of decoded images.
+
+   Images are looked up by file path, optionally with a
+   sub-rectangle of the file (for tile sheets) and a number
+   of clockwise quarter turns (for sprite facings). Everyone
+   asking for the same image gets the same BufferedImage, so
+   500 goblins drawn from one PNG decode it once and keep
+   one copy of it in memory.
+
+   Every acquire() must be matched by a release(). Images
+   that are still acquired are never evicted. Released
+   images stay cached, least recently used first, until the
+   cached images add up to more than the byte budget; then
+   the oldest ones are dropped down to a soft reference, so
+   they can still be picked up again until the garbage
+   collector actually needs the memory.
+
+   All methods are thread-safe. Different images can be
+   decoded by different threads at the same time.
+**/
+public class AssetCache
+{
+  private static final AssetCache defaultCache = new AssetCache(16 * 1024 * 1024L);
+
+  /** A cached image **/
+  private static class Entry
+  {
+    String key;
+    int refs;                            // outstanding acquire() calls
+    long bytes;                          // memory used by the image
+    BufferedImage image;                 // the image, while it counts against the budget
+    SoftReference<BufferedImage> soft;   // the image, after it was evicted
+  }
+
+  private long Budget;                   // Bytes of images to keep strongly reachable
+  private long Bytes;                    // Bytes of images currently strongly reachable
+
+  private HashMap<String, Entry> entries;          // every image, by key
+  private IdentityHashMap<BufferedImage, Entry> owners; // entry of each handed out image
+  private LinkedHashSet<Entry> idle;               // released images, oldest first
+
+  private long hits;                     // requests served from the cache
+  private long softHits;                 // ... of which were recovered from a soft reference
+  private long misses;                   // requests that had to decode the image
+  private long evictions;                // images dropped to stay within the budget
+
+  /** Creates a cache that keeps about budgetBytes of released images **/
+  public AssetCache(long budgetBytes)
+  {
+    Budget  = budgetBytes;
+    entries = new HashMap<String, Entry>();
+    owners  = new IdentityHashMap<BufferedImage, Entry>();
+    idle    = new LinkedHashSet<Entry>();
+  }
+
+  /** Returns the cache shared by the whole game **/
+  public static AssetCache getDefault()
+  {
+    return defaultCache;
+  }
+
+  /** Acquires the whole image in the file **/
+  public BufferedImage acquire(String path)
+  {
+    return acquire(path, 0, 0, -1, -1, 0);
+  }
+
+  /** Acquires the width x height region of the file starting at (x, y) **/
+  public BufferedImage acquire(String path, int x, int y, int width, int height)
+  {
+    return acquire(path, x, y, width, height, 0);
+  }
+
+  /** Acquires the whole image in the file, turned clockwise by quarterTurns * 90 degrees **/
+  public BufferedImage acquireRotated(String path, int quarterTurns)
+  {
+    return acquire(path, 0, 0, -1, -1, quarterTurns & 3);
+  }
+
+  /**
+     Acquires a region of the file (the whole file if width
+     is negative), rotated by quarterTurns. Returns null if
+     the file couldn't be read.
+  **/
+  private BufferedImage acquire(String path, int x, int y, int width, int height, int quarterTurns)
+  {
+    String key = path;
+    if (width >= 0)
+       key += "@" + x + "," + y + "," + width + "x" + height;
+    if (quarterTurns != 0)
+       key += "#" + quarterTurns;
+
+    Entry e;
+    synchronized (this)
+    {
+      e = entries.get(key);
+      if (e == null)
+      {
+        e = new Entry();
+        e.key = key;
+        entries.put(key, e);
+      }
+      e.refs++;
+      idle.remove(e);
+    }
+
+    /** only this entry is locked, so other images can load meanwhile **/
+    synchronized (e)
+    {
+      BufferedImage img;
+      synchronized (this)
+      {
+        img = e.image;
+        if (img == null && e.soft != null)
+        {
+          img = e.soft.get();
+          if (img != null)
+          {
+            softHits++;
+            keep(e, img);
+          }
+        }
+        if (img != null)
+        {
+          hits++;
+          return img;
+        }
+        misses++;
+      }
+
+      img = load(path, x, y, width, height, quarterTurns);
+
+      synchronized (this)
+      {
+        if (img == null)
+        {
+          /** don't keep failures around; the next caller tries again **/
+          e.refs--;
+          if (e.refs == 0)
+             entries.remove(key);
+          return null;
+        }
+        keep(e, img);
+        trim();
+      }
+      return img;
+    }
+  }
+
+  /** Decodes (or derives from another cached image) a new image **/
+  private BufferedImage load(String path, int x, int y, int width, int height, int quarterTurns)
+  {
+    if (quarterTurns != 0)
+    {
+      BufferedImage src = acquire(path, x, y, width, height, 0);
+      if (src == null)
+         return null;
+      BufferedImage img = SpriteFacings.rotate(src, quarterTurns);
+      release(src);
+      return img;
+    }
+    if (width >= 0)
+    {
+      BufferedImage sheet = acquire(path);
+      if (sheet == null)
+         return null;
+      BufferedImage img = ImageUtils.copyRegion(sheet, x, y, width, height);
+      release(sheet);
+      return img;
+    }
+    return ImageUtils.loadImage(path);
+  }
+
+  /** Makes the entry's image strongly reachable again **/
+  private void keep(Entry e, BufferedImage img)
+  {
+    e.image = img;
+    e.soft  = null;
+    e.bytes = sizeOf(img);
+    Bytes  += e.bytes;
+    owners.put(img, e);
+  }
+
+  /**
+     Releases an image handed out by acquire(). Once every
+     acquire() of an image is released, it may be evicted.
+  **/
+  public synchronized void release(BufferedImage img)
+  {
+    if (img == null)
+       return;
+
+    Entry e = owners.get(img);
+    if (e == null || e.refs == 0)
+       return;
+
+    e.refs--;
+    if (e.refs == 0)
+    {
+      idle.add(e);
+      trim();
+    }
+  }
+
+  /**
+     Drops released images, oldest first, down to soft
+     references until the budget is met.
+  **/
+  private void trim()
+  {
+    Iterator<Entry> it = idle.iterator();
+    while (Bytes > Budget && it.hasNext())
+    {
+      Entry e = it.next();
+      it.remove();
+      if (e.image == null)
+         continue;
+
+      e.soft = new SoftReference<BufferedImage>(e.image);
+      owners.remove(e.image);
+      e.image = null;
+      Bytes  -= e.bytes;
+      evictions++;
+    }
+  }
+
+  /** Changes the byte budget, evicting released images if needed **/
+  public synchronized void setBudget(long budgetBytes)
+  {
+    Budget = budgetBytes;
+    trim();
+  }
+
+  public synchronized long getBudget()
+  {
+    return Budget;
+  }
+
+  /** Bytes used by the images the cache is holding on to **/
+  public synchronized long getBytes()
+  {
+    return Bytes;
+  }
+
+  public synchronized long getHits()
+  {
+    return hits;
+  }
+
+  public synchronized long getMisses()
+  {
+    return misses;
+  }
+
+  public synchronized long getEvictions()
+  {
+    return evictions;
+  }
+
+  /** Returns a one-line summary of the cache statistics **/
+  public synchronized String getStats()
+  {
+    long requests = hits + misses;
+    return "assets=" + entries.size() + " bytes=" + Bytes + "/" + Budget
+         + " hits=" + hits + " (soft " + softHits + ") misses=" + misses + " evicted=" + evictions
+         + " hit rate=" + ((requests == 0) ? 0 : (100 * hits / requests)) + "%";
+  }
+
+  /** Estimates the memory used by an image's pixels **/
+  private static long sizeOf(BufferedImage img)
+  {
+    DataBuffer db = img.getRaster().getDataBuffer();
+    return (long)db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+  }
+}
@@ -0,0 +1,236 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+   Reads and writes maps in a compact binary format.
+
+   The file starts with a 32 byte header (big-endian):
+
+       int   magic         'TMAP'
+       short version       currently 1
+       short bytesPerTile  1 or 2
+       int   width         map width, in tiles
+       int   height        map height, in tiles
+       short tileWidth     width of a tile, in pixels
+       short tileHeight    height of a tile, in pixels
+       short layerCount    number of tile layers that follow
+       (padding up to 32 bytes)
+
+   followed by each layer's tile IDs, one row after another,
+   bytesPerTile bytes per tile.
+
+   The layers are memory-mapped rather than read, so opening
+   a map is nearly instant whatever its size; the operating
+   system pages in only the parts that chunks are read from.
+**/
+public class BinaryMapFile
+{
+  public static final int MAGIC = 0x544D4150; // 'TMAP'
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 32;
+
+  private File file;                // The file this map was read from
+  private int  BytesPerTile;        // 1 or 2
+  private int  Width;               // Width of the map, in tiles
+  private int  Height;              // Height of the map, in tiles
+  private int  TileWidth;           // Width of a tile, in pixels
+  private int  TileHeight;          // Height of a tile, in pixels
+
+  private MappedByteBuffer[] Layers; // One mapping per layer
+
+  private BinaryMapFile(File file)
+  {
+    this.file = file;
+  }
+
+  /**
+     Opens a binary map and maps its layers into memory.
+     No tile data is actually read until it is asked for.
+  **/
+  public static BinaryMapFile open(File f) throws IOException
+  {
+    BinaryMapFile map = new BinaryMapFile(f);
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try
+    {
+      FileChannel ch = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining())
+      {
+        if (ch.read(header) < 0)
+           throw new EOFException(f + ": truncated header");
+      }
+      header.flip();
+
+      if (header.getInt() != MAGIC)
+         throw new IOException(f + ": not a binary map file");
+      int version = header.getShort();
+      if (version != VERSION)
+         throw new IOException(f + ": unsupported map version " + version);
+
+      map.BytesPerTile = header.getShort();
+      map.Width        = header.getInt();
+      map.Height       = header.getInt();
+      map.TileWidth    = header.getShort();
+      map.TileHeight   = header.getShort();
+      int layerCount   = header.getShort();
+
+      if ((map.BytesPerTile != 1 && map.BytesPerTile != 2) || map.Width < 0 || map.Height < 0 || layerCount < 0)
+         throw new IOException(f + ": corrupt header");
+
+      long layerSize = (long)map.Width * map.Height * map.BytesPerTile;
+      if (layerSize > Integer.MAX_VALUE)
+         throw new IOException(f + ": layer too large to map");
+      if (ch.size() < HEADER_SIZE + layerSize * layerCount)
+         throw new EOFException(f + ": truncated tile data");
+
+      map.Layers = new MappedByteBuffer[layerCount];
+      for (int i = 0; i < layerCount; i++)
+          map.Layers[i] = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + i * layerSize, layerSize);
+    }
+    finally
+    {
+      raf.close(); // the mappings stay valid after the channel is closed
+    }
+    return map;
+  }
+
+  /**
+     Returns true if the file starts with the binary
+     map magic number.
+  **/
+  public static boolean isBinaryMap(File f)
+  {
+    DataInputStream in = null;
+    try
+    {
+      in = new DataInputStream(new FileInputStream(f));
+      return in.readInt() == MAGIC;
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+    finally
+    {
+      if (in != null)
+         try { in.close(); } catch (IOException e) {}
+    }
+  }
+
+  /**
+     Writes the layers (each indexed [row][col], all of the
+     same size) to a binary map file. Tile IDs are stored in
+     one byte each if they all fit, otherwise in two.
+  **/
+  public static void write(File f, int tileWidth, int tileHeight, char[][]... layers) throws IOException
+  {
+    int height = (layers.length == 0) ? 0 : layers[0].length;
+    int width  = (height == 0) ? 0 : layers[0][0].length;
+
+    int maxId = 0;
+    for (char[][] layer : layers)
+        for (char[] row : layer)
+            for (char id : row)
+                maxId = Math.max(maxId, id);
+    int bytesPerTile = (maxId < 256) ? 1 : 2;
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeShort(bytesPerTile);
+      out.writeInt(width);
+      out.writeInt(height);
+      out.writeShort(tileWidth);
+      out.writeShort(tileHeight);
+      out.writeShort(layers.length);
+      out.write(new byte[HEADER_SIZE - out.size()]);
+
+      for (char[][] layer : layers)
+      {
+        for (char[] row : layer)
+        {
+          for (char id : row)
+          {
+            if (bytesPerTile == 1)
+               out.writeByte(id);
+            else
+               out.writeChar(id);
+          }
+        }
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  /** Returns a ChunkSource that reads the given layer **/
+  public ChunkSource getLayer(final int layer)
+  {
+    final ByteBuffer data = Layers[layer];
+    return new ChunkSource()
+    {
+      public int getWidth()
+      {
+        return Width;
+      }
+
+      public int getHeight()
+      {
+        return Height;
+      }
+
+      /** Uses absolute gets only, so any thread may read at once **/
+      public void read(int col, int row, int width, int height, char[] dest)
+      {
+        for (int y = 0; y < height; y++)
+        {
+          int src = ((row + y) * Width + col) * BytesPerTile;
+          int dst = y * width;
+          for (int x = 0; x < width; x++)
+          {
+            if (BytesPerTile == 1)
+               dest[dst + x] = (char)(data.get(src + x) & 0xff);
+            else
+               dest[dst + x] = data.getChar(src + 2 * x);
+          }
+        }
+      }
+    };
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  public int getLayerCount()
+  {
+    return Layers.length;
+  }
+
+  public int getWidth()
+  {
+    return Width;
+  }
+
+  public int getHeight()
+  {
+    return Height;
+  }
+
+  public int getTileWidth()
+  {
+    return TileWidth;
+  }
+
+  public int getTileHeight()
+  {
+    return TileHeight;
+  }
+}
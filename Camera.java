@@ -0,0 +1,110 @@
+/**
+   A Camera describes which part of the world is
+   currently on screen.
+
+   Everything in the world keeps a fixed position in
+   world coordinates; scrolling only changes the camera's
+   offset. A point is drawn at its world position minus
+   the camera position.
+
+   The camera also remembers where it was before the
+   current update, so frames drawn between two updates
+   can scroll smoothly from one position to the other.
+**/
+public class Camera
+{
+  private int CamX;                // World X coordinate of the left edge of the screen
+  private int CamY;                // World Y coordinate of the top edge of the screen
+  private int PrevX;               // CamX before the current update
+  private int PrevY;               // CamY before the current update
+
+  public Camera()
+  {
+    this(0, 0);
+  }
+
+  public Camera(int x, int y)
+  {
+    CamX = PrevX = x;
+    CamY = PrevY = y;
+  }
+
+  public int getX()
+  {
+    return CamX;
+  }
+
+  public int getY()
+  {
+    return CamY;
+  }
+
+  /** Moves the camera without scrolling smoothly to the new position **/
+  public void setPosition(int x, int y)
+  {
+    CamX = PrevX = x;
+    CamY = PrevY = y;
+  }
+
+  /**
+     Remembers the current position as the one the next
+     update starts from. Called at the start of every update.
+  **/
+  public void saveState()
+  {
+    PrevX = CamX;
+    PrevY = CamY;
+  }
+
+  /**
+     Returns the X position to draw with when alpha of the
+     way from the previous update to the current one.
+  **/
+  public int getX(float alpha)
+  {
+    return PrevX + Math.round((CamX - PrevX) * alpha);
+  }
+
+  /**
+     Returns the Y position to draw with when alpha of the
+     way from the previous update to the current one.
+  **/
+  public int getY(float alpha)
+  {
+    return PrevY + Math.round((CamY - PrevY) * alpha);
+  }
+
+  /**
+     Scrolls the camera by the given amount
+     (in world pixels).
+  **/
+  public void move(int dx, int dy)
+  {
+    CamX += dx;
+    CamY += dy;
+  }
+
+  /** Converts a world X coordinate to a screen X coordinate **/
+  public int toScreenX(int worldX)
+  {
+    return worldX - CamX;
+  }
+
+  /** Converts a world Y coordinate to a screen Y coordinate **/
+  public int toScreenY(int worldY)
+  {
+    return worldY - CamY;
+  }
+
+  /** Converts a screen X coordinate to a world X coordinate **/
+  public int toWorldX(int screenX)
+  {
+    return screenX + CamX;
+  }
+
+  /** Converts a screen Y coordinate to a world Y coordinate **/
+  public int toWorldY(int screenY)
+  {
+    return screenY + CamY;
+  }
+}
@@ -0,0 +1,332 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+/**
+   Caches a pre-rendered image of each chunk of a map, so
+   a frame only has to blit a handful of chunk images
+   instead of drawing every tile one at a time.
+
+   The images are VolatileImages where the graphics device
+   supports them, so they can live in video memory. If a
+   VolatileImage can't be created (or keeps losing its
+   contents), a managed BufferedImage is used instead.
+
+   Only a limited number of chunk images are kept; the
+   least recently drawn one is thrown away when the limit
+   is reached. Changing a tile only requires invalidating
+   the chunk that holds it, or just marking the tile itself
+   dirty (see invalidateTile()), in which case only the
+   dirty tiles are painted again.
+**/
+public class ChunkImageCache
+{
+  // how many times to retry drawing a VolatileImage that lost its contents
+  private static final int MAX_RESTORE_ATTEMPTS = 3;
+
+  /**
+     Draws the tiles of a chunk into a chunk image. The
+     chunk's first tile goes at (0, 0).
+  **/
+  public interface Painter
+  {
+    public void paintChunk(Graphics2D g, MapChunk chunk);
+
+    /** Draws only the tile at (x, y) within the chunk **/
+    public void paintTile(Graphics2D g, MapChunk chunk, int x, int y);
+  }
+
+  /** A cached chunk image **/
+  private static class Entry
+  {
+    Image   image;                   // a VolatileImage or a BufferedImage
+    boolean valid;                   // does the image match the chunk's tiles (but the dirty ones)?
+    long[]  dirty;                   // Bit y * ChunkSize + x is set if tile (x, y) must be painted again
+    int     dirtyCount;
+  }
+
+  private Painter painter;           // Draws the chunks' tiles
+  private int     ChunkSize;         // Width and height of a chunk, in tiles
+  private int     TileWidth;         // Width of a tile, in pixels
+  private int     TileHeight;        // Height of a tile, in pixels
+  private int     ImageWidth;        // Width of a chunk image, in pixels
+  private int     ImageHeight;       // Height of a chunk image, in pixels
+  private int     ImageTransparency; // Transparency of the chunk images
+  private int     MaxImages;         // Maximum number of images kept
+  private boolean bUseVolatile;      // Try to use VolatileImages?
+
+  // The chunk images, least recently drawn first
+  private LinkedHashMap<Long, Entry> images;
+
+  private long hits;                 // Chunks drawn from a valid image
+  private long renders;              // Chunks that had to be (re)rendered
+  private long tileRenders;          // Dirty tiles painted again
+
+  /**
+     Creates a cache of at most maxImages chunk images of
+     chunkSize x chunkSize tiles, each tileWidth x tileHeight
+     pixels, using the given Transparency (OPAQUE if the
+     tiles cover the whole chunk).
+  **/
+  public ChunkImageCache(Painter painter, int chunkSize, int tileWidth, int tileHeight, int transparency, int maxImages)
+  {
+    this.painter = painter;
+    ChunkSize    = chunkSize;
+    TileWidth    = tileWidth;
+    TileHeight   = tileHeight;
+    ImageWidth   = chunkSize * tileWidth;
+    ImageHeight  = chunkSize * tileHeight;
+    ImageTransparency = transparency;
+    MaxImages    = Math.max(1, maxImages);
+    bUseVolatile = true;
+
+    images = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+  }
+
+  /**
+     Draws the chunk's image with its top left corner at
+     (x, y), rendering it first if it is missing, out of
+     date, or its video memory was lost.
+  **/
+  public void draw(Graphics2D g, MapChunk chunk, int x, int y)
+  {
+    Long key = MapChunk.key(chunk.getChunkX(), chunk.getChunkY());
+    Entry e = images.get(key);
+    if (e == null)
+    {
+      e = new Entry();
+      images.put(key, e);
+      trim();
+    }
+
+    GraphicsConfiguration gc = g.getDeviceConfiguration();
+    for (int attempt = 0; ; attempt++)
+    {
+      if (e.image == null)
+      {
+        e.image = createImage(gc);
+        e.valid = false;
+      }
+
+      if (e.image instanceof VolatileImage)
+      {
+        VolatileImage vi = (VolatileImage)e.image;
+        int status = vi.validate(gc);
+        if (status == VolatileImage.IMAGE_INCOMPATIBLE)
+        {
+          vi.flush();
+          e.image = null;
+          continue;
+        }
+        if (status == VolatileImage.IMAGE_RESTORED)
+           e.valid = false;
+      }
+
+      if (!e.valid)
+      {
+        render(e.image, chunk);
+        e.valid = true;
+        if (e.dirtyCount > 0)
+           Arrays.fill(e.dirty, 0);
+        e.dirtyCount = 0;
+        renders++;
+      }
+      else if (e.dirtyCount > 0)
+        repaint(e, chunk);
+      else
+        hits++;
+
+      g.drawImage(e.image, x, y, null);
+
+      if (!(e.image instanceof VolatileImage) || !((VolatileImage)e.image).contentsLost())
+         return;
+
+      /** video memory was lost while drawing; try again, then give up on it **/
+      e.valid = false;
+      if (attempt >= MAX_RESTORE_ATTEMPTS)
+      {
+        e.image.flush();
+        e.image = createManagedImage(gc);
+      }
+    }
+  }
+
+  /** Renders the chunk's tiles into the image **/
+  private void render(Image image, MapChunk chunk)
+  {
+    Graphics2D g = (Graphics2D)image.getGraphics();
+    if (ImageTransparency != Transparency.OPAQUE)
+    {
+      g.setComposite(AlphaComposite.Clear);
+      g.fillRect(0, 0, ImageWidth, ImageHeight);
+      g.setComposite(AlphaComposite.SrcOver);
+    }
+    else
+    {
+      g.setColor(Color.black);
+      g.fillRect(0, 0, ImageWidth, ImageHeight);
+    }
+    painter.paintChunk(g, chunk);
+    g.dispose();
+  }
+
+  /** Paints the dirty tiles of a valid image again **/
+  private void repaint(Entry e, MapChunk chunk)
+  {
+    Graphics2D g = (Graphics2D)e.image.getGraphics();
+    for (int w = 0; w < e.dirty.length; w++)
+    {
+      long bits = e.dirty[w];
+      while (bits != 0)
+      {
+        int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+        bits &= bits - 1;
+        int x = i % ChunkSize;
+        int y = i / ChunkSize;
+
+        if (ImageTransparency != Transparency.OPAQUE)
+        {
+          g.setComposite(AlphaComposite.Clear);
+          g.fillRect(x * TileWidth, y * TileHeight, TileWidth, TileHeight);
+          g.setComposite(AlphaComposite.SrcOver);
+        }
+        else
+        {
+          g.setColor(Color.black);
+          g.fillRect(x * TileWidth, y * TileHeight, TileWidth, TileHeight);
+        }
+        painter.paintTile(g, chunk, x, y);
+        tileRenders++;
+      }
+      e.dirty[w] = 0;
+    }
+    e.dirtyCount = 0;
+    g.dispose();
+  }
+
+  /** Creates a VolatileImage if possible, otherwise a managed image **/
+  private Image createImage(GraphicsConfiguration gc)
+  {
+    if (bUseVolatile && gc != null)
+    {
+      try
+      {
+        VolatileImage vi = gc.createCompatibleVolatileImage(ImageWidth, ImageHeight, ImageTransparency);
+        if (vi != null)
+           return vi;
+      }
+      catch (Exception ex)
+      {
+        // not supported by this device; fall back below
+      }
+      bUseVolatile = false;
+    }
+    return createManagedImage(gc);
+  }
+
+  private Image createManagedImage(GraphicsConfiguration gc)
+  {
+    if (gc != null)
+       return gc.createCompatibleImage(ImageWidth, ImageHeight, ImageTransparency);
+    return new BufferedImage(ImageWidth, ImageHeight,
+                             (ImageTransparency == Transparency.OPAQUE) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+  }
+
+  /** Throws away the least recently drawn images over the limit **/
+  private void trim()
+  {
+    Iterator<Entry> it = images.values().iterator();
+    while (images.size() > MaxImages && it.hasNext())
+    {
+      Entry e = it.next();
+      if (e.image != null)
+         e.image.flush();
+      it.remove();
+    }
+  }
+
+  /**
+     Marks the image of the chunk at (chunkX, chunkY) as out
+     of date. It is rendered again the next time it is drawn.
+  **/
+  public void invalidate(int chunkX, int chunkY)
+  {
+    Entry e = images.get(MapChunk.key(chunkX, chunkY));
+    if (e != null)
+       e.valid = false;
+  }
+
+  /**
+     Marks only the tile at (x, y) within the chunk at
+     (chunkX, chunkY) as out of date. Just the marked tiles
+     are painted again the next time the chunk is drawn,
+     unless so many are marked that rendering the whole chunk
+     is cheaper.
+  **/
+  public void invalidateTile(int chunkX, int chunkY, int x, int y)
+  {
+    Entry e = images.get(MapChunk.key(chunkX, chunkY));
+    if (e == null || !e.valid)
+       return;
+    if (e.dirtyCount >= ChunkSize * ChunkSize / 4)
+    {
+      e.valid = false;
+      return;
+    }
+
+    if (e.dirty == null)
+       e.dirty = new long[(ChunkSize * ChunkSize + 63) >> 6];
+    int i = y * ChunkSize + x;
+    long bit = 1L << (i & 63);
+    if ((e.dirty[i >> 6] & bit) == 0)
+    {
+      e.dirty[i >> 6] |= bit;
+      e.dirtyCount++;
+    }
+  }
+
+  /** Marks every chunk image as out of date **/
+  public void invalidateAll()
+  {
+    for (Entry e : images.values())
+        e.valid = false;
+  }
+
+  /** Throws away every chunk image **/
+  public void clear()
+  {
+    for (Entry e : images.values())
+    {
+      if (e.image != null)
+         e.image.flush();
+    }
+    images.clear();
+  }
+
+  /**
+     Makes sure at least count images may be kept, so the
+     chunks on screen never push each other out.
+  **/
+  public void ensureCapacity(int count)
+  {
+    if (MaxImages < count)
+       MaxImages = count;
+  }
+
+  public int getSize()
+  {
+    return images.size();
+  }
+
+  public int getMaxImages()
+  {
+    return MaxImages;
+  }
+
+  /** Returns a one-line summary of the cache statistics **/
+  public String getStats()
+  {
+    return "chunk images=" + images.size() + "/" + MaxImages + " hits=" + hits + " renders=" + renders + " tiles=" + tileRenders
+         + (bUseVolatile ? " (volatile)" : " (managed)");
+  }
+}
@@ -0,0 +1,306 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+   Keeps the chunks of a map that are near the camera in
+   memory, and nothing else.
+
+   Chunks are loaded from a ChunkSource the first time they
+   are asked for. When the camera moves, the chunks just
+   beyond the edge of the view in the direction of travel
+   are loaded ahead of time on a background thread, so they
+   are usually ready before they scroll into view. Once the
+   loaded chunks use more memory than the budget allows, the
+   ones that have gone unused the longest are dropped
+   (unless a tile in them has been changed).
+
+   Rendering and collision both read tiles through this
+   class, so they always see the same chunks.
+**/
+public class ChunkManager
+{
+  // how many chunks beyond the view are prefetched in the direction of travel
+  private static final int PREFETCH_DEPTH = 1;
+
+  private ChunkSource source;       // Where the tile data comes from
+  private int ChunkSize;            // Width and height of a chunk, in tiles
+  private int ChunksX;              // Number of chunk columns in the map
+  private int ChunksY;              // Number of chunk rows in the map
+  private int MaxChunks;            // Number of chunks that fit in the memory budget
+
+  // The loaded chunks, least recently used first
+  private LinkedHashMap<Long, MapChunk> chunks;
+
+  // Chunks that have been handed to the prefetch thread but are not loaded yet
+  private Set<Long> pending;
+
+  private ExecutorService prefetcher; // Loads chunks ahead of the camera, or null if prefetching is off
+  private int generation;           // Bumped whenever the source changes
+
+  private long loads;               // Chunks loaded on the game thread
+  private long prefetches;          // Chunks loaded on the prefetch thread
+  private long evictions;           // Chunks dropped to stay within the budget
+
+  /**
+     Creates a ChunkManager for the source, using square
+     chunks of chunkSize tiles and keeping roughly
+     budgetBytes worth of chunks in memory.
+  **/
+  public ChunkManager(ChunkSource source, int chunkSize, long budgetBytes)
+  {
+    this(source, chunkSize, budgetBytes, true);
+  }
+
+  /**
+     Creates a ChunkManager that only prefetches chunks if
+     asked to. Without prefetching, no background thread is
+     started; chunks are then always loaded when first asked
+     for, which is what a world that is never drawn wants.
+  **/
+  public ChunkManager(ChunkSource source, int chunkSize, long budgetBytes, boolean prefetch)
+  {
+    this.source = source;
+    ChunkSize  = chunkSize;
+    ChunksX    = (source.getWidth() + chunkSize - 1) / chunkSize;
+    ChunksY    = (source.getHeight() + chunkSize - 1) / chunkSize;
+
+    long perChunk = MapChunk.estimateBytes(chunkSize * chunkSize);
+    MaxChunks = (int)Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / perChunk));
+
+    chunks  = new LinkedHashMap<Long, MapChunk>(16, 0.75f, true);
+    pending = new HashSet<Long>();
+
+    if (!prefetch)
+       return;
+
+    prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "chunk-prefetch");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+  }
+
+  /**
+     Makes sure at least count chunks may stay loaded,
+     whatever the memory budget says. The map uses this so
+     that everything on screen always fits.
+  **/
+  public synchronized void ensureCapacity(int count)
+  {
+    if (MaxChunks < count)
+       MaxChunks = count;
+  }
+
+  /**
+     Returns the chunk at (chunkX, chunkY) in the chunk grid,
+     loading it right now if it is not in memory.
+  **/
+  public MapChunk getChunk(int chunkX, int chunkY)
+  {
+    Long key = MapChunk.key(chunkX, chunkY);
+    MapChunk chunk;
+    synchronized (this)
+    {
+      chunk = chunks.get(key);
+      if (chunk != null)
+         return chunk;
+    }
+
+    int gen;
+    synchronized (this)
+    {
+      gen = generation;
+    }
+    chunk = load(chunkX, chunkY);
+    synchronized (this)
+    {
+      /** the prefetch thread may have beaten us to it **/
+      MapChunk loaded = chunks.get(key);
+      if (loaded != null)
+         return loaded;
+      if (gen != generation)
+         chunk.reload(source); // the source changed while we were loading
+
+      loads++;
+      store(key, chunk);
+    }
+    return chunk;
+  }
+
+  /** Returns the chunk that contains the tile at (col, row) **/
+  public MapChunk getChunkAt(int col, int row)
+  {
+    return getChunk(col / ChunkSize, row / ChunkSize);
+  }
+
+  /**
+     Called whenever the camera moves. Queues the chunks just
+     beyond the view in the direction of travel (dirX, dirY)
+     for loading on the prefetch thread.
+
+     The view is given in tiles: the first visible column and
+     row, and how many columns and rows are (partly) visible.
+  **/
+  public void prefetch(int col, int row, int cols, int rows, int dirX, int dirY)
+  {
+    if (prefetcher == null)
+       return;
+
+    int firstX = Math.floorDiv(col, ChunkSize);
+    int lastX  = Math.floorDiv(col + cols - 1, ChunkSize);
+    int firstY = Math.floorDiv(row, ChunkSize);
+    int lastY  = Math.floorDiv(row + rows - 1, ChunkSize);
+
+    if (dirX > 0)
+       queue(lastX + 1, lastX + PREFETCH_DEPTH, firstY - 1, lastY + 1);
+    else if (dirX < 0)
+       queue(firstX - PREFETCH_DEPTH, firstX - 1, firstY - 1, lastY + 1);
+
+    if (dirY > 0)
+       queue(firstX - 1, lastX + 1, lastY + 1, lastY + PREFETCH_DEPTH);
+    else if (dirY < 0)
+       queue(firstX - 1, lastX + 1, firstY - PREFETCH_DEPTH, firstY - 1);
+  }
+
+  /** Queues every chunk in the (inclusive) range that is not loaded yet **/
+  private synchronized void queue(int x0, int x1, int y0, int y1)
+  {
+    for (int cy = Math.max(0, y0); cy <= Math.min(ChunksY - 1, y1); cy++)
+    {
+      for (int cx = Math.max(0, x0); cx <= Math.min(ChunksX - 1, x1); cx++)
+      {
+        final Long key = MapChunk.key(cx, cy);
+        if (chunks.containsKey(key) || !pending.add(key))
+           continue;
+
+        final int chunkX = cx;
+        final int chunkY = cy;
+        final int gen = generation;
+        prefetcher.execute(new Runnable()
+        {
+          public void run()
+          {
+            MapChunk chunk = load(chunkX, chunkY);
+            synchronized (ChunkManager.this)
+            {
+              pending.remove(key);
+              if (gen == generation && !chunks.containsKey(key))
+              {
+                prefetches++;
+                store(key, chunk);
+              }
+            }
+          }
+        });
+      }
+    }
+  }
+
+  /**
+     Switches to a new source of the same size (for example,
+     when the map file was edited). Loaded chunks are updated
+     in place; the ones whose tiles changed are returned.
+  **/
+  public synchronized List<MapChunk> setSource(ChunkSource source)
+  {
+    this.source = source;
+    generation++;
+
+    ArrayList<MapChunk> changed = new ArrayList<MapChunk>();
+    for (MapChunk chunk : chunks.values())
+    {
+      if (chunk.reload(source))
+         changed.add(chunk);
+    }
+    return changed;
+  }
+
+  /** Reads a chunk from the source. Safe to call from any thread. **/
+  private MapChunk load(int chunkX, int chunkY)
+  {
+    ChunkSource source;
+    synchronized (this)
+    {
+      source = this.source;
+    }
+    int col = chunkX * ChunkSize;
+    int row = chunkY * ChunkSize;
+    int w = Math.min(ChunkSize, source.getWidth() - col);
+    int h = Math.min(ChunkSize, source.getHeight() - row);
+    return new MapChunk(source, chunkX, chunkY, col, row, w, h);
+  }
+
+  /**
+     Adds a chunk and evicts the least recently used ones if
+     over budget. Modified chunks are never evicted, since
+     their changes only exist in memory.
+  **/
+  private void store(Long key, MapChunk chunk)
+  {
+    chunks.put(key, chunk);
+
+    Iterator<MapChunk> it = chunks.values().iterator();
+    int excess = chunks.size() - MaxChunks;
+    while (excess > 0 && it.hasNext())
+    {
+      if (it.next().isModified())
+         continue;
+      it.remove();
+      evictions++;
+      excess--;
+    }
+  }
+
+  /** Stops the prefetch thread. **/
+  public void shutdown()
+  {
+    if (prefetcher != null)
+       prefetcher.shutdownNow();
+  }
+
+  public int getChunkSize()
+  {
+    return ChunkSize;
+  }
+
+  public int getChunksX()
+  {
+    return ChunksX;
+  }
+
+  public int getChunksY()
+  {
+    return ChunksY;
+  }
+
+  public synchronized int getLoadedCount()
+  {
+    return chunks.size();
+  }
+
+  public synchronized int getMaxChunks()
+  {
+    return MaxChunks;
+  }
+
+  /** Returns the memory used by the loaded chunks, in bytes **/
+  public synchronized long getBytes()
+  {
+    long bytes = 0;
+    for (MapChunk chunk : chunks.values())
+        bytes += chunk.getBytes();
+    return bytes;
+  }
+
+  /** Returns a one-line summary of the chunk statistics **/
+  public synchronized String getStats()
+  {
+    return "chunks loaded=" + chunks.size() + "/" + MaxChunks
+         + " loads=" + loads + " prefetched=" + prefetches + " evicted=" + evictions;
+  }
+}
@@ -0,0 +1,24 @@
+/**
+   A ChunkSource is wherever a map's tile data actually
+   lives (an array in memory, a file on disk, ...).
+
+   The ChunkManager asks its source for one rectangular
+   block of tiles at a time, so a source never has to
+   hand over the whole map at once. Sources may be read
+   from the prefetch thread and the game thread at the
+   same time, so read() must not modify shared state.
+**/
+public interface ChunkSource
+{
+  /** The width of the map, in tiles **/
+  public int getWidth();
+
+  /** The height of the map, in tiles **/
+  public int getHeight();
+
+  /**
+     Copies the tile IDs of the block starting at (col, row)
+     into dest, one row after another (dest[y*width + x]).
+  **/
+  public void read(int col, int row, int width, int height, char[] dest);
+}
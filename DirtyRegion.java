@@ -0,0 +1,186 @@
+import java.awt.*;
+
+/**
+   The parts of a view that have to be drawn again because
+   something in them changed since the last frame.
+
+   The region is kept as a few rectangles. A rectangle that
+   overlaps (or touches) one already in the region is merged
+   into it, and once there are too many rectangles the new
+   one is merged into whichever one grows the least. When
+   the rectangles cover a good part of the view, or when
+   markFull() is called, the region simply becomes the
+   whole view; drawing everything once is then cheaper than
+   drawing many pieces.
+
+   No rectangles are allocated after the region is made.
+**/
+public class DirtyRegion
+{
+  // the most rectangles kept; each costs a pass over the scene when drawing
+  private static final int MAX_RECTS = 8;
+
+  // the share of the view above which the whole view is drawn instead
+  private static final double FULL_FRACTION = 0.5;
+
+  private int Width;                // Width of the view, in pixels
+  private int Height;               // Height of the view, in pixels
+  private Rectangle[] rects;        // The rectangles (0 .. count-1 are in use)
+  private int count;
+  private boolean bFull;            // Is the whole view dirty?
+
+  /** Creates an empty region of a width x height view **/
+  public DirtyRegion(int width, int height)
+  {
+    Width  = width;
+    Height = height;
+    rects  = new Rectangle[MAX_RECTS];
+    for (int i = 0; i < rects.length; i++)
+        rects[i] = new Rectangle();
+  }
+
+  /** Adds a rectangle; the parts outside of the view are ignored **/
+  public void add(int x, int y, int width, int height)
+  {
+    if (bFull)
+       return;
+
+    /** clip to the view **/
+    int x1 = Math.min(Width, x + width);
+    int y1 = Math.min(Height, y + height);
+    x = Math.max(0, x);
+    y = Math.max(0, y);
+    if (x >= x1 || y >= y1)
+       return;
+    width  = x1 - x;
+    height = y1 - y;
+
+    /** merge with whatever it touches, until it touches nothing **/
+    boolean merged = true;
+    while (merged)
+    {
+      merged = false;
+      for (int i = 0; i < count; i++)
+      {
+        Rectangle r = rects[i];
+        if (x <= r.x + r.width && r.x <= x + width && y <= r.y + r.height && r.y <= y + height)
+        {
+          int rx1 = Math.max(x + width, r.x + r.width);
+          int ry1 = Math.max(y + height, r.y + r.height);
+          x = Math.min(x, r.x);
+          y = Math.min(y, r.y);
+          width  = rx1 - x;
+          height = ry1 - y;
+          removeAt(i);
+          merged = true;
+          break;
+        }
+      }
+    }
+
+    if (count == rects.length)
+    {
+      /** no room left: grow the rectangle that grows the least **/
+      int best = 0;
+      long bestGrowth = Long.MAX_VALUE;
+      for (int i = 0; i < count; i++)
+      {
+        Rectangle r = rects[i];
+        long union = (long)(Math.max(x + width, r.x + r.width) - Math.min(x, r.x))
+                   * (Math.max(y + height, r.y + r.height) - Math.min(y, r.y));
+        long growth = union - (long)r.width * r.height;
+        if (growth < bestGrowth)
+        {
+          bestGrowth = growth;
+          best = i;
+        }
+      }
+      Rectangle r = rects[best];
+      removeAt(best);
+      add(Math.min(x, r.x), Math.min(y, r.y),
+          Math.max(x + width, r.x + r.width) - Math.min(x, r.x),
+          Math.max(y + height, r.y + r.height) - Math.min(y, r.y));
+      return;
+    }
+
+    rects[count++].setBounds(x, y, width, height);
+    if (getArea() > FULL_FRACTION * Width * Height)
+       markFull();
+  }
+
+  /** Adds a rectangle (which may be null) **/
+  public void add(Rectangle r)
+  {
+    if (r != null)
+       add(r.x, r.y, r.width, r.height);
+  }
+
+  /** Removes the i-th rectangle, keeping the Rectangle object for later **/
+  private void removeAt(int i)
+  {
+    Rectangle r = rects[i];
+    rects[i] = rects[--count];
+    rects[count] = r;
+  }
+
+  /** Makes the whole view dirty **/
+  public void markFull()
+  {
+    bFull = true;
+    count = 0;
+  }
+
+  /** Makes the region empty again **/
+  public void clear()
+  {
+    bFull = false;
+    count = 0;
+  }
+
+  public boolean isFull()
+  {
+    return bFull;
+  }
+
+  /** Returns true if nothing has to be drawn **/
+  public boolean isEmpty()
+  {
+    return !bFull && count == 0;
+  }
+
+  /** Returns the number of rectangles (0 if the region is full) **/
+  public int getCount()
+  {
+    return count;
+  }
+
+  /** Returns the i-th rectangle; don't keep or change it **/
+  public Rectangle getRect(int i)
+  {
+    return rects[i];
+  }
+
+  /** Returns the number of pixels in the region **/
+  public long getArea()
+  {
+    if (bFull)
+       return (long)Width * Height;
+    long area = 0;
+    for (int i = 0; i < count; i++)
+        area += (long)rects[i].width * rects[i].height;
+    return area;
+  }
+
+  /** Returns the smallest rectangle holding the whole region, or null if it is empty **/
+  public Rectangle getBounds()
+  {
+    if (bFull)
+       return new Rectangle(0, 0, Width, Height);
+    if (count == 0)
+       return null;
+    Rectangle bounds = new Rectangle(rects[0]);
+    for (int i = 1; i < count; i++)
+        bounds.add(rects[i]);
+    return bounds;
+  }
+}
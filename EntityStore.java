@@ -0,0 +1,651 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+/**
+   Holds the state of a large number of sprites (entities)
+   as a struct of arrays: one primitive array per field,
+   instead of one object per sprite.
+
+   Entities are known by an ID that never changes while the
+   entity exists. The arrays themselves are kept packed: the
+   live entities are always at indexes 0 .. getCount()-1,
+   and removing one moves the last entity into its place.
+   Looping over every entity therefore walks a few arrays
+   from start to end, which is as cache-friendly as it gets,
+   and update() and draw() allocate nothing.
+
+   What all sprites of one kind share, their image, lives in
+   a table of SpriteTypes; each entity only stores the index
+   of its type. A Sprite can be used as a view of any one
+   entity (see Sprite(EntityStore, int)).
+
+   Positions are in world pixels for entities that walk the
+   map, but the store doesn't care; the player's sprite keeps
+   its screen position in its own store.
+
+   A store can keep a SpatialHash of its entities up to date
+   (see setIndex()), to find the entities near a point.
+
+   Not thread-safe; each world has its own stores.
+**/
+public class EntityStore
+{
+  /** The maximum health of any entity **/
+  public static final int MAX_HEALTH = 100;
+
+  private static final Direction[] DIRECTIONS = Direction.values();
+
+  private int count;                // Number of live entities
+  private int capacity;             // Length of the arrays
+
+  /** Per entity, by index **/
+  private int[]   ids;              // The ID of the entity at each index
+  private int[]   x;                // X location
+  private int[]   y;                // Y location
+  private int[]   prevX;            // X location before the current update
+  private int[]   prevY;            // Y location before the current update
+  private byte[]  facing;           // Direction.ordinal() of the direction it is facing
+  private byte[]  prevFacing;       // ... and of the direction it was just facing
+  private byte[]  speed;            // Pixels it walks each update (0 = standing still)
+  private short[] type;             // Index into the type table
+  private int[]   health;
+  private int[]   mana;
+  private short[] strength;
+  private short[] defense;
+  private short[] magicDefense;
+  private Spell[][] spells;         // The spells it can use (usually null)
+  private int[]   drawnX;           // Screen X it was last drawn at
+  private int[]   drawnY;           // Screen Y it was last drawn at
+  private short[] drawn;            // type * 4 + facing it was last drawn with, or -1 if it wasn't
+
+  /** Per ID **/
+  private int[] indexOf;            // The index of each ID, or -1 if the ID is free
+  private int[] freeIds;            // IDs that can be reused, as a stack
+  private int   freeCount;
+  private int   nextId;             // The lowest ID that has never been used
+
+  private ArrayList<SpriteType> types;     // The type table
+  private HashMap<String, Integer> typeIds; // The type of each image file
+
+  private long random;              // State of the random walk (xorshift)
+
+  private SpatialHash index;        // Kept up to date with the positions, or null
+
+  private int[] erased;             // Screen rectangles of drawn entities since removed, as x,y,w,h
+  private int   erasedCount;
+
+  /** Creates a store with room for initialCapacity entities (it grows as needed) **/
+  public EntityStore(int initialCapacity)
+  {
+    capacity     = Math.max(1, initialCapacity);
+    ids          = new int[capacity];
+    x            = new int[capacity];
+    y            = new int[capacity];
+    prevX        = new int[capacity];
+    prevY        = new int[capacity];
+    facing       = new byte[capacity];
+    prevFacing   = new byte[capacity];
+    speed        = new byte[capacity];
+    type         = new short[capacity];
+    health       = new int[capacity];
+    mana         = new int[capacity];
+    strength     = new short[capacity];
+    defense      = new short[capacity];
+    magicDefense = new short[capacity];
+    spells       = new Spell[capacity][];
+    drawnX       = new int[capacity];
+    drawnY       = new int[capacity];
+    drawn        = new short[capacity];
+    indexOf      = new int[capacity];
+    freeIds      = new int[capacity];
+    erased       = new int[16];
+    types        = new ArrayList<SpriteType>();
+    typeIds      = new HashMap<String, Integer>();
+    random       = 0x9E3779B97F4A7C15L;
+  }
+
+  /**
+     Returns the type of sprites drawn with the image file,
+     creating it (and loading the image) the first time.
+  **/
+  public int getType(String imgURL)
+  {
+    Integer t = typeIds.get(imgURL);
+    if (t != null)
+       return t;
+
+    types.add(new SpriteType(imgURL));
+    typeIds.put(imgURL, types.size() - 1);
+    return types.size() - 1;
+  }
+
+  public SpriteType getSpriteType(int t)
+  {
+    return types.get(t);
+  }
+
+  /** Creates an entity of a type (or -1 for one without an image) and returns its ID **/
+  public int create(int spriteType, int x, int y, Direction dir, int health, int mana, int str, int def, int mdef, Spell[] sp)
+  {
+    if (count == capacity)
+       grow();
+
+    int id = (freeCount > 0) ? freeIds[--freeCount] : nextId++;
+    int i = count++;
+    indexOf[id]     = i;
+    ids[i]          = id;
+    this.x[i]       = this.prevX[i] = x;
+    this.y[i]       = this.prevY[i] = y;
+    facing[i]       = (byte)dir.ordinal();
+    prevFacing[i]   = (byte)Direction.NORTH.ordinal();
+    speed[i]        = 0;
+    type[i]         = (short)spriteType;
+    this.health[i]  = health;
+    this.mana[i]    = mana;
+    strength[i]     = (short)str;
+    defense[i]      = (short)def;
+    magicDefense[i] = (short)mdef;
+    spells[i]       = sp;
+    drawn[i]        = -1;
+    if (index != null)
+       index.insert(id, x, y);
+    return id;
+  }
+
+  /** Removes an entity; its ID may be handed out again **/
+  public void remove(int id)
+  {
+    if (!exists(id))
+       return;
+    int i = indexOf[id];
+    if (index != null)
+       index.remove(id);
+
+    /** the next frame has to draw over where it was **/
+    if (drawn[i] >= 0)
+    {
+      if (erasedCount + 4 > erased.length)
+         erased = Arrays.copyOf(erased, erased.length * 2);
+      SpriteType t = types.get(drawn[i] >> 2);
+      erased[erasedCount++] = drawnX[i];
+      erased[erasedCount++] = drawnY[i];
+      erased[erasedCount++] = t.getWidth(drawn[i] & 3);
+      erased[erasedCount++] = t.getHeight(drawn[i] & 3);
+    }
+
+    /** move the last entity into the hole, so the arrays stay packed **/
+    int last = --count;
+    if (i != last)
+    {
+      ids[i]          = ids[last];
+      x[i]            = x[last];
+      y[i]            = y[last];
+      prevX[i]        = prevX[last];
+      prevY[i]        = prevY[last];
+      facing[i]       = facing[last];
+      prevFacing[i]   = prevFacing[last];
+      speed[i]        = speed[last];
+      type[i]         = type[last];
+      health[i]       = health[last];
+      mana[i]         = mana[last];
+      strength[i]     = strength[last];
+      defense[i]      = defense[last];
+      magicDefense[i] = magicDefense[last];
+      spells[i]       = spells[last];
+      drawnX[i]       = drawnX[last];
+      drawnY[i]       = drawnY[last];
+      drawn[i]        = drawn[last];
+      indexOf[ids[i]] = i;
+    }
+    spells[last] = null;
+    indexOf[id] = -1;
+    freeIds[freeCount++] = id;
+  }
+
+  /** Doubles the length of every array **/
+  private void grow()
+  {
+    int n = capacity * 2;
+    ids          = Arrays.copyOf(ids, n);
+    x            = Arrays.copyOf(x, n);
+    y            = Arrays.copyOf(y, n);
+    prevX        = Arrays.copyOf(prevX, n);
+    prevY        = Arrays.copyOf(prevY, n);
+    facing       = Arrays.copyOf(facing, n);
+    prevFacing   = Arrays.copyOf(prevFacing, n);
+    speed        = Arrays.copyOf(speed, n);
+    type         = Arrays.copyOf(type, n);
+    health       = Arrays.copyOf(health, n);
+    mana         = Arrays.copyOf(mana, n);
+    strength     = Arrays.copyOf(strength, n);
+    defense      = Arrays.copyOf(defense, n);
+    magicDefense = Arrays.copyOf(magicDefense, n);
+    spells       = Arrays.copyOf(spells, n);
+    drawnX       = Arrays.copyOf(drawnX, n);
+    drawnY       = Arrays.copyOf(drawnY, n);
+    drawn        = Arrays.copyOf(drawn, n);
+    indexOf      = Arrays.copyOf(indexOf, n);
+    freeIds      = Arrays.copyOf(freeIds, n);
+    capacity     = n;
+  }
+
+  /** Returns true if the ID belongs to a live entity **/
+  public boolean exists(int id)
+  {
+    return id >= 0 && id < nextId && indexOf[id] >= 0;
+  }
+
+  /** Number of live entities **/
+  public int getCount()
+  {
+    return count;
+  }
+
+  /** Returns the ID of the entity at an index (0 .. getCount()-1) **/
+  public int getId(int index)
+  {
+    return ids[index];
+  }
+
+  /** Bytes used by the arrays, not counting the sprite types' images **/
+  public long getBytes()
+  {
+    /** 9 int arrays, 4 short, 3 byte, and one of (compressed) references **/
+    return (long)capacity * (4*9 + 2*4 + 1*3 + 4);
+  }
+
+  //---- Single entities, by ID ---- //
+
+  public int getX(int id)
+  {
+    return x[indexOf[id]];
+  }
+
+  public int getY(int id)
+  {
+    return y[indexOf[id]];
+  }
+
+  public Direction getFacing(int id)
+  {
+    return DIRECTIONS[facing[indexOf[id]]];
+  }
+
+  public Direction getPrevFacing(int id)
+  {
+    return DIRECTIONS[prevFacing[indexOf[id]]];
+  }
+
+  public int getSpeed(int id)
+  {
+    return speed[indexOf[id]];
+  }
+
+  public int getHealth(int id)
+  {
+    return health[indexOf[id]];
+  }
+
+  public int getMana(int id)
+  {
+    return mana[indexOf[id]];
+  }
+
+  public int getStrength(int id)
+  {
+    return strength[indexOf[id]];
+  }
+
+  public int getDefense(int id)
+  {
+    return defense[indexOf[id]];
+  }
+
+  public int getMagicDefense(int id)
+  {
+    return magicDefense[indexOf[id]];
+  }
+
+  public Spell[] getSpells(int id)
+  {
+    return spells[indexOf[id]];
+  }
+
+  /** Returns the index of an entity's type in the type table **/
+  public int getTypeOf(int id)
+  {
+    return type[indexOf[id]];
+  }
+
+  /** Returns the image an entity is drawn with right now, or null **/
+  public BufferedImage getImage(int id)
+  {
+    int i = indexOf[id];
+    return (type[i] < 0) ? null : types.get(type[i]).getImage(facing[i]);
+  }
+
+  /** Moves an entity by (dx, dy) **/
+  public void move(int id, int dx, int dy)
+  {
+    int i = indexOf[id];
+    x[i] += dx;
+    y[i] += dy;
+    if (index != null)
+       index.move(id, x[i], y[i]);
+  }
+
+  /** Puts an entity somewhere, without moving smoothly to it **/
+  public void setPosition(int id, int newX, int newY)
+  {
+    int i = indexOf[id];
+    x[i] = prevX[i] = newX;
+    y[i] = prevY[i] = newY;
+    if (index != null)
+       index.move(id, newX, newY);
+  }
+
+  /** Turns an entity to face a direction **/
+  public void setFacing(int id, Direction dir)
+  {
+    int i = indexOf[id];
+    prevFacing[i] = facing[i];
+    facing[i] = (byte)dir.ordinal();
+  }
+
+  /**
+     Makes an entity walk pixelsPerUpdate in the direction it
+     is facing every update (0 to stand still). Walking
+     entities turn when they run into something.
+  **/
+  public void setSpeed(int id, int pixelsPerUpdate)
+  {
+    speed[indexOf[id]] = (byte)pixelsPerUpdate;
+  }
+
+  /**
+     Takes amount of health from an entity. Returns true if
+     that brought its health down to 0.
+  **/
+  public boolean damage(int id, int amount)
+  {
+    int i = indexOf[id];
+    health[i] -= amount;
+    if (health[i] < 0)
+    {
+      health[i] = 0;
+      return true;
+    }
+    return false;
+  }
+
+  /** Heals an entity, up to MAX_HEALTH **/
+  public void heal(int id, int amount)
+  {
+    int i = indexOf[id];
+    health[i] = Math.min(MAX_HEALTH, health[i] + amount);
+  }
+
+  /** Takes mana from an entity; no entity can have negative mana **/
+  public void drainMana(int id, int amount)
+  {
+    int i = indexOf[id];
+    mana[i] = Math.max(0, mana[i] - amount);
+  }
+
+  //---- Every entity ---- //
+
+  /**
+     Makes the store keep a spatial index of its entities'
+     positions, starting with the ones that exist now (or
+     stop keeping one, if index is null).
+  **/
+  public void setIndex(SpatialHash index)
+  {
+    this.index = index;
+    if (index == null)
+       return;
+    index.clear();
+    for (int i = 0; i < count; i++)
+        index.insert(ids[i], x[i], y[i]);
+  }
+
+  public SpatialHash getIndex()
+  {
+    return index;
+  }
+
+  /**
+     Remembers every entity's position as the one the next
+     update starts from, so frames can be drawn in between.
+  **/
+  public void saveState()
+  {
+    System.arraycopy(x, 0, prevX, 0, count);
+    System.arraycopy(y, 0, prevY, 0, count);
+  }
+
+  /**
+     Walks every entity that has a speed one step in the
+     direction it faces. An entity whose step would take the
+     edge it leads with onto a collidable tile of the map (or
+     off the map) turns instead; now and then a walking entity also
+     turns on its own, so the crowd wanders about.
+  **/
+  public void update(Map map)
+  {
+    update(map, null);
+  }
+
+  /**
+     Like update(Map), but entities within reach of the flow
+     field chase its goal instead of wandering: whenever one
+     stands exactly on a tile, it turns the way the field
+     points, so it stays on the tile grid, and it stops once
+     it gets to the goal.
+  **/
+  public void update(Map map, FlowField flow)
+  {
+    int tw = map.getTileWidth();
+    int th = map.getTileHeight();
+    long r = random;
+    for (int i = 0; i < count; i++)
+    {
+      int s = speed[i];
+      if (s == 0)
+         continue;
+
+      int f = facing[i];
+      boolean chasing = false;
+      if (flow != null)
+      {
+        int col = Math.floorDiv(x[i], tw);
+        int row = Math.floorDiv(y[i], th);
+        chasing = flow.getDistance(col, row) >= 0;
+        if (chasing && x[i] == col * tw && y[i] == row * th)
+        {
+          int d = flow.getDirectionIndex(col, row);
+          if (d < 0)
+             continue;                // at the goal
+          if (d != f)
+          {
+            prevFacing[i] = (byte)f;
+            facing[i] = (byte)d;
+            f = d;
+          }
+        }
+      }
+
+      int nx = x[i], ny = y[i];
+      switch (f)
+      {
+        case 0:  ny -= s; break;   // NORTH
+        case 1:  nx += s; break;   // EAST
+        case 2:  ny += s; break;   // SOUTH
+        default: nx -= s; break;   // WEST
+      }
+
+      /** xorshift; about one turn in 64 steps **/
+      r ^= r << 13;
+      r ^= r >>> 7;
+      r ^= r << 17;
+
+      if (isBlocked(map, i, f, nx, ny) || ((r & 63) == 0 && !chasing))
+      {
+        prevFacing[i] = (byte)f;
+        facing[i] = (byte)((f + 1 + ((r >>> 8) & 1) * 2) & 3);   // turn right, or left
+        continue;
+      }
+      x[i] = nx;
+      y[i] = ny;
+      if (index != null)
+         index.move(ids[i], nx, ny);
+    }
+    random = r;
+  }
+
+  /**
+     Returns true if entity i, facing f, can't stand at
+     (nx, ny): its leading edge (the two corners on the side
+     it walks towards) would be on a collidable tile.
+  **/
+  private boolean isBlocked(Map map, int i, int f, int nx, int ny)
+  {
+    /** an entity without an image is just a point **/
+    if (type[i] < 0)
+       return map.isBlocked(nx, ny);
+
+    SpriteType t = types.get(type[i]);
+    int x1 = nx + Math.max(1, t.getWidth(f)) - 1;
+    int y1 = ny + Math.max(1, t.getHeight(f)) - 1;
+    switch (f)
+    {
+      case 0:  return map.isBlocked(nx, ny) || map.isBlocked(x1, ny);   // NORTH
+      case 1:  return map.isBlocked(x1, ny) || map.isBlocked(x1, y1);   // EAST
+      case 2:  return map.isBlocked(nx, y1) || map.isBlocked(x1, y1);   // SOUTH
+      default: return map.isBlocked(nx, ny) || map.isBlocked(nx, y1);   // WEST
+    }
+  }
+
+  /**
+     Draws every entity that is inside the view, at alpha of
+     the way between its positions before and after the last
+     update. Positions are in world pixels; the view starts
+     at (left, top).
+
+     Where each entity was drawn is remembered for
+     markDirty().
+  **/
+  public void draw(Graphics2D g, int left, int top, int viewWidth, int viewHeight, float alpha)
+  {
+    draw(g, left, top, viewWidth, viewHeight, alpha, null);
+  }
+
+  /**
+     Like draw(), but only draws inside the region (if it
+     isn't null): each entity is drawn, clipped, into the
+     rectangles of the region it overlaps, so the entities
+     are gone through once however many rectangles there
+     are. Leaves g clipped to the last rectangle drawn into.
+  **/
+  public void draw(Graphics2D g, int left, int top, int viewWidth, int viewHeight, float alpha, DirtyRegion region)
+  {
+    for (int i = 0; i < count; i++)
+    {
+      int px = prevX[i] + Math.round((x[i] - prevX[i]) * alpha) - left;
+      int py = prevY[i] + Math.round((y[i] - prevY[i]) * alpha) - top;
+      int look = look(i, px, py, viewWidth, viewHeight);
+      drawn[i] = (short)look;
+      if (look < 0)
+         continue;
+
+      drawnX[i] = px;
+      drawnY[i] = py;
+      int f = facing[i];
+      SpriteType t = types.get(type[i]);
+      if (region == null)
+      {
+        g.drawImage(t.getImage(f), px, py, null);
+        continue;
+      }
+
+      int px1 = px + t.getWidth(f);
+      int py1 = py + t.getHeight(f);
+      for (int k = 0; k < region.getCount(); k++)
+      {
+        Rectangle r = region.getRect(k);
+        if (px < r.x + r.width && py < r.y + r.height && px1 > r.x && py1 > r.y)
+        {
+          g.setClip(r);
+          g.drawImage(t.getImage(f), px, py, null);
+        }
+      }
+    }
+    erasedCount = 0;
+  }
+
+  /**
+     Returns type * 4 + facing of the i-th entity if it is
+     drawn at screen position (px, py), or -1 if it isn't
+     drawn (it has no image or is outside of the view).
+  **/
+  private int look(int i, int px, int py, int viewWidth, int viewHeight)
+  {
+    if (px >= viewWidth || py >= viewHeight || type[i] < 0)
+       return -1;
+    SpriteType t = types.get(type[i]);
+    if (px + t.getWidth(facing[i]) <= 0 || py + t.getHeight(facing[i]) <= 0 || t.getImage(facing[i]) == null)
+       return -1;
+    return type[i] * 4 + facing[i];
+  }
+
+  /**
+     Adds to the region the screen rectangles of the entities
+     that draw() at alpha would draw differently than they
+     were last drawn: where each one was, and where it will
+     be. Entities removed since then are erased too.
+  **/
+  public void markDirty(DirtyRegion region, int left, int top, int viewWidth, int viewHeight, float alpha)
+  {
+    for (int k = 0; k < erasedCount; k += 4)
+        region.add(erased[k], erased[k + 1], erased[k + 2], erased[k + 3]);
+    erasedCount = 0;
+
+    for (int i = 0; i < count; i++)
+    {
+      int px = prevX[i] + Math.round((x[i] - prevX[i]) * alpha) - left;
+      int py = prevY[i] + Math.round((y[i] - prevY[i]) * alpha) - top;
+      int look = look(i, px, py, viewWidth, viewHeight);
+      if (look == drawn[i] && (look < 0 || (px == drawnX[i] && py == drawnY[i])))
+         continue;
+
+      if (drawn[i] >= 0)
+      {
+        SpriteType t = types.get(drawn[i] >> 2);
+        region.add(drawnX[i], drawnY[i], t.getWidth(drawn[i] & 3), t.getHeight(drawn[i] & 3));
+      }
+      if (look >= 0)
+      {
+        SpriteType t = types.get(type[i]);
+        region.add(px, py, t.getWidth(facing[i]), t.getHeight(facing[i]));
+      }
+    }
+  }
+
+  /** Removes every entity and releases the types' images **/
+  public void dispose()
+  {
+    for (SpriteType t : types)
+        t.dispose();
+    types.clear();
+    typeIds.clear();
+    for (int i = 0; i < count; i++)
+        spells[i] = null;
+    count = 0;
+    freeCount = 0;
+    nextId = 0;
+    erasedCount = 0;
+    if (index != null)
+       index.clear();
+  }
+}
@@ -0,0 +1,153 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+   A LoopScheduler which updates the game in fixed steps and
+   renders at a steady frame rate.
+
+   Every update advances the game by exactly the same amount
+   of time, however long frames take, so the game runs at
+   the same speed on any machine. Updates are handed whole
+   milliseconds; when a step isn't a whole number of them
+   (60 updates a second is 16.67ms), the fraction left over
+   is carried into the next update, so they add up to the
+   right time. When rendering falls
+   behind, several updates are run back to back (up to a
+   limit) before the next frame, and the frames that were
+   skipped are counted. Frames are drawn with the fraction
+   of a step that has passed since the last update, so
+   movement can be interpolated smoothly.
+
+   Between frames the thread parks until just before the
+   next frame is due and then spins for the last moment,
+   which is far more precise than Thread.sleep().
+**/
+public class FixedStepScheduler implements LoopScheduler
+{
+  // how long before a deadline to stop parking and start spinning
+  private static final long SPIN_NANOS = 1000000L;
+
+  private long StepNanos;            // Game time covered by one update
+  private long FrameNanos;           // Time between frames
+  private int  MaxUpdates;           // Max. updates run before a frame is rendered
+
+  private volatile long frames;      // Frames rendered
+  private volatile long skipped;     // Frame slots that passed without a frame
+  private volatile long late;        // Frames that missed their deadline
+  private volatile long dropped;     // Updates thrown away when too far behind
+
+  /**
+     Creates a scheduler that runs updatesPerSecond fixed
+     updates and renders up to framesPerSecond frames a
+     second, running at most maxUpdates updates in a row
+     to catch up.
+  **/
+  public FixedStepScheduler(int updatesPerSecond, int framesPerSecond, int maxUpdates)
+  {
+    StepNanos  = 1000000000L / updatesPerSecond;
+    FrameNanos = 1000000000L / framesPerSecond;
+    MaxUpdates = Math.max(1, maxUpdates);
+  }
+
+  public void run(Target target)
+  {
+    long simulated  = 0L;        // game time simulated so far
+    long previous   = System.nanoTime();
+    long lastFrame  = previous;
+    long deadline   = previous + FrameNanos;
+    long lag        = 0L;        // game time not yet simulated
+
+    while (target.isRunning())
+    {
+      long now = System.nanoTime();
+      lag += now - previous;
+      previous = now;
+
+      /** catch up on the updates that are due **/
+      int updates = 0;
+      while (lag >= StepNanos && updates < MaxUpdates)
+      {
+        long before = simulated / 1000000L;
+        simulated += StepNanos;
+        target.update(simulated / 1000000L - before);
+        lag -= StepNanos;
+        updates++;
+      }
+
+      /** too far behind to catch up; forget the rest rather than spiral **/
+      if (lag >= StepNanos)
+      {
+        dropped += lag / StepNanos;
+        lag %= StepNanos;
+      }
+
+      now = System.nanoTime();
+      target.render((float)lag / StepNanos, (now - lastFrame) / 1000000L);
+      lastFrame = now;
+      frames++;
+
+      /** wait for the next frame **/
+      now = System.nanoTime();
+      if (now > deadline)
+      {
+        late++;
+        long behind = now - deadline;
+        if (behind >= FrameNanos)
+        {
+          skipped += behind / FrameNanos; // frame slots that passed without a frame
+          deadline = now;                 // start pacing again from now
+        }
+      }
+      else
+      {
+        sleepUntil(deadline);
+      }
+      deadline += FrameNanos;
+    }
+  }
+
+  /** Parks until close to the deadline, then spins until it **/
+  private static void sleepUntil(long deadline)
+  {
+    long remaining;
+    while ((remaining = deadline - System.nanoTime()) > SPIN_NANOS)
+    {
+      LockSupport.parkNanos(remaining - SPIN_NANOS);
+    }
+    while (System.nanoTime() < deadline)
+    {
+      Thread.onSpinWait();
+    }
+  }
+
+  public long getSkippedFrames()
+  {
+    return skipped;
+  }
+
+  public long getLateFrames()
+  {
+    return late;
+  }
+
+  public long getFrames()
+  {
+    return frames;
+  }
+
+  /** Number of updates thrown away because the game fell too far behind **/
+  public long getDroppedUpdates()
+  {
+    return dropped;
+  }
+
+  public long getStepNanos()
+  {
+    return StepNanos;
+  }
+
+  /** Returns a one-line summary of the loop statistics **/
+  public String getStats()
+  {
+    return "frames=" + frames + " skipped=" + skipped + " late=" + late + " dropped updates=" + dropped;
+  }
+}
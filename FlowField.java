@@ -0,0 +1,699 @@
+import java.util.*;
+
+/**
+   Tells every tile near a goal (usually the player) which
+   way to walk to get there, so any number of NPCs can chase
+   the goal for the cost of one search.
+
+   The field holds, for every walkable tile within Radius
+   steps of the goal, its distance to the goal and the
+   direction of a neighbouring tile that is one step closer.
+   It is first found by a breadth-first search out from the
+   goal.
+
+   Only the part of the map the goal can affect is ever
+   visited. When the goal moves, even by one tile, the
+   distance of every tile in reach changes (by one step,
+   closer or further), so the field is searched again; but
+   only the tiles within Radius of the old goal are cleared
+   and only those within Radius of the new one are searched,
+   however big the map is. When tiles are blocked or opened,
+   the field is repaired instead: the tiles whose way to the
+   goal went through a blocked tile are cleared, nearest
+   first, and then they and the tiles that got closer are
+   filled in again from their neighbours. Tiles whose
+   distance doesn't change are never visited.
+
+   The field can be kept on the game thread, with update()
+   repairing it in place, or on a thread of its own (see
+   start()). Then there are two copies: the game thread
+   reads the front one while the worker repairs the back
+   one, and update() swaps them once the worker is done.
+   The worker then brings the new back copy up to date by
+   copying over only the tiles that changed.
+**/
+public class FlowField implements Map.TileListener, Runnable
+{
+  private static final Direction[] DIRECTIONS = Direction.values();
+  private static final int[] DX = { 0, 1, 0, -1 };   // by Direction.ordinal()
+  private static final int[] DY = { -1, 0, 1, 0 };
+  private static final int UNREACHED = Integer.MAX_VALUE;
+
+  /** One copy of the field **/
+  private static class Field
+  {
+    int    width;                     // Size of the map, in tiles
+    int    height;
+    int[]  dist;                      // Steps to the goal, or UNREACHED
+    byte[] dir;                       // Direction.ordinal() to walk in, or -1
+    int    goalCol = -1;
+    int    goalRow = -1;
+
+    Field(int width, int height)
+    {
+      this.width  = width;
+      this.height = height;
+      dist = new int[width * height];
+      dir  = new byte[width * height];
+      Arrays.fill(dist, UNREACHED);
+      Arrays.fill(dir, (byte)-1);
+    }
+  }
+
+  /** A change to apply to the field **/
+  private static class Change
+  {
+    boolean goal;                     // a new goal, or else changed tiles
+    boolean whole;                    // the whole map changed (and maybe its size)
+    int col, row, width, height;
+    boolean[] walkable;               // the tiles' new state, read on the game thread
+  }
+
+  private Map map;
+  private int Width;                  // Width of the map, in tiles
+  private int Height;                 // Height of the map, in tiles
+  private int Radius;                 // Tiles further than this from the goal are left out
+  private boolean[] open;             // Can each tile be walked on? (the worker's copy)
+
+  private Field front;                // Read by the game thread
+  private Field back;                 // Repaired by the worker (same as front without one)
+
+  /** Scratch space of the repairs, per tile **/
+  private int[] mark;                 // The repair that last put the tile in changed
+  private int   repair;
+  private int[] changed;              // Tiles whose distance changed in this repair
+  private int   changedCount;
+  private int[][] buckets;            // Tiles waiting to be visited, by distance
+  private int[] bucketSize;
+
+  /** Changes that happened since they were last applied **/
+  private ArrayList<Change> pending;
+  private ArrayList<Change> working;
+
+  private int GoalCol = -1;          // The goal last asked for
+  private int GoalRow = -1;
+
+  private Thread  thread;
+  private boolean bReady;             // Is the back copy ready to be swapped in?
+  private volatile boolean isRunning;
+
+  private long visited;               // Tiles visited by every search and repair, for the stats
+  private long repairs;
+
+  /**
+     Creates a field over the map, reaching radius steps
+     from the goal. There is no goal until setGoal().
+  **/
+  public FlowField(Map map, int radius)
+  {
+    this.map = map;
+    Radius   = Math.max(1, radius);
+    pending  = new ArrayList<Change>();
+    working  = new ArrayList<Change>();
+    buckets  = new int[Radius + 1][];
+    bucketSize = new int[Radius + 1];
+    for (int i = 0; i <= Radius; i++)
+        buckets[i] = new int[16];
+
+    setMap(map.getMapWidth(), map.getMapHeight(), readWalkable(0, 0, map.getMapWidth(), map.getMapHeight()));
+    front = back = new Field(Width, Height);
+    map.addTileListener(this);
+  }
+
+  /**
+     Reads which tiles of the width x height block at (col,
+     row) can be walked on, from the map's collision bits.
+     Must be called on the game thread, which changes them.
+  **/
+  private boolean[] readWalkable(int col, int row, int width, int height)
+  {
+    boolean[] walkable = new boolean[width * height];
+    long[] blocked = map.getCollisionBits();
+    int words = map.getCollisionRowWords();
+    for (int y = 0; y < height; y++)
+    {
+      int base = (row + y) * words;
+      for (int x = 0; x < width; x++)
+      {
+        int c = col + x;
+        walkable[y * width + x] = (blocked[base + (c >> 6)] & (1L << (c & 63))) == 0;
+      }
+    }
+    return walkable;
+  }
+
+  /** Starts over on a map of width x height tiles **/
+  private void setMap(int width, int height, boolean[] walkable)
+  {
+    Width  = width;
+    Height = height;
+    open   = walkable;
+    mark   = new int[Width * Height];
+    changed = new int[64];
+    repair = 0;
+  }
+
+  //---- The game thread ---- //
+
+  /**
+     Repairs and reads the field on a thread of its own from
+     now on. Call before the first setGoal().
+  **/
+  public synchronized void start()
+  {
+    if (thread != null)
+       return;
+    back = new Field(Width, Height);
+    changedCount = -1;                // the worker starts with a copy of the whole field
+    isRunning = true;
+    thread = new Thread(this, "flow-field");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Stops the worker thread (if any) and stops following the map's changes **/
+  public void dispose()
+  {
+    map.removeTileListener(this);
+    synchronized (this)
+    {
+      isRunning = false;
+      notifyAll();
+    }
+  }
+
+  /** Makes the goal the tile at (col, row) **/
+  public synchronized void setGoal(int col, int row)
+  {
+    if (col == GoalCol && row == GoalRow)
+       return;
+    GoalCol = col;
+    GoalRow = row;
+
+    Change c = new Change();
+    c.goal = true;
+    c.col  = col;
+    c.row  = row;
+    pending.add(c);
+    notifyAll();
+  }
+
+  /** Remembers which tiles changed, and how, for the next repair **/
+  public synchronized void tilesChanged(int col, int row, int width, int height)
+  {
+    Change c = new Change();
+    c.col    = col;
+    c.row    = row;
+    c.width  = width;
+    c.height = height;
+
+    /**
+       the tiles are copied now, while the map can't change
+       under us; a whole map (e.g. a reload) may also have a
+       new size, so it starts the field over
+    **/
+    c.whole = (col == 0 && row == 0 && width == map.getMapWidth() && height == map.getMapHeight());
+    c.walkable = readWalkable(col, row, width, height);
+    pending.add(c);
+    notifyAll();
+  }
+
+  /**
+     Brings the field the game thread reads up to date:
+     without a worker the pending changes are repaired right
+     away; with one, the worker's copy is swapped in if it
+     is ready. Call once per update.
+  **/
+  public void update()
+  {
+    synchronized (this)
+    {
+      if (thread != null)
+      {
+        if (bReady)
+        {
+          Field f = front;
+          front  = back;
+          back   = f;
+          bReady = false;
+          notifyAll();
+        }
+        return;
+      }
+      if (pending.isEmpty())
+         return;
+      working.addAll(pending);
+      pending.clear();
+    }
+    apply(working);
+    working.clear();
+  }
+
+  /**
+     Returns the direction to walk in from the tile at (col,
+     row) to get closer to the goal, or null if the tile is
+     the goal or is out of reach.
+  **/
+  public Direction getDirection(int col, int row)
+  {
+    Field f = front;
+    if (col < 0 || row < 0 || col >= f.width || row >= f.height)
+       return null;
+    int d = f.dir[row * f.width + col];
+    return (d < 0) ? null : DIRECTIONS[d];
+  }
+
+  /** Returns Direction.ordinal() of getDirection(), or -1 **/
+  public int getDirectionIndex(int col, int row)
+  {
+    Field f = front;
+    if (col < 0 || row < 0 || col >= f.width || row >= f.height)
+       return -1;
+    return f.dir[row * f.width + col];
+  }
+
+  /** Returns the number of steps from the tile to the goal, or -1 if it is out of reach **/
+  public int getDistance(int col, int row)
+  {
+    Field f = front;
+    if (col < 0 || row < 0 || col >= f.width || row >= f.height)
+       return -1;
+    int d = f.dist[row * f.width + col];
+    return (d == UNREACHED) ? -1 : d;
+  }
+
+  /**
+     Returns a one-line summary of the field statistics
+     (a little behind, while a worker is busy)
+  **/
+  public String getStats()
+  {
+    return "flow repairs=" + repairs + " tiles visited=" + visited
+         + " per repair=" + ((repairs == 0) ? 0 : visited / repairs);
+  }
+
+  //---- The worker thread ---- //
+
+  public void run()
+  {
+    try
+    {
+      repairLoop();
+    }
+    catch (RuntimeException e)
+    {
+      System.err.println("Error repairing the flow field, it won't follow the map any more:\n" + e);
+      e.printStackTrace();
+    }
+  }
+
+  /** Waits for changes and repairs the back copy, until the worker is stopped **/
+  private void repairLoop()
+  {
+    while (true)
+    {
+      synchronized (this)
+      {
+        try
+        {
+          while (isRunning && (bReady || pending.isEmpty()))
+            wait();
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+        if (!isRunning)
+           return;
+
+        /** the copy that was just swapped out is behind by the last repair **/
+        copyChanged(front, back);
+        working.addAll(pending);
+        pending.clear();
+      }
+
+      apply(working);
+      working.clear();
+
+      synchronized (this)
+      {
+        bReady = true;
+      }
+    }
+  }
+
+  /** Copies the tiles the last repair changed from one copy to the other **/
+  private void copyChanged(Field from, Field to)
+  {
+    if (from == to)
+       return;
+    if (to.dist.length != from.dist.length)
+    {
+      /** the map changed size **/
+      to = back = new Field(from.width, from.height);
+      changedCount = -1;
+    }
+    if (changedCount < 0)
+    {
+      /** the whole field was searched again **/
+      System.arraycopy(from.dist, 0, to.dist, 0, from.dist.length);
+      System.arraycopy(from.dir, 0, to.dir, 0, from.dir.length);
+    }
+    else
+    {
+      for (int i = 0; i < changedCount; i++)
+      {
+        int t = changed[i];
+        to.dist[t] = from.dist[t];
+        to.dir[t]  = from.dir[t];
+      }
+    }
+    to.goalCol = from.goalCol;
+    to.goalRow = from.goalRow;
+    changedCount = 0;
+  }
+
+  //---- Repairs ---- //
+
+  /** Applies a batch of changes to the back copy **/
+  private void apply(ArrayList<Change> changes)
+  {
+    Field f = back;
+    if (++repair == Integer.MAX_VALUE)
+    {
+      Arrays.fill(mark, 0);
+      repair = 1;
+    }
+    changedCount = 0;
+    repairs++;
+
+    int goalCol = f.goalCol, goalRow = f.goalRow;
+    boolean resized = false;
+
+    /** put the tile changes in place, remembering the tiles that got blocked or opened **/
+    for (Change c : changes)
+    {
+      if (c.goal)
+      {
+        goalCol = c.col;
+        goalRow = c.row;
+        continue;
+      }
+      if (c.whole)
+      {
+        setMap(c.width, c.height, c.walkable);
+        resized = true;
+        continue;
+      }
+      for (int y = 0; y < c.height; y++)
+      {
+        for (int x = 0; x < c.width; x++)
+        {
+          int t = (c.row + y) * Width + (c.col + x);
+          if (open[t] != c.walkable[y * c.width + x])
+          {
+            open[t] = c.walkable[y * c.width + x];
+            addChanged(t);
+          }
+        }
+      }
+    }
+
+    boolean hasGoal = goalCol >= 0 && goalCol < Width && goalRow >= 0 && goalRow < Height;
+    int goal = hasGoal ? goalRow * Width + goalCol : -1;
+
+    if (resized)
+    {
+      /** the whole map was read again; start from an empty field **/
+      if (f.width != Width || f.height != Height)
+      {
+        f = back = new Field(Width, Height);
+        if (thread == null)
+           front = f;
+      }
+      else
+      {
+        Arrays.fill(f.dist, UNREACHED);
+        Arrays.fill(f.dir, (byte)-1);
+      }
+      f.goalCol = f.goalRow = -1;
+      search(f, goal);
+      changedCount = -1;            // everything changed
+    }
+    else if (goalCol != f.goalCol || goalRow != f.goalRow)
+       search(f, goal);
+    else if (changedCount > 0 && goal >= 0 && !open[goal])
+       search(f, goal);               // nothing can reach a blocked goal
+    else if (changedCount > 0 && goal >= 0)
+       repairFrom(f, goal, changedCount);
+
+    f.goalCol = hasGoal ? goalCol : -1;
+    f.goalRow = hasGoal ? goalRow : -1;
+  }
+
+  /**
+     Clears the tiles around the old goal and searches out
+     from the new goal, as far as Radius.
+  **/
+  private void search(Field f, int goal)
+  {
+    if (f.goalCol >= 0)
+    {
+      int c0 = Math.max(0, f.goalCol - Radius), c1 = Math.min(Width - 1, f.goalCol + Radius);
+      int r0 = Math.max(0, f.goalRow - Radius), r1 = Math.min(Height - 1, f.goalRow + Radius);
+      for (int r = r0; r <= r1; r++)
+      {
+        for (int t = r * Width + c0; t <= r * Width + c1; t++)
+        {
+          if (f.dist[t] != UNREACHED)
+          {
+            f.dist[t] = UNREACHED;
+            f.dir[t]  = -1;
+            addChanged(t);
+          }
+        }
+      }
+    }
+    if (goal < 0 || !open[goal])
+       return;
+
+    /** breadth first; the buckets are the levels **/
+    f.dist[goal] = 0;
+    f.dir[goal]  = -1;
+    addChanged(goal);
+    push(0, goal);
+    for (int d = 0; d <= Radius; d++)
+    {
+      for (int i = 0; i < bucketSize[d]; i++)
+      {
+        int t = buckets[d][i];
+        visited++;
+        int col = t % Width, row = t / Width;
+        for (int k = 0; k < 4; k++)
+        {
+          int nc = col + DX[k], nr = row + DY[k];
+          if (nc < 0 || nr < 0 || nc >= Width || nr >= Height)
+             continue;
+          int n = nr * Width + nc;
+          if (!open[n] || f.dist[n] != UNREACHED || d + 1 > Radius)
+             continue;
+          f.dist[n] = d + 1;
+          f.dir[n]  = (byte)((k + 2) & 3);   // back the way we came
+          addChanged(n);
+          push(d + 1, n);
+        }
+      }
+      bucketSize[d] = 0;
+    }
+  }
+
+  /**
+     Repairs the distances around the first seeds tiles of
+     changed, which were blocked or opened.
+  **/
+  private void repairFrom(Field f, int goal, int seeds)
+  {
+    /** 1. clear every tile whose way to the goal went through a blocked tile, nearest first **/
+    for (int i = 0; i < seeds; i++)
+    {
+      int t = changed[i];
+      if (f.dist[t] != UNREACHED && (t != goal) && (!open[t] || !supported(f, t)))
+         push(f.dist[t], t);
+    }
+    for (int d = 0; d <= Radius; d++)
+    {
+      for (int i = 0; i < bucketSize[d]; i++)
+      {
+        int t = buckets[d][i];
+        if (f.dist[t] != d || (open[t] && supported(f, t)))
+           continue;
+        visited++;
+        f.dist[t] = UNREACHED;
+        f.dir[t]  = -1;
+        addChanged(t);
+
+        /** tiles one further that may have used this one **/
+        int col = t % Width, row = t / Width;
+        for (int k = 0; k < 4; k++)
+        {
+          int nc = col + DX[k], nr = row + DY[k];
+          if (nc < 0 || nr < 0 || nc >= Width || nr >= Height)
+             continue;
+          int n = nr * Width + nc;
+          if (f.dist[n] == d + 1 && n != goal)
+             push(d + 1, n);
+        }
+      }
+      bucketSize[d] = 0;
+    }
+
+    /**
+       2. fill in the opened tiles and the cleared tiles from
+          their neighbours, then spread out from them to every
+          tile that gets closer
+    **/
+    if (open[goal] && f.dist[goal] != 0)
+    {
+      /** the goal itself was opened again **/
+      f.dist[goal] = 0;
+      f.dir[goal]  = -1;
+      addChanged(goal);
+      push(0, goal);
+    }
+    for (int i = 0; i < changedCount; i++)
+    {
+      int t = changed[i];
+      if (t == goal || !open[t])
+         continue;
+      int best = bestNeighbour(f, t);
+      if (best >= 0 && f.dist[best] + 1 <= Radius && f.dist[best] + 1 < f.dist[t])
+      {
+        f.dist[t] = f.dist[best] + 1;
+        f.dir[t]  = (byte)directionTo(t, best);
+      }
+      if (f.dist[t] != UNREACHED)
+         push(f.dist[t], t);
+    }
+    for (int d = 0; d <= Radius; d++)
+    {
+      for (int i = 0; i < bucketSize[d]; i++)
+      {
+        int t = buckets[d][i];
+        if (f.dist[t] != d)
+           continue;
+        visited++;
+        int col = t % Width, row = t / Width;
+        for (int k = 0; k < 4; k++)
+        {
+          int nc = col + DX[k], nr = row + DY[k];
+          if (nc < 0 || nr < 0 || nc >= Width || nr >= Height)
+             continue;
+          int n = nr * Width + nc;
+          if (!open[n] || f.dist[n] <= d + 1 || d + 1 > Radius)
+             continue;
+          f.dist[n] = d + 1;
+          f.dir[n]  = (byte)((k + 2) & 3);
+          addChanged(n);
+          push(d + 1, n);
+        }
+      }
+      bucketSize[d] = 0;
+    }
+
+    /** 3. tiles next to a changed tile may have a better direction now **/
+    int n = changedCount;
+    for (int i = 0; i < n; i++)
+    {
+      int t = changed[i];
+      fixDirection(f, t, goal);
+      int col = t % Width, row = t / Width;
+      for (int k = 0; k < 4; k++)
+      {
+        int nc = col + DX[k], nr = row + DY[k];
+        if (nc >= 0 && nr >= 0 && nc < Width && nr < Height)
+           fixDirection(f, nr * Width + nc, goal);
+      }
+    }
+  }
+
+  /** Does the tile have a neighbour one step closer to the goal? **/
+  private boolean supported(Field f, int t)
+  {
+    int best = bestNeighbour(f, t);
+    return best >= 0 && f.dist[best] == f.dist[t] - 1;
+  }
+
+  /** Returns the open neighbour of a tile closest to the goal, or -1 if none is reached **/
+  private int bestNeighbour(Field f, int t)
+  {
+    int col = t % Width, row = t / Width;
+    int best = -1;
+    int bestDist = UNREACHED;
+    for (int k = 0; k < 4; k++)
+    {
+      int nc = col + DX[k], nr = row + DY[k];
+      if (nc < 0 || nr < 0 || nc >= Width || nr >= Height)
+         continue;
+      int n = nr * Width + nc;
+      if (open[n] && f.dist[n] < bestDist)
+      {
+        best = n;
+        bestDist = f.dist[n];
+      }
+    }
+    return best;
+  }
+
+  /** Points a tile at a neighbour one step closer, if its direction no longer does **/
+  private void fixDirection(Field f, int t, int goal)
+  {
+    if (f.dist[t] == UNREACHED || t == goal)
+    {
+      if (f.dir[t] != -1)
+      {
+        f.dir[t] = -1;
+        addChanged(t);
+      }
+      return;
+    }
+    int d = f.dir[t];
+    if (d >= 0)
+    {
+      int nc = t % Width + DX[d], nr = t / Width + DY[d];
+      if (nc >= 0 && nr >= 0 && nc < Width && nr < Height && f.dist[nr * Width + nc] == f.dist[t] - 1)
+         return;
+    }
+    f.dir[t] = (byte)directionTo(t, bestNeighbour(f, t));
+    addChanged(t);
+  }
+
+  /** Returns Direction.ordinal() of the step from tile a to its neighbour b **/
+  private int directionTo(int a, int b)
+  {
+    if (b == a - Width)
+       return Direction.NORTH.ordinal();
+    if (b == a + 1)
+       return Direction.EAST.ordinal();
+    if (b == a + Width)
+       return Direction.SOUTH.ordinal();
+    return Direction.WEST.ordinal();
+  }
+
+  /** Adds a tile to the changed list, once per repair **/
+  private void addChanged(int t)
+  {
+    if (mark[t] == repair)
+       return;
+    mark[t] = repair;
+    if (changedCount == changed.length)
+       changed = Arrays.copyOf(changed, changedCount * 2);
+    changed[changedCount++] = t;
+  }
+
+  private void push(int d, int t)
+  {
+    if (bucketSize[d] == buckets[d].length)
+       buckets[d] = Arrays.copyOf(buckets[d], bucketSize[d] * 2);
+    buckets[d][bucketSize[d]++] = t;
+  }
+}
@@ -0,0 +1,41 @@
+import jdk.jfr.*;
+
+/**
+   A Java Flight Recorder event committed for every frame
+   the game draws, holding how long each phase of the frame
+   took. Recorded next to the JVM's own GC and safepoint
+   events, it shows which of them a slow frame overlapped.
+
+   Enable it with, for example,
+   java -XX:StartFlightRecording=filename=game.jfr TileTest
+   and add a threshold in the recording settings to keep
+   only the slow frames.
+**/
+@Name("TileTest.Frame")
+@Label("Frame")
+@Category("TileTest")
+@Description("Time spent in each phase of a game frame")
+@StackTrace(false)
+public class FrameEvent extends Event
+{
+  @Label("Frame Number")
+  public long frame;
+
+  @Label("Update") @Timespan(Timespan.NANOSECONDS)
+  public long update;
+
+  @Label("Map") @Timespan(Timespan.NANOSECONDS)
+  public long map;
+
+  @Label("Sprites") @Timespan(Timespan.NANOSECONDS)
+  public long sprites;
+
+  @Label("Spells") @Timespan(Timespan.NANOSECONDS)
+  public long spells;
+
+  @Label("HUD") @Timespan(Timespan.NANOSECONDS)
+  public long hud;
+
+  @Label("Present") @Timespan(Timespan.NANOSECONDS)
+  public long present;
+}
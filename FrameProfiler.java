@@ -0,0 +1,244 @@
+import java.awt.*;
+
+/**
+   Measures how long each phase of a frame takes, so a frame
+   that blows its budget can be blamed on the update, the map,
+   the sprites, the spells, the HUD or presenting the frame.
+
+   The game calls begin() and end() around each phase and
+   endFrame() once the frame is on screen. Every phase is
+   recorded into a LatencyHistogram, both for the whole game
+   and for the last second; the latter is what the on-screen
+   overlay shows. Each frame is also committed as a FrameEvent
+   when a Flight Recorder recording is running.
+
+   Nothing is allocated per frame except the FrameEvent, and
+   the histograms never grow. Must only be used from the game
+   thread.
+**/
+public class FrameProfiler
+{
+  /** The phases of a frame **/
+  public enum Phase
+  {
+    UPDATE, MAP, SPRITES, SPELLS, HUD, PRESENT
+  }
+
+  private static final Phase[] PHASES = Phase.values();
+
+  // how often the overlay's numbers are refreshed
+  private static final long WINDOW_NANOS = 1000000000L;
+
+  private LatencyHistogram[] total;      // each phase, since the game started
+  private LatencyHistogram[] window;     // each phase, since the overlay was last refreshed
+  private LatencyHistogram totalFrames;  // whole frames, since the game started
+  private LatencyHistogram windowFrames; // whole frames, since the overlay was last refreshed
+
+  private long[] phaseNanos;             // time spent in each phase during this frame
+  private long[] startTime;              // when each phase was last begun
+  private long frameStart;               // when this frame's first phase began, 0 before
+  private long windowStart;              // when the overlay was last refreshed
+  private long frames;                   // frames recorded
+  private FrameEvent event;              // this frame's JFR event
+
+  private String[] overlay;              // the overlay's lines
+  private boolean bEnabled;              // Record the timings?
+  private boolean bOverlay;              // Draw the overlay?
+
+  public FrameProfiler(boolean enabled)
+  {
+    bEnabled     = enabled;
+    total        = new LatencyHistogram[PHASES.length];
+    window       = new LatencyHistogram[PHASES.length];
+    for (int i = 0; i < PHASES.length; i++)
+    {
+      total[i]  = new LatencyHistogram();
+      window[i] = new LatencyHistogram();
+    }
+    totalFrames  = new LatencyHistogram();
+    windowFrames = new LatencyHistogram();
+    phaseNanos   = new long[PHASES.length];
+    startTime    = new long[PHASES.length];
+    overlay      = new String[0];
+    windowStart  = System.nanoTime();
+  }
+
+  /** Marks the start of a phase **/
+  public void begin(Phase phase)
+  {
+    if (!bEnabled)
+       return;
+
+    if (frameStart == 0)
+    {
+      event = new FrameEvent();
+      event.begin();
+      frameStart = System.nanoTime();
+    }
+    startTime[phase.ordinal()] = System.nanoTime();
+  }
+
+  /**
+     Marks the end of a phase. A phase that runs several
+     times in a frame (e.g. several updates to catch up)
+     is added up.
+  **/
+  public void end(Phase phase)
+  {
+    if (!bEnabled)
+       return;
+    phaseNanos[phase.ordinal()] += System.nanoTime() - startTime[phase.ordinal()];
+  }
+
+  /** Records the frame whose phases were just measured **/
+  public void endFrame()
+  {
+    if (!bEnabled || frameStart == 0)
+       return;
+
+    long now = System.nanoTime();
+    for (int i = 0; i < PHASES.length; i++)
+    {
+      total[i].record(phaseNanos[i]);
+      window[i].record(phaseNanos[i]);
+    }
+    totalFrames.record(now - frameStart);
+    windowFrames.record(now - frameStart);
+    frames++;
+
+    event.end();
+    if (event.shouldCommit())
+    {
+      event.frame   = frames;
+      event.update  = phaseNanos[Phase.UPDATE.ordinal()];
+      event.map     = phaseNanos[Phase.MAP.ordinal()];
+      event.sprites = phaseNanos[Phase.SPRITES.ordinal()];
+      event.spells  = phaseNanos[Phase.SPELLS.ordinal()];
+      event.hud     = phaseNanos[Phase.HUD.ordinal()];
+      event.present = phaseNanos[Phase.PRESENT.ordinal()];
+      event.commit();
+    }
+    event = null;
+
+    java.util.Arrays.fill(phaseNanos, 0L);
+    frameStart = 0;
+
+    if (now - windowStart >= WINDOW_NANOS)
+    {
+      if (bOverlay)
+         overlay = summarize(window, windowFrames);
+      for (LatencyHistogram h : window)
+          h.reset();
+      windowFrames.reset();
+      windowStart = now;
+    }
+  }
+
+  /** Forgets everything recorded so far, e.g. the frames of the loading screen **/
+  public void reset()
+  {
+    for (int i = 0; i < PHASES.length; i++)
+    {
+      total[i].reset();
+      window[i].reset();
+    }
+    totalFrames.reset();
+    windowFrames.reset();
+    java.util.Arrays.fill(phaseNanos, 0L);
+    frameStart  = 0;
+    frames      = 0;
+    event       = null;
+    windowStart = System.nanoTime();
+  }
+
+  /**
+     Draws the last second's timings in the top left corner
+     of the frame, if the overlay is turned on.
+  **/
+  public void drawOverlay(Graphics2D g, Font font, FontMetrics metrics)
+  {
+    if (!bOverlay || overlay.length == 0)
+       return;
+
+    int lineHeight = metrics.getHeight();
+    int width = 0;
+    for (String line : overlay)
+        width = Math.max(width, metrics.stringWidth(line));
+
+    g.setColor(new Color(0, 0, 0, 160));
+    g.fillRect(10, 30, width + 20, lineHeight * overlay.length + 10);
+
+    g.setFont(font);
+    g.setColor(Color.WHITE);
+    int y = 30 + lineHeight;
+    for (String line : overlay)
+    {
+      g.drawString(line, 20, y);
+      y += lineHeight;
+    }
+  }
+
+  /**
+     Returns the part of the frame drawOverlay() covers, or
+     null if it draws nothing.
+  **/
+  public Rectangle getOverlayBounds(FontMetrics metrics)
+  {
+    if (!bOverlay || overlay.length == 0 || metrics == null)
+       return null;
+
+    int width = 0;
+    for (String line : overlay)
+        width = Math.max(width, metrics.stringWidth(line));
+    return new Rectangle(10, 30, width + 20, metrics.getHeight() * overlay.length + 10);
+  }
+
+  /** Turns the overlay on or off **/
+  public void toggleOverlay()
+  {
+    setOverlay(!bOverlay);
+  }
+
+  public void setOverlay(boolean overlay)
+  {
+    bOverlay = overlay && bEnabled;
+    if (!bOverlay)
+       this.overlay = new String[0];
+  }
+
+  public boolean isOverlay()
+  {
+    return bOverlay;
+  }
+
+  public boolean isEnabled()
+  {
+    return bEnabled;
+  }
+
+  /** Returns the histogram of a phase's timings since the game started **/
+  public LatencyHistogram getHistogram(Phase phase)
+  {
+    return total[phase.ordinal()];
+  }
+
+  /** Returns a report of every phase's timings since the game started **/
+  public String getReport()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Frame timings (").append(frames).append(" frames):\n");
+    for (String line : summarize(total, totalFrames))
+        sb.append("  ").append(line).append('\n');
+    return sb.toString();
+  }
+
+  /** Returns one line per phase, plus one for the whole frame **/
+  private static String[] summarize(LatencyHistogram[] phases, LatencyHistogram frame)
+  {
+    String[] lines = new String[PHASES.length + 1];
+    for (int i = 0; i < PHASES.length; i++)
+        lines[i] = String.format("%-8s %s", PHASES[i], phases[i]);
+    lines[PHASES.length] = String.format("%-8s %s", "FRAME", frame);
+    return lines;
+  }
+}
@@ -0,0 +1,263 @@
+import java.io.*;
+import java.util.*;
+
+/**
+   The game's settings, read once from the .INI file and
+   shared by every part of the game that needs them.
+
+   The file is made up of key=value lines; lines starting
+   with '[' are section headers and, like blank lines, are
+   skipped. Keys that aren't known to this class are kept
+   and can be read with get().
+**/
+public class GameConfig
+{
+  /** Game Properties **/
+  private String  VersionID;         // Game version
+  private long    AssetCacheBytes;   // Budget of the shared AssetCache
+  private boolean bHotReload;        // Reload the map and tile sheet when they change?
+
+  /** Window Properties **/
+  private int     FrameWidth;        // The width of the Frame
+  private int     FrameHeight;       // The height of the Frame
+
+  /** Tile Properties **/
+  private String  ImgFile;           // The tile sheet
+  private int     TileCountX;        // The number of tiles in each row of the sheet
+  private int     TileCountY;        // The number of tiles in each column of the sheet
+  private int     TileWidth;         // The width of a single tile
+  private int     TileHeight;        // The height of a single tile
+
+  /** Map Properties **/
+  private String  MapFile;           // The file the map data is stored in
+  private int     MapWidth;          // Width of the entire map, in tiles
+  private int     MapHeight;         // Height of the entire map, in tiles
+  private int     ChunkSize;         // Width and height of a chunk, in tiles
+  private long    ChunkBudget;       // Memory the loaded chunks may use, in bytes
+  private int     ChunkImages;       // Number of pre-rendered chunk images to keep
+
+  // Every key=value pair in the file, including unknown ones
+  private LinkedHashMap<String, String> values;
+
+  /** Creates a configuration holding the default settings **/
+  public GameConfig()
+  {
+    VersionID       = "";
+    AssetCacheBytes = 16 * 1024 * 1024L;
+    FrameWidth      = 1024;
+    FrameHeight     = 768;
+    TileWidth       = 32;
+    TileHeight      = 32;
+    MapFile         = "map.dat";
+    ChunkSize       = 16;
+    ChunkBudget     = 4096 * 1024L;
+    ChunkImages     = 32;
+    values          = new LinkedHashMap<String, String>();
+  }
+
+  /**
+     Reads the configuration from an .INI file found on the
+     class path (next to the game's classes), or from the
+     file system if it isn't there.
+  **/
+  public static GameConfig load(String iniFile)
+  {
+    GameConfig config = new GameConfig();
+    try
+    {
+      InputStream in = GameConfig.class.getResourceAsStream(iniFile);
+      if (in == null)
+         in = new FileInputStream(iniFile);
+      config.read(in);
+    }
+    catch (IOException e)
+    {
+      System.err.println("Error reading file("+iniFile+"):\n"+e);
+    }
+    return config;
+  }
+
+  /**
+     Reads key=value lines from the stream, overriding the
+     current settings. The stream is closed afterwards.
+  **/
+  public void read(InputStream in) throws IOException
+  {
+    BufferedReader br = new BufferedReader(new InputStreamReader(in));
+    try
+    {
+      String line;
+      while ((line = br.readLine()) != null)
+      {
+        line = line.trim();
+        if (line.length() == 0)     // blank line
+           continue;
+        if (line.startsWith("["))   // section header
+           continue;
+
+        int eq = line.indexOf('=');
+        if (eq < 0)
+        {
+          System.err.println("Ignoring config line: " + line);
+          continue;
+        }
+        set(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+      }
+    }
+    finally
+    {
+      br.close();
+    }
+  }
+
+  /** Changes a single setting **/
+  public void set(String key, String value)
+  {
+    values.put(key, value);
+    try
+    {
+      if (key.equals("Version"))
+         VersionID = value;
+      else if (key.equals("AssetCacheKB"))
+         AssetCacheBytes = Long.parseLong(value) * 1024L;
+      else if (key.equals("HotReload"))
+         bHotReload = Boolean.parseBoolean(value);
+      else if (key.equals("FrameWidth"))
+         FrameWidth = Integer.parseInt(value);
+      else if (key.equals("FrameHeight"))
+         FrameHeight = Integer.parseInt(value);
+      else if (key.equals("ImgFile"))
+         ImgFile = value;
+      else if (key.equals("TileCountX"))
+         TileCountX = Integer.parseInt(value);
+      else if (key.equals("TileCountY"))
+         TileCountY = Integer.parseInt(value);
+      else if (key.equals("TileWidth"))
+         TileWidth = Integer.parseInt(value);
+      else if (key.equals("TileHeight"))
+         TileHeight = Integer.parseInt(value);
+      else if (key.equals("MapFile"))
+         MapFile = value;
+      else if (key.equals("MapWidth"))
+         MapWidth = Integer.parseInt(value);
+      else if (key.equals("MapHeight"))
+         MapHeight = Integer.parseInt(value);
+      else if (key.equals("ChunkSize"))
+         ChunkSize = Integer.parseInt(value);
+      else if (key.equals("ChunkBudgetKB"))
+         ChunkBudget = Long.parseLong(value) * 1024L;
+      else if (key.equals("ChunkImageCacheSize"))
+         ChunkImages = Integer.parseInt(value);
+    }
+    catch (NumberFormatException e)
+    {
+      System.err.println("Bad value for " + key + ": " + value);
+    }
+  }
+
+  /** Returns the raw value of a key, or def if it isn't set **/
+  public String get(String key, String def)
+  {
+    String value = values.get(key);
+    return (value == null) ? def : value;
+  }
+
+  /** Returns the value of a key as an int, or def if it isn't set or isn't a number **/
+  public int getInt(String key, int def)
+  {
+    try
+    {
+      return Integer.parseInt(get(key, Integer.toString(def)));
+    }
+    catch (NumberFormatException e)
+    {
+      return def;
+    }
+  }
+
+  /** Returns the value of a key as a boolean, or def if it isn't set **/
+  public boolean getBoolean(String key, boolean def)
+  {
+    return Boolean.parseBoolean(get(key, Boolean.toString(def)));
+  }
+
+  public String getVersion()
+  {
+    return VersionID;
+  }
+
+  public long getAssetCacheBytes()
+  {
+    return AssetCacheBytes;
+  }
+
+  public boolean isHotReload()
+  {
+    return bHotReload;
+  }
+
+  public int getFrameWidth()
+  {
+    return FrameWidth;
+  }
+
+  public int getFrameHeight()
+  {
+    return FrameHeight;
+  }
+
+  public String getImgFile()
+  {
+    return ImgFile;
+  }
+
+  public int getTileCountX()
+  {
+    return TileCountX;
+  }
+
+  public int getTileCountY()
+  {
+    return TileCountY;
+  }
+
+  public int getTileWidth()
+  {
+    return TileWidth;
+  }
+
+  public int getTileHeight()
+  {
+    return TileHeight;
+  }
+
+  public String getMapFile()
+  {
+    return MapFile;
+  }
+
+  public int getMapWidth()
+  {
+    return MapWidth;
+  }
+
+  public int getMapHeight()
+  {
+    return MapHeight;
+  }
+
+  public int getChunkSize()
+  {
+    return ChunkSize;
+  }
+
+  public long getChunkBudget()
+  {
+    return ChunkBudget;
+  }
+
+  public int getChunkImages()
+  {
+    return ChunkImages;
+  }
+}
@@ -0,0 +1,82 @@
+import java.awt.*;
+import java.io.*;
+import javax.imageio.*;
+
+/**
+   Runs the game world without a window, for automated
+   performance tests and servers without a display.
+
+   Usage:
+       java HeadlessRunner [ticks] [frame.png]
+
+   The world is loaded from TileTest.ini, then updated ticks
+   times (1000 by default) as fast as possible, with the
+   player walking in a square. After each update a frame is
+   drawn into an image in memory. The frame timings are
+   printed at the end, and the last frame is written to
+   frame.png if given.
+
+   java.awt.headless is turned on, so no display is needed.
+**/
+public final class HeadlessRunner
+{
+  // ticks spent walking along each side of the square
+  private static final int SIDE = 8;
+
+  private static final Direction[] PATH = { Direction.EAST, Direction.SOUTH, Direction.WEST, Direction.NORTH };
+
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    int ticks = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+    String frameFile = (args.length > 1) ? args[1] : null;
+
+    GameConfig config = GameConfig.load(TileTest.INI_FILE);
+    AssetCache.getDefault().setBudget(config.getAssetCacheBytes());
+
+    /** files can't change underneath a test run **/
+    config.set("HotReload", "false");
+
+    ImageSurface surface = new ImageSurface(config.getFrameWidth(), config.getFrameHeight());
+    World world = new World(config, surface.getWidth(), surface.getHeight());
+    FrameProfiler profiler = new FrameProfiler(true);
+    world.setProfiler(profiler);
+    if (!world.load())
+       System.exit(1);
+
+    long step = 1000L / config.getInt("UpdateRate", 100);
+    long start = System.nanoTime();
+    for (int t = 0; t < ticks; t++)
+    {
+      profiler.begin(FrameProfiler.Phase.UPDATE);
+      world.update(step);
+      world.move(PATH[(t / SIDE) % PATH.length]);
+      profiler.end(FrameProfiler.Phase.UPDATE);
+
+      Graphics2D g = surface.getDrawGraphics();
+      world.draw(g, 1f);
+      profiler.begin(FrameProfiler.Phase.PRESENT);
+      surface.show(g);
+      profiler.end(FrameProfiler.Phase.PRESENT);
+      profiler.endFrame();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    System.out.printf("%d ticks in %.1f ms (%.0f ticks/s)%n", ticks, elapsed / 1e6, ticks * 1e9 / elapsed);
+    System.out.print(profiler.getReport());
+    System.out.println(world.getMap().getMemoryReport());
+
+    if (frameFile != null)
+    {
+      ImageIO.write(surface.getImage(), "png", new File(frameFile));
+      System.out.println("Last frame written to " + frameFile);
+    }
+
+    world.dispose();
+    surface.dispose();
+  }
+
+  /** Can't create a HeadlessRunner **/
+  private HeadlessRunner(){}
+}
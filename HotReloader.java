@@ -0,0 +1,160 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+   Watches a map's data files and tile sheets (those of
+   every layer), and reloads whichever ones change while
+   the game is running, so level designers can see their
+   edits without restarting.
+
+   The files are watched and re-read on a background thread.
+   The new tiles or textures are only put in place when the
+   game thread calls applyPending(), so the map never
+   changes in the middle of a frame.
+**/
+public class HotReloader implements Runnable
+{
+  // how long a file has to stay unchanged before it is reloaded (editors often write in steps)
+  private static final long SETTLE_MILLIS = 200;
+
+  private Map map;                              // The map being reloaded
+  private HashSet<Path> mapFiles;               // The map's data files
+  private HashSet<Path> imgFiles;               // The map's tile sheets
+  private WatchService watcher;
+  private Thread thread;
+  private volatile boolean isRunning;
+
+  // Reloads that have been read and are waiting for the game thread
+  private ConcurrentLinkedQueue<Runnable> pending;
+
+  public HotReloader(Map map)
+  {
+    this.map = map;
+    mapFiles = toPaths(map.getMapFiles());
+    imgFiles = toPaths(map.getImgFiles());
+    pending  = new ConcurrentLinkedQueue<Runnable>();
+  }
+
+  private static HashSet<Path> toPaths(java.util.List<String> files)
+  {
+    HashSet<Path> paths = new HashSet<Path>();
+    for (String f : files)
+        paths.add(Paths.get(f).toAbsolutePath().normalize());
+    return paths;
+  }
+
+  /** Starts watching the files **/
+  public void start() throws IOException
+  {
+    watcher = FileSystems.getDefault().newWatchService();
+
+    HashSet<Path> dirs = new HashSet<Path>();
+    for (Path f : mapFiles)
+        dirs.add(f.getParent());
+    for (Path f : imgFiles)
+        dirs.add(f.getParent());
+    for (Path dir : dirs)
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+
+    isRunning = true;
+    thread = new Thread(this, "hot-reload");
+    thread.setDaemon(true);
+    thread.start();
+    System.out.println("Watching " + dirs + " for changes");
+  }
+
+  /** Stops watching the files **/
+  public void stop()
+  {
+    isRunning = false;
+    if (thread != null)
+       thread.interrupt();
+    try
+    {
+      if (watcher != null)
+         watcher.close();
+    }
+    catch (IOException e) {}
+  }
+
+  /**
+     Puts any reloaded tiles or textures in place. Must be
+     called from the game thread (between frames). Returns
+     true if anything changed.
+  **/
+  public boolean applyPending()
+  {
+    boolean applied = false;
+    Runnable r;
+    while ((r = pending.poll()) != null)
+    {
+      r.run();
+      applied = true;
+    }
+    return applied;
+  }
+
+  /** Queues a reload, or reports that it was skipped because the files couldn't be read **/
+  private void queue(Runnable reload, List<String> files)
+  {
+    if (reload != null)
+       pending.add(reload);
+    else
+       System.err.println("Skipped reloading " + files + "; keeping what is loaded");
+  }
+
+  /** Waits for file changes and reads the changed files **/
+  public void run()
+  {
+    while (isRunning)
+    {
+      try
+      {
+        WatchKey key = watcher.take();
+        boolean mapChanged = false;
+        boolean imgChanged = false;
+
+        /** collect everything that happens until the files settle down **/
+        while (key != null)
+        {
+          Path dir = (Path)key.watchable();
+          for (WatchEvent<?> event : key.pollEvents())
+          {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+              mapChanged = true;
+              imgChanged = !imgFiles.isEmpty();
+              continue;
+            }
+            Path changed = dir.resolve((Path)event.context()).toAbsolutePath().normalize();
+            if (mapFiles.contains(changed))
+               mapChanged = true;
+            if (imgFiles.contains(changed))
+               imgChanged = true;
+          }
+          key.reset();
+          key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        if (mapChanged)
+           queue(map.prepareMapReload(), map.getMapFiles());
+        if (imgChanged)
+           queue(map.prepareTextureReload(), map.getImgFiles());
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      catch (ClosedWatchServiceException e)
+      {
+        return;
+      }
+      catch (RuntimeException e)
+      {
+        System.err.println("Error reloading:\n" + e);
+      }
+    }
+  }
+}
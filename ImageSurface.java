@@ -0,0 +1,102 @@
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+   A RenderSurface that draws into a BufferedImage.
+
+   Without a target component, the frames simply stay in the
+   image, which works without any display (e.g. with
+   java.awt.headless=true) and can be read back with
+   getImage(). With a target, each frame is also copied onto
+   the component, which is how the game draws when no
+   BufferStrategy is available.
+**/
+public class ImageSurface implements RenderSurface
+{
+  private BufferedImage image;       // The frame
+  private Graphics2D    graphics;    // Draws into the image (created once, reused every frame)
+  private Component     target;      // Where frames are copied to, or null
+
+  /** Creates a surface that only draws into an image **/
+  public ImageSurface(int width, int height)
+  {
+    this(null, width, height);
+  }
+
+  /** Creates a surface that copies each frame onto target **/
+  public ImageSurface(Component target, int width, int height)
+  {
+    this.target = target;
+    image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    graphics = image.createGraphics();
+  }
+
+  public int getWidth()
+  {
+    return image.getWidth();
+  }
+
+  public int getHeight()
+  {
+    return image.getHeight();
+  }
+
+  public Graphics2D getDrawGraphics()
+  {
+    return graphics;
+  }
+
+  /** Copies the frame onto the target, if there is one **/
+  public boolean show(Graphics2D g)
+  {
+    return show(g, null);
+  }
+
+  /** Copies the region of the frame onto the target, if there is one **/
+  public boolean show(Graphics2D g, Rectangle region)
+  {
+    if (target == null)
+       return true;
+
+    try
+    {
+      // get the target's graphics context
+      Graphics tg = target.getGraphics();
+      if (tg != null)
+      {
+        // draw the frame using the graphics context
+        if (region == null)
+           tg.drawImage(image, 0, 0, null);
+        else
+        {
+          int x1 = region.x + region.width;
+          int y1 = region.y + region.height;
+          tg.drawImage(image, region.x, region.y, x1, y1, region.x, region.y, x1, y1, null);
+        }
+        tg.dispose();
+      }
+
+      // sync the display
+      Toolkit.getDefaultToolkit().sync();
+    }
+    catch (Exception e) {} // ignore it
+    return true;
+  }
+
+  /** The image is only ever drawn into by the game, so it always holds the last frame **/
+  public boolean preservesContents()
+  {
+    return true;
+  }
+
+  /** Returns the image holding the last frame **/
+  public BufferedImage getImage()
+  {
+    return image;
+  }
+
+  public void dispose()
+  {
+    graphics.dispose();
+  }
+}
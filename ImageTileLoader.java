@@ -7,64 +7,81 @@ import java.io.*;
    This ImageTileLoader only works with tiled images
    of size 32x32.
 
-   This class is composed entirely of static methods
-   and cannot be instantiated.
+   Each loader holds its own tiled image, so loaders used
+   by different worlds (on different threads) don't get in
+   each other's way.
 **/
 public final class ImageTileLoader
 {
   // The tiled image that contains all of the tiles
-  static BufferedImage tiledImage = new BufferedImage(32,32,BufferedImage.TYPE_INT_ARGB);
+  private BufferedImage tiledImage;
+
+  /** Creates a loader with no tiled image **/
+  public ImageTileLoader()
+  {
+  }
+
+  /** Creates a loader for the given tiled image **/
+  public ImageTileLoader(BufferedImage tiledImage)
+  {
+    this.tiledImage = tiledImage;
+  }
   
   /**
      Sets the image that will be used as the tiledImage,
      using a String as the img URL.
   **/
-  public static void setTiledImage(String imgURL)
+  public void setTiledImage(String imgURL)
   {
     if (imgURL == null)
-       tiledImage = null;
-    try
     {
-      tiledImage = ImageIO.read(new File(imgURL));
+      tiledImage = null;
+      return;
     }
-    catch (IOException e){}
+    setTiledImage(new File(imgURL));
   }
   
   /**
      Sets the image that will be used as the tiledImage,
      using a File as the img URL.
   **/
-  public static void setTiledImage(File f)
+  public void setTiledImage(File f)
   {
     if (f == null)
-       tiledImage = null;
+    {
+      tiledImage = null;
+      return;
+    }
     try
     {
       tiledImage = ImageIO.read(f);
     }
-    catch (IOException e){}
+    catch (IOException e)
+    {
+      System.out.println("Error reading img("+f+").\n"+e);
+    }
+  }
+
+  /** Sets the image that will be used as the tiledImage **/
+  public void setTiledImage(BufferedImage img)
+  {
+    tiledImage = img;
   }
   
   /**
      Clears the tiledImage by setting it to null
   **/
-  public static void clearTiledImage()
+  public void clearTiledImage()
   {
     tiledImage = null;
   }
 
   /** Returns the image corresponding to the coordinates
-      (32x,32y) on the tiledImage.
+      (32x,32y) on the tiledImage. The tile is a compatible
+      copy, so it stays valid after the tiledImage is cleared.
   **/
-  public static BufferedImage getTile(int x, int y)
+  public BufferedImage getTile(int x, int y)
   {
-    return tiledImage.getSubimage(x*32, y*32, 32, 32);
+    return ImageUtils.copyRegion(tiledImage, x*32, y*32, 32, 32);
   }
-
-  /** Can't create an ImageTileLoader **/
-  private ImageTileLoader(){}
 }
-  
-
-
-
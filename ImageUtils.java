@@ -0,0 +1,95 @@
+import java.awt.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import java.io.*;
+
+/**
+   Prepares images so that Java2D can draw them quickly.
+
+   Images decoded by ImageIO come in whatever pixel format
+   the file happens to use, and images made by getSubimage()
+   share their parent's raster. Java2D can't accelerate
+   either of those as well as it can an image it created
+   itself, so every texture and sprite image is copied into
+   an image from GraphicsConfiguration.createCompatibleImage()
+   before it is used.
+
+   This class is composed entirely of static methods
+   and cannot be instantiated.
+**/
+public final class ImageUtils
+{
+  /**
+     Returns the configuration images should be compatible
+     with, or null when running without a display.
+  **/
+  public static GraphicsConfiguration getConfiguration()
+  {
+    if (GraphicsEnvironment.isHeadless())
+       return null;
+    return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+  }
+
+  /**
+     Creates an empty image compatible with the screen,
+     using the given Transparency.
+  **/
+  public static BufferedImage createCompatibleImage(int width, int height, int transparency)
+  {
+    GraphicsConfiguration gc = getConfiguration();
+    if (gc != null)
+       return gc.createCompatibleImage(width, height, transparency);
+    return new BufferedImage(width, height,
+                             (transparency == Transparency.OPAQUE) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+  }
+
+  /**
+     Copies the image into a new image compatible with the
+     screen, keeping its transparency.
+  **/
+  public static BufferedImage toCompatibleImage(BufferedImage src)
+  {
+    return copyRegion(src, 0, 0, src.getWidth(), src.getHeight());
+  }
+
+  /**
+     Copies the width x height region of src starting at
+     (x, y) into a new image compatible with the screen.
+     Unlike getSubimage(), the copy has its own raster.
+  **/
+  public static BufferedImage copyRegion(BufferedImage src, int x, int y, int width, int height)
+  {
+    BufferedImage dst = createCompatibleImage(width, height, src.getColorModel().getTransparency());
+    Graphics2D g = dst.createGraphics();
+    g.setComposite(AlphaComposite.Src);
+    g.drawImage(src, 0, 0, width, height, x, y, x + width, y + height, null);
+    g.dispose();
+    return dst;
+  }
+
+  /**
+     Reads an image file and returns a compatible copy of it,
+     or null if it couldn't be read.
+  **/
+  public static BufferedImage loadImage(String imgURL)
+  {
+    try
+    {
+      BufferedImage img = ImageIO.read(new File(imgURL));
+      if (img == null)
+      {
+        System.out.println("Error reading img("+imgURL+"): unknown format");
+        return null;
+      }
+      return toCompatibleImage(img);
+    }
+    catch (IOException e)
+    {
+      System.out.println("Error reading img("+imgURL+").\n"+e);
+      return null;
+    }
+  }
+
+  /** Can't create an ImageUtils **/
+  private ImageUtils(){}
+}
@@ -6,12 +6,8 @@ import javax.swing.SwingUtilities;
 
 public class InputManager implements KeyListener
 {
-  /** An invisible cursor **/
-  public static final Cursor INVISIBLE_CURSOR =
-         Toolkit.getDefaultToolkit().createCustomCursor(
-            Toolkit.getDefaultToolkit().getImage(""),
-            new Point(0,0),
-            "Invisible");
+  /** An invisible cursor (created when first asked for) **/
+  private static Cursor invisibleCursor;
   
   private static final int NUM_KEY_CODES = 600;
   private GameAction[] keyActions = new GameAction[NUM_KEY_CODES];
@@ -35,6 +31,21 @@ public class InputManager implements KeyListener
   {
     comp.setCursor(cursor);
   }
+
+  /**
+     Returns an invisible cursor. It isn't created until it
+     is needed, because creating a cursor fails without a
+     display, and nothing else here needs one.
+  **/
+  public static synchronized Cursor getInvisibleCursor()
+  {
+    if (invisibleCursor == null)
+       invisibleCursor = Toolkit.getDefaultToolkit().createCustomCursor(
+            Toolkit.getDefaultToolkit().getImage(""),
+            new Point(0,0),
+            "Invisible");
+    return invisibleCursor;
+  }
   
   /**
      Maps a GameAction to a key. The key codes are
@@ -0,0 +1,140 @@
+/**
+   Records durations (in nanoseconds) into a fixed number of
+   buckets, so it can run for as long as the game does
+   without using any more memory or allocating anything.
+
+   Each power of two is split into SUB_BUCKETS linear
+   buckets, so any value is known to within about 6% and
+   percentiles are accurate to that. The exact maximum
+   and minimum are kept as well.
+**/
+public class LatencyHistogram
+{
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;   // buckets per power of two
+  private static final int MAX_BITS = 40;                 // up to 2^40 ns (about 18 minutes)
+
+  private long[] counts;             // Number of values in each bucket
+  private long   count;              // Number of values recorded
+  private long   sum;                // Sum of the values recorded
+  private long   min;                // Smallest value recorded
+  private long   max;                // Largest value recorded
+
+  public LatencyHistogram()
+  {
+    counts = new long[(MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS];
+    reset();
+  }
+
+  /** Records a duration, in nanoseconds **/
+  public void record(long nanos)
+  {
+    if (nanos < 0)
+       nanos = 0;
+    counts[bucket(nanos)]++;
+    count++;
+    sum += nanos;
+    if (nanos < min)
+       min = nanos;
+    if (nanos > max)
+       max = nanos;
+  }
+
+  /** Forgets every value recorded **/
+  public void reset()
+  {
+    java.util.Arrays.fill(counts, 0L);
+    count = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  /** Adds every value recorded by another histogram to this one **/
+  public void add(LatencyHistogram other)
+  {
+    for (int i = 0; i < counts.length; i++)
+        counts[i] += other.counts[i];
+    count += other.count;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+     Returns the value below which the given fraction
+     (0 to 1) of the recorded values lie, e.g. 0.99 for
+     the 99th percentile.
+  **/
+  public long getPercentile(double fraction)
+  {
+    if (count == 0)
+       return 0;
+
+    long rank = (long)Math.ceil(fraction * count);
+    if (rank < 1)
+       rank = 1;
+
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++)
+    {
+      seen += counts[i];
+      if (seen >= rank)
+         return Math.min(max, Math.max(min, highestValue(i)));
+    }
+    return max;
+  }
+
+  public long getCount()
+  {
+    return count;
+  }
+
+  public long getMax()
+  {
+    return max;
+  }
+
+  public long getMin()
+  {
+    return (count == 0) ? 0 : min;
+  }
+
+  public long getMean()
+  {
+    return (count == 0) ? 0 : sum / count;
+  }
+
+  /** Returns the bucket a value falls in **/
+  private static int bucket(long value)
+  {
+    if (value < SUB_BUCKETS)
+       return (int)value;
+
+    int bits = 64 - Long.numberOfLeadingZeros(value);   // value < 2^bits
+    if (bits > MAX_BITS)
+       return (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS - 1;
+
+    int shift = bits - SUB_BITS - 1;
+    int sub = (int)(value >>> shift) - SUB_BUCKETS;     // the top SUB_BITS bits after the leading one
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  /** Returns the highest value that falls in a bucket **/
+  private static long highestValue(int bucket)
+  {
+    if (bucket < SUB_BUCKETS)
+       return bucket;
+
+    int shift = bucket / SUB_BUCKETS - 1;
+    long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /** Returns "p50/p99/max" in milliseconds **/
+  public String toString()
+  {
+    return String.format("p50 %.2f p99 %.2f max %.2f ms",
+                         getPercentile(0.50) / 1e6, getPercentile(0.99) / 1e6, getMax() / 1e6);
+  }
+}
@@ -0,0 +1,212 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   Runs the game's loading steps concurrently on a small
+   pool of threads.
+
+   Each step is added along with the steps it depends on,
+   and starts as soon as all of them have finished, so
+   independent work (decoding images, parsing the map, ...)
+   overlaps instead of adding up. The pipeline keeps track
+   of how far along it is, so a loading screen can be drawn
+   meanwhile, and of how long each step took.
+**/
+public class LoadingPipeline
+{
+  /** A step of the pipeline **/
+  public class Task
+  {
+    private String name;
+    private CompletableFuture<Void> future;
+    private volatile long startTime;    // System.nanoTime() when it started, 0 before
+    private volatile long endTime;      // System.nanoTime() when it finished, 0 before
+    private volatile String thread;     // the thread that ran it
+
+    private Task(String name)
+    {
+      this.name = name;
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+
+    /** How long the step took, in milliseconds **/
+    public long getMillis()
+    {
+      return (endTime == 0) ? 0 : (endTime - startTime) / 1000000L;
+    }
+
+    public boolean isDone()
+    {
+      return future.isDone();
+    }
+  }
+
+  private ExecutorService executor;
+  private CompletableFuture<Void> gate;     // completed by start()
+  private ArrayList<Task> tasks;
+  private AtomicInteger finished;           // number of steps finished
+  private AtomicReference<Throwable> failure; // what the first step that failed threw, if any
+  private long startTime;                   // when start() was called
+  private long endTime;                     // when the last step finished
+
+  /** Creates a pipeline that runs at most threads steps at once **/
+  public LoadingPipeline(int threads)
+  {
+    final AtomicInteger count = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "loader-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    gate     = new CompletableFuture<Void>();
+    tasks    = new ArrayList<Task>();
+    finished = new AtomicInteger();
+    failure  = new AtomicReference<Throwable>();
+  }
+
+  /**
+     Adds a step which runs once every step in dependsOn has
+     finished. Steps without dependencies run as soon as the
+     pipeline is started.
+  **/
+  public synchronized Task add(String name, final Runnable step, Task... dependsOn)
+  {
+    final Task task = new Task(name);
+
+    CompletableFuture<?>[] deps = new CompletableFuture<?>[dependsOn.length + 1];
+    deps[0] = gate;
+    for (int i = 0; i < dependsOn.length; i++)
+        deps[i+1] = dependsOn[i].future;
+
+    task.future = CompletableFuture.allOf(deps).thenRunAsync(new Runnable()
+    {
+      public void run()
+      {
+        task.thread    = Thread.currentThread().getName();
+        task.startTime = System.nanoTime();
+        try
+        {
+          step.run();
+        }
+        catch (Throwable e)
+        {
+          /** errors too, or the steps after it never run and the pipeline never finishes **/
+          failure.compareAndSet(null, e);
+          throw e;
+        }
+        finally
+        {
+          task.endTime = System.nanoTime();
+          finished.incrementAndGet();
+        }
+      }
+    }, executor);
+
+    tasks.add(task);
+    return task;
+  }
+
+  /** Starts running the steps **/
+  public synchronized void start()
+  {
+    startTime = System.nanoTime();
+    gate.complete(null);
+  }
+
+  /**
+     Returns true once every step has finished (or a step
+     has failed, in which case the steps after it never run).
+  **/
+  public boolean isDone()
+  {
+    if (failure.get() != null)
+       return true;
+    return finished.get() == tasks.size();
+  }
+
+  /** Waits for every step to finish, or for a step to fail **/
+  public void waitFor() throws InterruptedException
+  {
+    CompletableFuture<?>[] futures;
+    synchronized (this)
+    {
+      futures = new CompletableFuture<?>[tasks.size()];
+      for (int i = 0; i < futures.length; i++)
+          futures[i] = tasks.get(i).future;
+    }
+    try
+    {
+      CompletableFuture.allOf(futures).get();
+    }
+    catch (ExecutionException e) {} // the failure is kept in getFailure()
+  }
+
+  /** Returns the fraction of the steps that have finished, from 0 to 1 **/
+  public float getProgress()
+  {
+    return tasks.isEmpty() ? 1f : (float)finished.get() / tasks.size();
+  }
+
+  /** Returns the names of the steps running right now **/
+  public synchronized String getRunning()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (Task t : tasks)
+    {
+      if (t.startTime != 0 && t.endTime == 0)
+      {
+        if (sb.length() > 0)
+           sb.append(", ");
+        sb.append(t.name);
+      }
+    }
+    return sb.toString();
+  }
+
+  /** Returns the first exception (or error) thrown by a step, or null **/
+  public Throwable getFailure()
+  {
+    return failure.get();
+  }
+
+  /**
+     Stops the loader threads and returns a report of how
+     long each step took. Call once the pipeline is done.
+  **/
+  public synchronized String finish()
+  {
+    executor.shutdown();
+
+    endTime = startTime;
+    long total = 0;
+    for (Task t : tasks)
+    {
+      endTime = Math.max(endTime, t.endTime);
+      total += t.getMillis();
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("Loaded in ").append((endTime - startTime) / 1000000L).append("ms (")
+      .append(total).append("ms of work on ").append(tasks.size()).append(" steps)\n");
+    for (Task t : tasks)
+    {
+      sb.append("  ").append(t.name).append(": ");
+      if (t.endTime == 0)
+         sb.append("not run\n");
+      else
+         sb.append(t.getMillis()).append("ms, started at +").append((t.startTime - startTime) / 1000000L)
+           .append("ms on ").append(t.thread).append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,41 @@
+/**
+   A LoopScheduler drives a game loop: it decides when the
+   game's state is updated, when a frame is rendered, and
+   how the thread waits in between.
+
+   Different schedulers can be plugged into the same game,
+   e.g. a paced fixed-step loop on screen and a run-as-fast-
+   as-possible loop for benchmarks.
+**/
+public interface LoopScheduler
+{
+  /** The game a LoopScheduler drives **/
+  public interface Target
+  {
+    /** Returns false once the loop should end **/
+    public boolean isRunning();
+
+    /** Advances the game's state by one step of stepMillis **/
+    public void update(long stepMillis);
+
+    /**
+       Renders a frame. alpha (0 to 1) is how far the real
+       time is between the last update and the next one, so
+       moving things can be drawn in between their states.
+       elapsedMillis is the time since the last frame.
+    **/
+    public void render(float alpha, long elapsedMillis);
+  }
+
+  /** Runs the loop until the target stops running **/
+  public void run(Target target);
+
+  /** Number of frames not rendered because the loop fell behind **/
+  public long getSkippedFrames();
+
+  /** Number of frames that finished after their deadline **/
+  public long getLateFrames();
+
+  /** Number of frames rendered **/
+  public long getFrames();
+}
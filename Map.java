@@ -1,5 +1,3 @@
-import javax.imageio.*;
-import java.io.*;
 import java.awt.image.*;
 import java.util.*;
 import java.awt.*;
@@ -12,255 +10,923 @@ import java.awt.*;
    Sprites and other objects may be placed onto the map,
    however the map itself only contains information about its
    tiles and the Sprite representing the player.
+
+   The tiles come in layers (see MapLayer), drawn from the
+   ground up; layers marked Above are drawn by drawAbove(),
+   after the sprites. Consecutive static layers drawn in the
+   same pass are rendered into one chunk image together, so
+   a frame blits a single image per chunk for all of them.
+   Each dynamic layer gets chunk images of its own, so its
+   changes never make another layer render again.
 **/
 
 public class Map
 {
-  private TileTest tiletest;        // Local copy of the game world
+  /**
+     Told about tiles that change after the map was loaded,
+     by setTile() or by reloading the map file.
+  **/
+  public interface TileListener
+  {
+    /** The tiles of the width x height block starting at (col, row) may have changed **/
+    public void tilesChanged(int col, int row, int width, int height);
+  }
+
+  /** Layers that are drawn from one chunk image **/
+  private static class LayerGroup
+  {
+    MapLayer[] layers;              // The layers, bottom first
+    boolean    bAbove;              // Drawn over the sprites?
+    ChunkImageCache images;         // Pre-rendered images of the layers' chunks
+  }
+
   private Sprite   player;          // Local copy of the Player sprite
-  private char[][] CharMap;         // The map data (stored as a .txt file)
-  private Tile[][] TileMap;         // The actual tiles
-  private int      TileCountX;      // The number of tiles in each row
-  private int      TileCountY;      // The number of tiles in each column
+  private String   MapFile;         // The file the map data is stored in
+  private MapLayer[]   layers;      // The tile layers, the ground first
+  private LayerGroup[] groups;      // The layers, as they are drawn
+  private LayerGroup[] groupOf;     // The group of each layer
   private int      TileWidth;       // The width of a single tile
   private int      TileHeight;      // The height of a single tile
   private int      MapWidth;        // Width of the entire map
   private int      MapHeight;       // Height of the entire map
+  private int      ChunkSize;       // Width and height of a chunk, in tiles
+  private long     ChunkBudget;     // Memory the loaded chunks may use, in bytes
+  private int      ChunkImages;     // Number of pre-rendered chunk images to keep
   private int      InitX;           // Initial X position of first tile
   private int      InitY;           // Initial Y position of first tile
+  private Camera   camera;          // The part of the map that is on screen
+  private int      ViewWidth;       // Width of the area the map is drawn into
+  private int      ViewHeight;      // Height of the area the map is drawn into
+  private boolean  bCullTiles;      // Only draw the tiles inside the view?
+  private boolean  bCacheChunks;    // Draw chunks from pre-rendered images?
+  private boolean  bPrefetch;       // Load chunks ahead of the camera on a background thread?
 
-  private BufferedImage   ImgFile;  // Stores the image file used by this map
-  private BufferedImage[] Textures; // Stores the individual textures used by this map
+  private long[]    Collision;      // One bit per tile, set if a tile of any layer is collidable
+  private int       RowWords;       // Longs per row of Collision
+
+  private ArrayList<TileListener> listeners = new ArrayList<TileListener>();
   
   /** --------------------- Methods -------------------------- **/
   
   /**
-     Creates a Map.
+     Creates a Map and loads it.
      
-     Maps must be supplied with a copy of the game world
-     and the player class in order to determine the size that
-     the map should be, as well as to account for 
-     player movement.
+     Maps must be supplied with the game's configuration,
+     the size of the area they are drawn into and the
+     player sprite, in order to determine the size that the
+     map should be, as well as to account for player movement.
   **/
-  public Map(TileTest tiletest, Sprite player)
+  public Map(GameConfig config, int viewWidth, int viewHeight, Sprite player)
   {
-    this.tiletest = tiletest;
-    this.player   = player;
+    this(config, viewWidth, viewHeight);
+    setPlayer(player);
+
+    loadMapData();
+    loadTextures();
+  }
+
+  /**
+     Creates a Map which has read its configuration but
+     not loaded anything yet. The map is drawn into a
+     viewWidth x viewHeight area, which needn't be a window.
+     The map data and textures don't depend on each other,
+     so loadMapData() and loadTextures() may be called on
+     different threads at the same time; the player must be
+     set before the map is used.
+  **/
+  public Map(GameConfig config, int viewWidth, int viewHeight)
+  {
+    InitX = viewWidth / 4; // Center of the screen
+    InitY = viewHeight / 4; // Center of the screen
+
+    /** Tiles live in world coordinates; the camera puts the first one at (InitX, InitY) **/
+    camera = new Camera(-InitX, -InitY);
+
+    ViewWidth  = viewWidth;
+    ViewHeight = viewHeight;
+    bCullTiles = true;
+    bCacheChunks = true;
+    bPrefetch = true;
 
-    InitX = tiletest.getFrameWidth() / 4; // Center of the screen
-    InitY = tiletest.getFrameHeight() / 4; // Center of the screen
+    LoadMapConfig(config);
+  }
 
-    LoadMapConfig();
+  public void setPlayer(Sprite player)
+  {
+    this.player = player;
+  }
+
+  /** Loads the map data and splits it into chunks **/
+  public void loadMapData()
+  {
     LoadMapData();
     CreateTileMap();
+  }
+
+  /** Decodes the layers' tile sheets and cuts them into textures **/
+  public void loadTextures()
+  {
     LoadTextures();
   }
   
   /**
-     Loads all of the configuration info. for this map
-     from a .INI file using a String tokenizer.
+     Copies the configuration info. for this map out of
+     the game's configuration, which has already been read
+     from the .INI file.
+
+     MapLayers sets the number of layers (1 by default).
+  **/
+  private void LoadMapConfig(GameConfig config)
+  {
+    TileWidth   = config.getTileWidth();
+    TileHeight  = config.getTileHeight();
+    MapWidth    = config.getMapWidth();
+    MapHeight   = config.getMapHeight();
+    MapFile     = config.getMapFile();
+    ChunkSize   = config.getChunkSize();
+    ChunkBudget = config.getChunkBudget();
+    ChunkImages = config.getChunkImages();
+
+    layers = new MapLayer[Math.max(1, config.getInt("MapLayers", 1))];
+    for (int i = 0; i < layers.length; i++)
+        layers[i] = new MapLayer(config, i);
+    GroupLayers();
+  }
+
+  /**
+     Puts the layers into the groups they are drawn in. A
+     static layer joins the group below it if that group is
+     static too and drawn in the same pass; a dynamic layer
+     always has a group of its own.
   **/
-  private void LoadMapConfig()
+  private void GroupLayers()
   {
-    try
+    ArrayList<LayerGroup> list = new ArrayList<LayerGroup>();
+    groupOf = new LayerGroup[layers.length];
+    LayerGroup group = null;
+    for (int i = 0; i < layers.length; i++)
     {
-      InputStream is = getClass().getResourceAsStream(TileTest.INI_FILE);
-      BufferedReader br = new BufferedReader(new InputStreamReader(is));
-      
-      String line;
-      String tokens[];
-      while ((line = br.readLine()) != null)
+      MapLayer layer = layers[i];
+      boolean join = group != null && !layer.isDynamic() && !group.layers[0].isDynamic() && group.bAbove == layer.isAbove();
+      if (join)
       {
-        if (line.length() == 0)
-           continue;
-        if (line.startsWith("["))
-           continue;
-
-        tokens = line.split("=");
-        if (tokens[0].equals("TileCountX"))
-        {
-          TileCountX = Integer.parseInt(tokens[1]);
-        }
-        else if (tokens[0].equals("TileCountY"))
-        {
-          TileCountY = Integer.parseInt(tokens[1]);
-        }
-        else if (tokens[0].equals("TileWidth"))
-        {
-          TileWidth = Integer.parseInt(tokens[1]);
-        }
-        else if (tokens[0].equals("TileHeight"))
-        {
-          TileHeight = Integer.parseInt(tokens[1]);
-        }
-        else if (tokens[0].equals("ImgFile"))
-        {
-          try { ImgFile=ImageIO.read(new File(tokens[1])); } catch(IOException e) {
-          System.out.println("Error reading file("+tokens[1]+"):\n"+e); }
-        }
-        else if (tokens[0].equals("MapWidth"))
-        {
-          MapWidth = Integer.parseInt(tokens[1]);
-        }
-        else if (tokens[0].equals("MapHeight"))
-        {
-          MapHeight = Integer.parseInt(tokens[1]);
-        }
+        group.layers = Arrays.copyOf(group.layers, group.layers.length + 1);
+        group.layers[group.layers.length - 1] = layer;
       }
-      br.close();
-    }
-    catch (IOException e)
-    {
-      System.out.println("Error reading file("+TileTest.INI_FILE+"):\n"+e);
+      else
+      {
+        group = new LayerGroup();
+        group.layers = new MapLayer[] { layer };
+        group.bAbove = layer.isAbove();
+        list.add(group);
+      }
+      groupOf[i] = group;
     }
+
+    /** the groups drawn below the sprites come first **/
+    groups = new LayerGroup[list.size()];
+    int n = 0;
+    for (LayerGroup g : list)
+        if (!g.bAbove)
+           groups[n++] = g;
+    for (LayerGroup g : list)
+        if (g.bAbove)
+           groups[n++] = g;
   }
   
   /**
-     Loads the actual map data, which is stored
-     in the form of a .txt file.
+     Loads the actual map data, which is stored either
+     in the form of a .txt file (see MapDataParser) or as
+     a binary map (see BinaryMapFile).
+
+     Binary maps are memory-mapped rather than read, and
+     their header decides the size of the map. Their layers
+     are the map's layers, unless a layer names a file of its
+     own.
   **/
   private void LoadMapData()
   {
-    CharMap = new char[MapHeight][MapWidth];
-    File mapFile = null;
-    Scanner sc = null;
-    char c;
-    try
+    ChunkSource[] sources = readMapData(false);
+    MapWidth  = sources[0].getWidth();
+    MapHeight = sources[0].getHeight();
+    Collision = readCollision(sources);
+    RowWords  = (MapWidth + 63) >> 6;
+    for (int i = 0; i < layers.length; i++)
+        layers[i].createChunks(sources[i], ChunkSize, ChunkBudget / layers.length, bPrefetch);
+  }
+
+  /**
+     Builds the collision bitset of the layers' sources: one
+     bit per tile, set if the tile of any layer is collidable,
+     each row starting at a new long. Safe to call from any
+     thread.
+  **/
+  private long[] readCollision(ChunkSource[] sources)
+  {
+    int width  = sources[0].getWidth();
+    int height = sources[0].getHeight();
+    int words  = (width + 63) >> 6;
+    long[] bits = new long[words * height];
+
+    /** a band of rows at a time, so big maps needn't be copied out whole **/
+    int band = Math.max(1, 4096 / Math.max(1, width));
+    char[] ids = new char[band * width];
+    for (int i = 0; i < sources.length; i++)
     {
-      mapFile = new File("map.dat");
-      sc = new Scanner(mapFile);
-      for (int y = 0; y < MapHeight; y++)
+      TileTypes types = layers[i].getTileTypes();
+      for (int row = 0; row < height; row += band)
       {
-        for (int x = 0; x < MapWidth; x++)
+        int h = Math.min(band, height - row);
+        sources[i].read(0, row, width, h, ids);
+        for (int y = 0; y < h; y++)
         {
-          CharMap[y][x] = (char)sc.nextByte();
+          for (int x = 0; x < width; x++)
+          {
+            if (types.isCollidable(ids[y * width + x]))
+               bits[(row + y) * words + (x >> 6)] |= 1L << (x & 63);
+          }
         }
       }
     }
-    catch (IOException e)
-    {
-      System.out.println("Error reading file("+mapFile+"):\n"+e);
-    }
-    finally
+    return bits;
+  }
+
+  /**
+     Reads the map file (and the files of any layers that have
+     their own) and returns a source for each layer's tiles,
+     without changing the map. Safe to call from any thread.
+  **/
+  private ChunkSource[] readMapData(boolean strict)
+  {
+    BinaryMapFile bin = MapLayer.openBinary(MapFile);
+    if (bin == null && strict && BinaryMapFile.isBinaryMap(new java.io.File(MapFile)))
+       return null;
+    if (bin != null && (bin.getTileWidth() != TileWidth || bin.getTileHeight() != TileHeight))
+       System.out.println("Warning: "+MapFile+" was made for "+bin.getTileWidth()+"x"+bin.getTileHeight()+" tiles");
+
+    ChunkSource[] sources = new ChunkSource[layers.length];
+    sources[0] = (bin != null) ? layers[0].readSource(bin, bin.getWidth(), bin.getHeight(), strict)
+                               : layers[0].readSource(null, MapWidth, MapHeight, strict);
+    if (sources[0] == null)
+       return null;
+    for (int i = 1; i < layers.length; i++)
     {
-      if (sc != null)
-         sc.close();
+      sources[i] = layers[i].readSource(bin, sources[0].getWidth(), sources[0].getHeight(), strict);
+      if (sources[i] == null)
+         return null;
     }
+    return sources;
   }
   
   /**
      Creates the tile map using information
      retrieved from the map data.
      
-     Tiles have a position and a collidable flag.
+     Tiles are only stored as IDs; everything else about
+     them comes from their TileType. Positions are in world
+     coordinates and follow from the column and row; the
+     map scrolls by moving the camera instead.
+
+     The tiles are not created here; each layer splits them
+     into chunks which its ChunkManager creates when they are
+     first needed and drops again when they are far away.
+     Collision is kept apart, one bit per tile for the whole
+     map, so checking a tile never needs its chunk.
   **/
   private void CreateTileMap()
   {
-    TileMap = new Tile[MapHeight][MapWidth];
+    /** everything on screen, plus a ring of prefetched chunks, must fit **/
+    int viewChunksX = ViewWidth / (ChunkSize * TileWidth) + 2;
+    int viewChunksY = ViewHeight / (ChunkSize * TileHeight) + 2;
+    for (MapLayer layer : layers)
+        layer.getChunks().ensureCapacity((viewChunksX + 2) * (viewChunksY + 2));
+
+    for (LayerGroup group : groups)
+    {
+      if (group.images != null)
+         group.images.clear();
+      group.images = new ChunkImageCache(createPainter(group), ChunkSize, TileWidth, TileHeight,
+                                         isOpaque(group) ? Transparency.OPAQUE : Transparency.TRANSLUCENT, ChunkImages);
+      group.images.ensureCapacity(viewChunksX * viewChunksY);
+    }
+  }
+
+  /** Returns true if the group's images are covered by tiles everywhere **/
+  private boolean isOpaque(LayerGroup group)
+  {
+    return group.layers[0].getIndex() == 0 && group.layers[0].getEmptyId() < 0;
+  }
 
-    for (int y = 0; y < MapHeight; y++)
+  /**
+     Returns a painter which draws the tiles of every layer
+     of the group into the group's chunk images. It is handed
+     the chunk of the group's first layer; the other layers'
+     chunks are the ones at the same place in their grids.
+  **/
+  private ChunkImageCache.Painter createPainter(final LayerGroup group)
+  {
+    return new ChunkImageCache.Painter()
     {
-      for (int x = 0; x < MapWidth; x++)
+      public void paintChunk(Graphics2D g, MapChunk chunk)
+      {
+        int col = chunk.getFirstCol();
+        int row = chunk.getFirstRow();
+        for (MapLayer layer : group.layers)
+        {
+          MapChunk c = layer.getChunks().getChunk(chunk.getChunkX(), chunk.getChunkY());
+          layer.drawTiles(g, c, col, row, col + c.getWidth() - 1, row + c.getHeight() - 1, col * TileWidth, row * TileHeight);
+        }
+      }
+
+      public void paintTile(Graphics2D g, MapChunk chunk, int x, int y)
       {
-        TileMap[y][x] = new Tile(InitX+x*TileWidth, InitY+y*TileHeight, ((int)CharMap[y][x] == 1));
+        int col = chunk.getFirstCol();
+        int row = chunk.getFirstRow();
+        for (MapLayer layer : group.layers)
+        {
+          MapChunk c = layer.getChunks().getChunk(chunk.getChunkX(), chunk.getChunkY());
+          layer.drawTiles(g, c, col + x, row + y, col + x, row + y, col * TileWidth, row * TileHeight);
+        }
       }
-    }
+    };
   }
 
   /**
      Loads the actual textures which represent
-     the particular tiles in this map
+     the particular tiles in this map, a tile sheet
+     per layer.
   **/
   private void LoadTextures()
   {
-    int numImages = TileCountX * TileCountY;
-    Textures = new BufferedImage[numImages];
+    for (MapLayer layer : layers)
+        layer.setTextures(layer.readTextures(false));
+  }
+
+  /**
+     Reads the map file again (on the calling thread) and
+     returns a Runnable which puts the new tiles in place.
+     The Runnable must be run on the game thread.
+
+     Only the chunks whose tiles actually changed have their
+     images re-rendered. If the size of the map changed, the
+     whole tile map is rebuilt instead.
 
-    int i = 0;
-    for (int y = 0; y < TileCountY; y++)
+     Returns null if a file can't be read or parsed (e.g. an
+     editor is still writing it); the map stays as it is.
+  **/
+  public Runnable prepareMapReload()
+  {
+    final ChunkSource[] sources = readMapData(true);
+    if (sources == null)
+       return null;
+    final long[] collision = readCollision(sources);
+    return new Runnable()
     {
-      for (int x = 0; x < TileCountX; x++)
+      public void run()
       {
-        Textures[i] = ImgFile.getSubimage(x*TileWidth, y*TileHeight, TileWidth, TileHeight);
-        i++;
+        Collision = collision;
+        RowWords  = (sources[0].getWidth() + 63) >> 6;
+        if (sources[0].getWidth() != MapWidth || sources[0].getHeight() != MapHeight)
+        {
+          MapWidth  = sources[0].getWidth();
+          MapHeight = sources[0].getHeight();
+          for (int i = 0; i < layers.length; i++)
+              layers[i].createChunks(sources[i], ChunkSize, ChunkBudget / layers.length, bPrefetch);
+          CreateTileMap();
+          System.out.println("Reloaded "+MapFile+" ("+MapWidth+"x"+MapHeight+", resized)");
+          fireTilesChanged(0, 0, MapWidth, MapHeight);
+          return;
+        }
+
+        int count = 0;
+        for (int i = 0; i < layers.length; i++)
+        {
+          java.util.List<MapChunk> changed = layers[i].setSource(sources[i]);
+          for (MapChunk chunk : changed)
+              groupOf[i].images.invalidate(chunk.getChunkX(), chunk.getChunkY());
+          count += changed.size();
+        }
+        System.out.println("Reloaded "+MapFile+" ("+count+" loaded chunks changed)");
+
+        /** chunks that weren't loaded may have changed too **/
+        fireTilesChanged(0, 0, MapWidth, MapHeight);
       }
+    };
+  }
+
+  /**
+     Reads the tile sheets again (on the calling thread) and
+     returns a Runnable which swaps in the new textures. The
+     Runnable must be run on the game thread.
+
+     Returns null if a tile sheet can't be read; the old
+     textures are kept.
+  **/
+  public Runnable prepareTextureReload()
+  {
+    final BufferedImage[][] textures = new BufferedImage[layers.length][];
+    for (int i = 0; i < layers.length; i++)
+    {
+      textures[i] = layers[i].readTextures(true);
+      if (textures[i] == null)
+         return null;
     }
-  } 
+    return new Runnable()
+    {
+      public void run()
+      {
+        for (int i = 0; i < layers.length; i++)
+            layers[i].setTextures(textures[i]);
+        for (LayerGroup group : groups)
+            group.images.invalidateAll();
+        System.out.println("Reloaded "+getImgFiles());
+      }
+    };
+  }
+
+  public String getMapFile()
+  {
+    return MapFile;
+  }
+
+  /** Returns the tile sheet of the ground layer **/
+  public String getImgFile()
+  {
+    return layers[0].getImgFile();
+  }
+
+  /** Returns every file the layers' tiles are read from **/
+  public java.util.List<String> getMapFiles()
+  {
+    LinkedHashSet<String> files = new LinkedHashSet<String>();
+    for (MapLayer layer : layers)
+        if (layer.getMapFile() != null)
+           files.add(layer.getMapFile());
+    return new ArrayList<String>(files);
+  }
+
+  /** Returns the tile sheets of every layer **/
+  public java.util.List<String> getImgFiles()
+  {
+    LinkedHashSet<String> files = new LinkedHashSet<String>();
+    for (MapLayer layer : layers)
+        if (layer.getImgFile() != null)
+           files.add(layer.getImgFile());
+    return new ArrayList<String>(files);
+  }
 
   /**
      Draws the map, based on the number of tiles
      and the map size.
+
+     When culling is enabled (the default), only the
+     range of tiles covered by the view is drawn, so the
+     cost of a frame depends on the size of the screen
+     rather than the size of the map. If g has a clip, only
+     the tiles inside it are drawn.
+
+     When chunk caching is enabled (also the default), each
+     chunk is drawn from an image of all its tiles that is
+     rendered once and kept by the ChunkImageCache.
+
+     Every layer is drawn, the ones marked Above last; to put
+     sprites between them, use drawBelow() and drawAbove().
   **/
   public boolean draw(Graphics2D g)
   {
-    int tile;
-    for (int y = 0; y < MapHeight; y++)
+    return draw(g, 1f);
+  }
+
+  /**
+     Draws the map with the camera alpha of the way between
+     its position before the last update and its current
+     position (see Camera.getX(float)).
+  **/
+  public boolean draw(Graphics2D g, float alpha)
+  {
+    return drawBelow(g, alpha) && drawAbove(g, alpha);
+  }
+
+  /** Draws the layers that go under the sprites **/
+  public boolean drawBelow(Graphics2D g, float alpha)
+  {
+    return drawLayers(g, alpha, false);
+  }
+
+  /** Draws the layers that go over the sprites **/
+  public boolean drawAbove(Graphics2D g, float alpha)
+  {
+    return drawLayers(g, alpha, true);
+  }
+
+  /** Draws the groups of layers of one pass (above the sprites or below) **/
+  private boolean drawLayers(Graphics2D g, float alpha, boolean above)
+  {
+    /** The view covers world pixels left .. left + view size **/
+    int left = camera.getX(alpha);
+    int top  = camera.getY(alpha);
+
+    int firstX = 0, lastX = MapWidth - 1;
+    int firstY = 0, lastY = MapHeight - 1;
+
+    if (bCullTiles)
+    {
+      /** only the part of the view being drawn again, if there is a clip **/
+      Rectangle clip = g.getClipBounds();
+      int x0 = 0, y0 = 0, x1 = ViewWidth, y1 = ViewHeight;
+      if (clip != null)
+      {
+        x0 = Math.max(x0, clip.x);
+        y0 = Math.max(y0, clip.y);
+        x1 = Math.min(x1, clip.x + clip.width);
+        y1 = Math.min(y1, clip.y + clip.height);
+        if (x0 >= x1 || y0 >= y1)
+           return true;
+      }
+      firstX = Math.max(firstX, Math.floorDiv(left + x0, TileWidth));
+      lastX  = Math.min(lastX, Math.floorDiv(left + x1 - 1, TileWidth));
+      firstY = Math.max(firstY, Math.floorDiv(top + y0, TileHeight));
+      lastY  = Math.min(lastY, Math.floorDiv(top + y1 - 1, TileHeight));
+    }
+
+    if (firstX > lastX || firstY > lastY)
+       return true;
+
+    for (LayerGroup group : groups)
     {
-      for (int x = 0; x < MapWidth; x++)
+      if (group.bAbove != above)
+         continue;
+
+      /** Draw a chunk at a time, only the part of it inside the range **/
+      for (int cy = firstY / ChunkSize; cy <= lastY / ChunkSize; cy++)
       {
-        tile = CharMap[y][x];
-        g.drawImage(Textures[tile], TileMap[y][x].getX(), TileMap[y][x].getY(), null);
+        for (int cx = firstX / ChunkSize; cx <= lastX / ChunkSize; cx++)
+        {
+          if (isEmpty(group, cx, cy))
+             continue;
+
+          MapChunk chunk = group.layers[0].getChunks().getChunk(cx, cy);
+          if (bCacheChunks)
+          {
+            group.images.draw(g, chunk, chunk.getFirstCol() * TileWidth - left,
+                                        chunk.getFirstRow() * TileHeight - top);
+            continue;
+          }
+
+          int x0 = Math.max(firstX, chunk.getFirstCol());
+          int x1 = Math.min(lastX, chunk.getFirstCol() + chunk.getWidth() - 1);
+          int y0 = Math.max(firstY, chunk.getFirstRow());
+          int y1 = Math.min(lastY, chunk.getFirstRow() + chunk.getHeight() - 1);
+          for (MapLayer layer : group.layers)
+              layer.drawTiles(g, layer.getChunks().getChunk(cx, cy), x0, y0, x1, y1, left, top);
+        }
       }
     }
     return true;
   }
 
+  /** Returns true if the group has nothing to draw in the chunk at (cx, cy) **/
+  private boolean isEmpty(LayerGroup group, int cx, int cy)
+  {
+    for (MapLayer layer : group.layers)
+    {
+      if (!layer.isEmpty(layer.getChunks().getChunk(cx, cy)))
+         return false;
+    }
+    return true;
+  }
+
   /**
-     Called when the player sprite moves in the X direction
+     Turns viewport culling on or off. With culling off,
+     every tile in the map is drawn each frame.
   **/
-  public void adjustX(int amt)
+  public void setCulling(boolean flag)
+  {
+    bCullTiles = flag;
+  }
+
+  public boolean isCulling()
   {
-    for (int y = 0; y < MapHeight; y++)
+    return bCullTiles;
+  }
+
+  /**
+     Turns chunk image caching on or off. With caching off,
+     every visible tile is drawn on its own each frame.
+  **/
+  public void setChunkCaching(boolean flag)
+  {
+    bCacheChunks = flag;
+    if (!flag)
     {
-      for (int x = 0; x < MapWidth; x++)
-      {
-        TileMap[y][x].moveX(amt);
-        if (TileMap[y][x].isCollidable() && ((player.getX() == TileMap[y][x].getX()) && (player.getY() == TileMap[y][x].getY())))
-        {
-          movebackX(-amt);
-        }
-      }
+      for (LayerGroup group : groups)
+          if (group.images != null)
+             group.images.clear();
     }
   }
 
+  public boolean isChunkCaching()
+  {
+    return bCacheChunks;
+  }
+
+  /**
+     Turns prefetching of the chunks ahead of the camera on
+     or off. Must be called before loadMapData(). A map that
+     is never drawn has no use for it, and saves a thread.
+  **/
+  public void setPrefetching(boolean flag)
+  {
+    bPrefetch = flag;
+  }
+
+  /** Changes the ground tile at (col, row) to the given ID **/
+  public void setTile(int col, int row, int id)
+  {
+    setTile(0, col, row, id);
+  }
+
+  /**
+     Changes the tile of the layer at (col, row) to the given
+     ID. Only that tile of the image of the chunk holding it
+     has to be painted again, and only in the images of the
+     layer's own group.
+  **/
+  public void setTile(int layer, int col, int row, int id)
+  {
+    if (col < 0 || row < 0 || col >= MapWidth || row >= MapHeight)
+       return;
+
+    MapChunk chunk = layers[layer].getChunks().getChunkAt(col, row);
+    chunk.setId(col, row, id);
+    if (groupOf[layer].images != null)
+       groupOf[layer].images.invalidateTile(chunk.getChunkX(), chunk.getChunkY(),
+                                            col - chunk.getFirstCol(), row - chunk.getFirstRow());
+
+    boolean blocked = false;
+    for (MapLayer l : layers)
+        blocked |= l.isCollidable(col, row);
+    long bit = 1L << (col & 63);
+    if (blocked)
+       Collision[row * RowWords + (col >> 6)] |= bit;
+    else
+       Collision[row * RowWords + (col >> 6)] &= ~bit;
+    fireTilesChanged(col, row, 1, 1);
+  }
+
+  public void addTileListener(TileListener l)
+  {
+    listeners.add(l);
+  }
+
+  public void removeTileListener(TileListener l)
+  {
+    listeners.remove(l);
+  }
+
+  private void fireTilesChanged(int col, int row, int width, int height)
+  {
+    for (TileListener l : listeners)
+        l.tilesChanged(col, row, width, height);
+  }
+
+  /**
+     Called when the player sprite moves in the X direction.
+
+     Moving the map by amt on screen is the same as moving
+     the camera by -amt, so only the camera changes. If that
+     puts the player on a collidable tile, the move is undone.
+  **/
+  public void adjustX(int amt)
+  {
+    camera.move(-amt, 0);
+    if (isPlayerBlocked())
+       camera.move(amt, 0);
+    else
+       prefetchAhead(-amt, 0);
+  }
+
   /**
      Called when the player sprite moves in the Y direction
   **/
   public void adjustY(int amt)
   {
-    for (int y = 0; y < MapHeight; y++)
+    camera.move(0, -amt);
+    if (isPlayerBlocked())
+       camera.move(0, amt);
+    else
+       prefetchAhead(0, -amt);
+  }
+
+  /** Prefetches the chunks beyond the view in the direction (dirX, dirY) **/
+  private void prefetchAhead(int dirX, int dirY)
+  {
+    int col  = Math.floorDiv(camera.getX(), TileWidth);
+    int row  = Math.floorDiv(camera.getY(), TileHeight);
+    int cols = Math.floorDiv(camera.getX() + ViewWidth - 1, TileWidth) - col + 1;
+    int rows = Math.floorDiv(camera.getY() + ViewHeight - 1, TileHeight) - row + 1;
+    for (MapLayer layer : layers)
+        layer.getChunks().prefetch(col, row, cols, rows, dirX, dirY);
+  }
+
+  /**
+     Checks whether the player is standing on a collidable
+     tile by translating the player's screen position into
+     the world through the camera.
+  **/
+  private boolean isPlayerBlocked()
+  {
+    return isBlocked(camera.toWorldX(player.getX()), camera.toWorldY(player.getY()));
+  }
+
+  /**
+     Returns true if the world position (in pixels) lies on
+     a collidable tile. Positions outside of the map are
+     always blocked, so nothing can walk off its edge.
+  **/
+  public boolean isBlocked(int worldX, int worldY)
+  {
+    return isBlockedTile(getColumn(worldX), getRow(worldY));
+  }
+
+  /**
+     Returns true if the tile at (col, row) is collidable.
+     This is a single bit of the collision bitset; no chunk is
+     looked up or loaded, so it is cheap enough to call for
+     every moving sprite each frame.
+  **/
+  public boolean isBlockedTile(int col, int row)
+  {
+    if (col < 0 || row < 0 || col >= MapWidth || row >= MapHeight)
+       return true;
+    return (Collision[row * RowWords + (col >> 6)] & (1L << (col & 63))) != 0;
+  }
+
+  /** Returns the type of the ground tile at (col, row) **/
+  public TileType getTileType(int col, int row)
+  {
+    return layers[0].getTileTypes().get(getTileId(col, row));
+  }
+
+  /** Returns the table of the ground layer's tile types **/
+  public TileTypes getTileTypes()
+  {
+    return layers[0].getTileTypes();
+  }
+
+  /**
+     Returns the collision bitset: bit (col & 63) of long
+     row * getCollisionRowWords() + (col >> 6) is set if the
+     tile at (col, row) is collidable. The array is replaced,
+     not changed, when the map is reloaded; don't modify it.
+  **/
+  public long[] getCollisionBits()
+  {
+    return Collision;
+  }
+
+  /** Returns the number of longs each row of the collision bitset takes **/
+  public int getCollisionRowWords()
+  {
+    return RowWords;
+  }
+
+  /**
+     Returns a report of the memory the map's tiles use,
+     compared with storing a char and a Tile object (two ints
+     and a boolean: 24 bytes, plus a 4 byte reference) per
+     tile.
+  **/
+  public String getMemoryReport()
+  {
+    long tiles = (long)MapWidth * MapHeight;
+    long collisionBytes = 8L * Collision.length;
+    long oldBytes = 30L * tiles * layers.length;
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("Map memory (").append(MapWidth).append('x').append(MapHeight).append(" = ").append(tiles).append(" tiles, ")
+      .append(layers.length).append(layers.length == 1 ? " layer" : " layers").append("):\n");
+    for (MapLayer layer : layers)
     {
-      for (int x = 0; x < MapWidth; x++)
+      ChunkManager chunks = layer.getChunks();
+      ChunkSource source = layer.getSource();
+      int loaded = chunks.getLoadedCount();
+      long chunkBytes = chunks.getBytes();
+      long loadedTiles = Math.min(tiles, (long)loaded * ChunkSize * ChunkSize);
+      sb.append(String.format("  %-8s loaded chunks %d, %d bytes (%.2f bits/tile)", layer.getName(), loaded, chunkBytes,
+                              (loadedTiles == 0) ? 0.0 : 8.0 * chunkBytes / loadedTiles));
+      if (source instanceof ArrayChunkSource)
       {
-        TileMap[y][x].moveY(amt);
-        if (TileMap[y][x].isCollidable() && ((player.getX() == TileMap[y][x].getX()) && (player.getY() == TileMap[y][x].getY())))
-           movebackY(-amt);
+        long sourceBytes = ((ArrayChunkSource)source).getBytes();
+        sb.append(String.format("; parsed map %d bytes (%.2f bits/tile)", sourceBytes, 8.0 * sourceBytes / Math.max(1, tiles)));
       }
+      sb.append(String.format("; %d tile types%n", layer.getTileTypes().getCount()));
     }
+    sb.append(String.format("  collision      %d bytes (%.2f bits/tile)%n", collisionBytes, 8.0 * collisionBytes / Math.max(1, tiles)));
+    sb.append(String.format("  char + Tile per tile would be %d bytes (%d bits/tile) for the whole map", oldBytes, 8 * 30));
+    return sb.toString();
   }
 
-  /** Saves space **/
-  private void movebackY(int amt)
+  /** Returns the ID of the ground tile at (col, row) **/
+  public int getTileId(int col, int row)
   {
-    for (int y = 0; y < MapHeight; y++)
+    return getTileId(0, col, row);
+  }
+
+  /** Returns the ID of the layer's tile at (col, row) **/
+  public int getTileId(int layer, int col, int row)
+  {
+    return layers[layer].getChunks().getChunkAt(col, row).getId(col, row);
+  }
+
+  /**
+     Copies the ground tile IDs of the width x height block
+     starting at (col, row) into dest, one row after another,
+     straight from the map data. Unlike getTileId(), this
+     doesn't load any chunks, so whole maps can be scanned
+     cheaply; changes made by setTile() aren't seen.
+  **/
+  public void readTileIds(int col, int row, int width, int height, char[] dest)
+  {
+    layers[0].getSource().read(col, row, width, height, dest);
+  }
+
+  /** Returns the chunks that hold this map's ground tiles **/
+  public ChunkManager getChunks()
+  {
+    return layers[0].getChunks();
+  }
+
+  public int getLayerCount()
+  {
+    return layers.length;
+  }
+
+  /** Returns the layer at the given index, the ground being 0 **/
+  public MapLayer getLayer(int index)
+  {
+    return layers[index];
+  }
+
+  /** Returns the index of the layer with the given name, or -1 **/
+  public int getLayerIndex(String name)
+  {
+    for (int i = 0; i < layers.length; i++)
     {
-      for (int x = 0; x < MapWidth; x++)
-      {
-          TileMap[y][x].moveY(amt);
-      }
+      if (layers[i].getName().equals(name))
+         return i;
     }
+    return -1;
   }
 
-  /** Saves space **/
-  private void movebackX(int amt)
+  /** Returns a summary of each group's chunk image statistics, one line per group **/
+  public String getImageStats()
   {
-    for (int y = 0; y < MapHeight; y++)
+    StringBuilder sb = new StringBuilder();
+    for (LayerGroup group : groups)
     {
-      for (int x = 0; x < MapWidth; x++)
-      {
-        TileMap[y][x].moveX(amt);
-      }
+      for (int i = 0; i < group.layers.length; i++)
+          sb.append((i == 0) ? "" : "+").append(group.layers[i].getName());
+      sb.append(": ").append((group.images == null) ? "-" : group.images.getStats()).append('\n');
     }
+    return sb.toString();
+  }
+
+  /** Stops the layers' prefetch threads and throws away the chunk images **/
+  public void dispose()
+  {
+    for (MapLayer layer : layers)
+        if (layer.getChunks() != null)
+           layer.getChunks().shutdown();
+    for (LayerGroup group : groups)
+        if (group.images != null)
+           group.images.clear();
+  }
+
+  /** Returns the column of the tile containing the world X coordinate **/
+  public int getColumn(int worldX)
+  {
+    return Math.floorDiv(worldX, TileWidth);
+  }
+
+  /** Returns the row of the tile containing the world Y coordinate **/
+  public int getRow(int worldY)
+  {
+    return Math.floorDiv(worldY, TileHeight);
+  }
+
+  /**
+     Called at the start of every update, before anything
+     moves, so frames can be interpolated between updates.
+  **/
+  public void saveState()
+  {
+    camera.saveState();
+  }
+
+  public Camera getCamera()
+  {
+    return camera;
   }
 
   public int getTileWidth()
@@ -0,0 +1,150 @@
+/**
+   A MapChunk is a fixed-size square block of a map's tiles.
+
+   Chunks are created by the ChunkManager when some part of
+   the game (rendering, collision, ...) first needs them, and
+   are thrown away again when they are far from the camera.
+   Chunks on the right and bottom edges of the map may be
+   smaller than the chunk size.
+
+   A chunk only stores its tiles' IDs, packed into a few
+   bits each (see PackedTileLayer); everything else about a
+   tile follows from its ID (see TileTypes).
+**/
+public class MapChunk
+{
+  private int      ChunkX;         // Column of this chunk in the chunk grid
+  private int      ChunkY;         // Row of this chunk in the chunk grid
+  private int      FirstCol;       // Map column of the chunk's first tile
+  private int      FirstRow;       // Map row of the chunk's first tile
+  private int      Width;          // Number of tile columns in this chunk
+  private int      Height;         // Number of tile rows in this chunk
+  private PackedTileLayer Ids;     // The tile IDs
+  private boolean  bModified;      // Has a tile been changed since loading?
+
+  /**
+     Reads a chunk from the source. The chunk starts at
+     (col, row) and holds width x height tiles.
+  **/
+  public MapChunk(ChunkSource source, int chunkX, int chunkY, int col, int row, int width, int height)
+  {
+    ChunkX   = chunkX;
+    ChunkY   = chunkY;
+    FirstCol = col;
+    FirstRow = row;
+    Width    = width;
+    Height   = height;
+
+    char[] ids = new char[width * height];
+    source.read(col, row, width, height, ids);
+    Ids = new PackedTileLayer(width, height);
+    Ids.setAll(ids);
+  }
+
+  /** Returns the ID of the tile at map position (col, row) **/
+  public int getId(int col, int row)
+  {
+    return Ids.get(col - FirstCol, row - FirstRow);
+  }
+
+  /**
+     Returns true if every tile of the chunk has the ID. This
+     is only a look at the chunk's palette, so it may say
+     false for a chunk whose other IDs were all overwritten.
+  **/
+  public boolean isAll(int id)
+  {
+    return Ids.getBitsPerTile() == 0 && Ids.get(0) == id;
+  }
+
+  /**
+     Changes the tile at map position (col, row). The chunk
+     is marked as modified so it is kept in memory.
+  **/
+  public void setId(int col, int row, int id)
+  {
+    Ids.set(col - FirstCol, row - FirstRow, id);
+    bModified = true;
+  }
+
+  /**
+     Reads the chunk's tiles from the source again, throwing
+     away any changes. Returns true if any tile is different.
+  **/
+  public boolean reload(ChunkSource source)
+  {
+    char[] fresh = new char[Width * Height];
+    source.read(FirstCol, FirstRow, Width, Height, fresh);
+
+    boolean changed = false;
+    for (int i = 0; i < fresh.length && !changed; i++)
+        changed = (fresh[i] != Ids.get(i));
+    if (changed || bModified)
+       Ids.setAll(fresh);
+    bModified = false;
+    return changed;
+  }
+
+  public boolean isModified()
+  {
+    return bModified;
+  }
+
+  /** Returns the key used to look up the chunk at (chunkX, chunkY) **/
+  public static Long key(int chunkX, int chunkY)
+  {
+    return Long.valueOf(((long)chunkY << 32) | (chunkX & 0xffffffffL));
+  }
+
+  public int getChunkX()
+  {
+    return ChunkX;
+  }
+
+  public int getChunkY()
+  {
+    return ChunkY;
+  }
+
+  public int getFirstCol()
+  {
+    return FirstCol;
+  }
+
+  public int getFirstRow()
+  {
+    return FirstRow;
+  }
+
+  public int getWidth()
+  {
+    return Width;
+  }
+
+  public int getHeight()
+  {
+    return Height;
+  }
+
+  /** Returns the number of bits each of the chunk's tiles takes **/
+  public int getBitsPerTile()
+  {
+    return Ids.getBitsPerTile();
+  }
+
+  /** Returns the memory this chunk uses, in bytes **/
+  public long getBytes()
+  {
+    return Ids.getBytes() + 64L;
+  }
+
+  /**
+     A rough estimate of how much memory a chunk of tiles
+     uses before it is loaded: up to 256 different IDs (one
+     byte per tile), and the palette.
+  **/
+  public static long estimateBytes(int tiles)
+  {
+    return tiles + 2L * 256 + 128L;
+  }
+}
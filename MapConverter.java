@@ -0,0 +1,49 @@
+import java.io.*;
+
+/**
+   Command-line tool which converts a text map (the
+   whitespace-separated map.dat format) into the binary
+   format read by BinaryMapFile.
+
+   Usage:
+       java MapConverter <map.dat> <out.tmap> <width> <height> [tileWidth tileHeight]
+
+   The tile size defaults to 32x32.
+**/
+public final class MapConverter
+{
+  public static void main(String[] args)
+  {
+    if (args.length != 4 && args.length != 6)
+    {
+      System.err.println("Usage: java MapConverter <map.dat> <out.tmap> <width> <height> [tileWidth tileHeight]");
+      System.exit(1);
+    }
+
+    File in  = new File(args[0]);
+    File out = new File(args[1]);
+    int width  = Integer.parseInt(args[2]);
+    int height = Integer.parseInt(args[3]);
+    int tileWidth  = (args.length == 6) ? Integer.parseInt(args[4]) : 32;
+    int tileHeight = (args.length == 6) ? Integer.parseInt(args[5]) : 32;
+
+    try
+    {
+      long start = System.nanoTime();
+      char[][] tiles = MapDataParser.parse(in, width, height);
+      BinaryMapFile.write(out, tileWidth, tileHeight, tiles);
+      long ms = (System.nanoTime() - start) / 1000000L;
+
+      System.out.println("Converted " + in + " (" + width + "x" + height + ") to "
+                         + out + " (" + out.length() + " bytes) in " + ms + "ms");
+    }
+    catch (IOException e)
+    {
+      System.err.println("Error converting file(" + in + "):\n" + e);
+      System.exit(1);
+    }
+  }
+
+  /** Can't create a MapConverter **/
+  private MapConverter(){}
+}
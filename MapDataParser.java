@@ -0,0 +1,174 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+   Parses text maps (the map.dat format) as a stream of
+   bytes, without going through Scanner or Strings.
+
+   A text map has one line per row of tiles, and each line
+   holds the tile IDs of that row as decimal numbers
+   separated by spaces and/or tabs. Blank lines are ignored,
+   and both Unix and Windows line endings are accepted.
+
+   The file is read through a small reusable buffer, so
+   memory use does not depend on the size of the file, and
+   every number goes straight into the tile array.
+**/
+public final class MapDataParser
+{
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+     Thrown when a text map is malformed. The line and column
+     (both counted from 1) point at the offending input.
+  **/
+  public static class FormatException extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    private int line;
+    private int column;
+
+    public FormatException(String name, int line, int column, String msg)
+    {
+      super(name + ":" + line + ":" + column + ": " + msg);
+      this.line = line;
+      this.column = column;
+    }
+
+    public int getLine()
+    {
+      return line;
+    }
+
+    public int getColumn()
+    {
+      return column;
+    }
+  }
+
+  /**
+     Parses the text map in f, which must be exactly
+     width tiles wide and height tiles high. The result
+     is indexed [row][col].
+  **/
+  public static char[][] parse(File f, int width, int height) throws IOException
+  {
+    FileInputStream in = new FileInputStream(f);
+    try
+    {
+      return parse(in.getChannel(), f.getPath(), width, height);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+     Parses a text map from a channel. The name is only
+     used in error messages.
+  **/
+  public static char[][] parse(ReadableByteChannel ch, String name, int width, int height) throws IOException
+  {
+    char[][] tiles = new char[height][width];
+    parse(ch, name, tiles);
+    return tiles;
+  }
+
+  /**
+     Parses a text map from a channel into tiles, which
+     decides the expected size of the map.
+  **/
+  public static void parse(ReadableByteChannel ch, String name, char[][] tiles) throws IOException
+  {
+    int height = tiles.length;
+    int width  = (height == 0) ? 0 : tiles[0].length;
+
+    ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    byte[] bytes = buf.array();
+
+    int line = 1;         // current line of the file
+    int column = 1;       // current column of the file
+    int row = 0;          // row of the map the current line fills
+    int col = 0;          // number of tiles read on the current line
+    int value = -1;       // the number being read, or -1 between numbers
+    int valueColumn = 0;  // the column that number started at
+
+    while (true)
+    {
+      buf.clear();
+      int n = ch.read(buf);
+      if (n < 0)
+         break;
+
+      for (int i = 0; i < n; i++)
+      {
+        int b = bytes[i];
+        if (b >= '0' && b <= '9')
+        {
+          if (value < 0)
+          {
+            value = 0;
+            valueColumn = column;
+          }
+          value = value * 10 + (b - '0');
+          if (value > Character.MAX_VALUE)
+             throw new FormatException(name, line, valueColumn, "tile ID is too large");
+        }
+        else if (b == ' ' || b == '\t' || b == '\r' || b == '\n')
+        {
+          if (value >= 0)
+          {
+            if (col >= width)
+               throw new FormatException(name, line, valueColumn, "more than " + width + " tiles in row");
+            if (row >= height)
+               throw new FormatException(name, line, valueColumn, "more than " + height + " rows");
+            tiles[row][col++] = (char)value;
+            value = -1;
+          }
+
+          if (b == '\n')
+          {
+            if (col > 0)
+            {
+              if (col < width)
+                 throw new FormatException(name, line, column, "expected " + width + " tiles in row, found " + col);
+              row++;
+              col = 0;
+            }
+            line++;
+            column = 0;
+          }
+        }
+        else
+        {
+          throw new FormatException(name, line, column, "unexpected character '" + (char)(b & 0xff) + "'");
+        }
+        column++;
+      }
+    }
+
+    /** the last line doesn't have to end with a newline **/
+    if (value >= 0)
+    {
+      if (col >= width)
+         throw new FormatException(name, line, valueColumn, "more than " + width + " tiles in row");
+      if (row >= height)
+         throw new FormatException(name, line, valueColumn, "more than " + height + " rows");
+      tiles[row][col++] = (char)value;
+    }
+    if (col > 0)
+    {
+      if (col < width)
+         throw new FormatException(name, line, column, "expected " + width + " tiles in row, found " + col);
+      row++;
+    }
+    if (row < height)
+       throw new FormatException(name, line, column, "expected " + height + " rows, found " + row);
+  }
+
+  /** Can't create a MapDataParser **/
+  private MapDataParser(){}
+}
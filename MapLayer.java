@@ -0,0 +1,332 @@
+import javax.imageio.*;
+import java.io.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+/**
+   One layer of a map's tiles (the ground, the walls, an
+   overlay drawn over the sprites, ...), with its own tile
+   sheet, tile types and chunks.
+
+   Every layer covers the whole map. The first layer is the
+   ground and is read from the map's own settings (MapFile,
+   ImgFile, TileCountX, ...); layer i above it is read from
+   keys starting with "Layer<i>.":
+
+     Layer1.Name=walls
+     Layer1.ImgFile=../art/walls.png     tile sheet (default: the ground's)
+     Layer1.TileCountX=2                 (default: the ground's)
+     Layer1.TileCountY=2
+     Layer1.MapFile=walls.dat            text map of the layer; if not set,
+                                         layer 1 of a binary map file, or empty
+     Layer1.EmptyTile=0                  ID of tiles with nothing on them
+                                         (default 0; -1 for none)
+     Layer1.Above=false                  draw over the sprites?
+     Layer1.Dynamic=false                do the tiles change often?
+     Layer1.CollidableTiles=1,3          see TileTypes
+
+   Tiles with the empty ID are never drawn, and a chunk
+   holding nothing but empty tiles is skipped altogether.
+**/
+public class MapLayer
+{
+  private String   Name;            // Name of the layer, for messages
+  private int      Index;           // Position of the layer, 0 being the ground
+  private String   MapFile;         // Text or binary map the tiles come from, or null
+  private String   ImgPath;         // The layer's tile sheet
+  private int      TileCountX;      // The number of tiles in each row of the sheet
+  private int      TileCountY;      // The number of tiles in each column of the sheet
+  private int      TileWidth;       // The width of a single tile
+  private int      TileHeight;      // The height of a single tile
+  private int      EmptyId;         // ID of tiles with nothing on them, or -1
+  private boolean  bAbove;          // Drawn over the sprites?
+  private boolean  bDynamic;        // Do the tiles change often?
+
+  private TileTypes       Types;    // What each tile ID stands for
+  private BufferedImage[] Textures; // The textures cut out of the tile sheet
+  private ChunkSource     source;   // Where the chunks read the tiles from
+  private ChunkManager    chunks;   // The tiles, loaded a chunk at a time
+
+  /** Reads the settings of the layer at the given index from the game's configuration **/
+  public MapLayer(GameConfig config, int index)
+  {
+    String prefix = (index == 0) ? "" : "Layer" + index + ".";
+    Index      = index;
+    TileWidth  = config.getTileWidth();
+    TileHeight = config.getTileHeight();
+    Name       = config.get(prefix + "Name", (index == 0) ? "ground" : "layer" + index);
+    ImgPath    = config.get(prefix + "ImgFile", config.getImgFile());
+    TileCountX = config.getInt(prefix + "TileCountX", config.getTileCountX());
+    TileCountY = config.getInt(prefix + "TileCountY", config.getTileCountY());
+    MapFile    = (index == 0) ? config.getMapFile() : config.get(prefix + "MapFile", null);
+    EmptyId    = config.getInt(prefix + "EmptyTile", (index == 0) ? -1 : 0);
+    bAbove     = (index > 0) && config.getBoolean(prefix + "Above", false);
+    bDynamic   = config.getBoolean(prefix + "Dynamic", false);
+    Types      = new TileTypes(TileCountX * TileCountY, config, prefix);
+  }
+
+  /**
+     Reads the layer's tiles, without changing the layer.
+     The map is width x height tiles; bin is the map's own
+     file if it is a binary map (or null), in which case the
+     ground is its first layer. Safe to call from any thread.
+
+     A file that can't be read leaves what could be read of
+     it (or an empty layer), unless strict is true: then null
+     is returned instead, so a reload can keep the old tiles.
+  **/
+  public ChunkSource readSource(BinaryMapFile bin, int width, int height, boolean strict)
+  {
+    ChunkSource tiles = null;
+    if (Index == 0 && bin == null)
+    {
+      tiles = readTextMap(MapFile, width, height, strict);
+      if (tiles == null)
+         return null;
+    }
+    else if (Index > 0 && MapFile != null)
+    {
+      BinaryMapFile own = openBinary(MapFile);
+      if (own == null && strict && BinaryMapFile.isBinaryMap(new File(MapFile)))
+         return null;
+      tiles = (own != null) ? own.getLayer(0) : readTextMap(MapFile, width, height, strict);
+      if (tiles == null && strict)
+         return null;
+    }
+    else if (bin != null && Index < bin.getLayerCount())
+      tiles = bin.getLayer(Index);
+
+    if (tiles != null && tiles.getWidth() == width && tiles.getHeight() == height)
+       return tiles;
+    if (tiles != null && strict)
+    {
+      System.out.println("Error: layer "+Name+" is "+tiles.getWidth()+"x"+tiles.getHeight()+", not "+width+"x"+height);
+      return null;
+    }
+    if (tiles != null)
+       System.out.println("Warning: layer "+Name+" is "+tiles.getWidth()+"x"+tiles.getHeight()+", not "+width+"x"+height+"; leaving it empty");
+    return emptySource(width, height, Math.max(0, EmptyId));
+  }
+
+  /** Returns a source of width x height tiles that all have the same ID **/
+  private static ChunkSource emptySource(final int width, final int height, final int id)
+  {
+    return new ChunkSource()
+    {
+      public int getWidth()
+      {
+        return width;
+      }
+
+      public int getHeight()
+      {
+        return height;
+      }
+
+      public void read(int col, int row, int w, int h, char[] dest)
+      {
+        Arrays.fill(dest, 0, w * h, (char)id);
+      }
+    };
+  }
+
+  /**
+     Opens a binary map (see BinaryMapFile), or returns null
+     if the file isn't one or can't be read.
+  **/
+  static BinaryMapFile openBinary(String file)
+  {
+    File mapFile = new File(file);
+    if (!BinaryMapFile.isBinaryMap(mapFile))
+       return null;
+    try
+    {
+      return BinaryMapFile.open(mapFile);
+    }
+    catch (IOException e)
+    {
+      System.out.println("Error reading file("+mapFile+"):\n"+e);
+      return null;
+    }
+  }
+
+  /**
+     Reads a width x height text map (see MapDataParser). If
+     the file can't be read or parsed, returns what could be
+     read of it, or null if strict is true.
+  **/
+  static ChunkSource readTextMap(String file, int width, int height, boolean strict)
+  {
+    File mapFile = new File(file);
+    char[][] CharMap = new char[height][width];
+    FileInputStream in = null;
+    try
+    {
+      in = new FileInputStream(mapFile);
+      MapDataParser.parse(in.getChannel(), mapFile.getPath(), CharMap);
+    }
+    catch (IOException e)
+    {
+      System.out.println("Error reading file("+mapFile+"):\n"+e);
+      if (strict)
+         return null;
+    }
+    finally
+    {
+      if (in != null)
+         try { in.close(); } catch (IOException e) {}
+    }
+    return new ArrayChunkSource(CharMap);
+  }
+
+  /**
+     Splits the tiles of the source into chunks, throwing
+     away the old ones.
+  **/
+  public void createChunks(ChunkSource source, int chunkSize, long budgetBytes, boolean prefetch)
+  {
+    if (chunks != null)
+       chunks.shutdown();
+    this.source = source;
+    chunks = new ChunkManager(source, chunkSize, budgetBytes, prefetch);
+  }
+
+  /**
+     Switches to a new source of the same size. Returns the
+     loaded chunks whose tiles changed.
+  **/
+  public java.util.List<MapChunk> setSource(ChunkSource source)
+  {
+    this.source = source;
+    return chunks.setSource(source);
+  }
+
+  /**
+     Reads the tile sheet and cuts it into textures, without
+     changing the layer. Safe to call from any thread. If the
+     sheet can't be read, the textures are all null, or if
+     strict is true, null is returned instead.
+
+     Each texture is copied out of the tile sheet into its
+     own compatible image (see ImageUtils) so that Java2D
+     can accelerate it.
+  **/
+  public BufferedImage[] readTextures(boolean strict)
+  {
+    BufferedImage ImgFile = null;
+    try { ImgFile=ImageIO.read(new File(ImgPath)); } catch(IOException e) {
+    System.out.println("Error reading file("+ImgPath+"):\n"+e); }
+
+    BufferedImage[] textures = new BufferedImage[TileCountX * TileCountY];
+    if (ImgFile == null)
+       return strict ? null : textures;
+
+    int i = 0;
+    for (int y = 0; y < TileCountY; y++)
+    {
+      for (int x = 0; x < TileCountX; x++)
+      {
+        textures[i] = ImageUtils.copyRegion(ImgFile, x*TileWidth, y*TileHeight, TileWidth, TileHeight);
+        i++;
+      }
+    }
+    return textures;
+  }
+
+  public void setTextures(BufferedImage[] textures)
+  {
+    Textures = textures;
+  }
+
+  /**
+     Draws the layer's tiles of the chunk that lie in columns
+     x0 .. x1 and rows y0 .. y1 (map positions, inclusive).
+     The tile at (col, row) goes at (col * TileWidth - left,
+     row * TileHeight - top).
+  **/
+  public void drawTiles(Graphics2D g, MapChunk chunk, int x0, int y0, int x1, int y1, int left, int top)
+  {
+    for (int y = y0; y <= y1; y++)
+    {
+      for (int x = x0; x <= x1; x++)
+      {
+        int id = chunk.getId(x, y);
+        if (id != EmptyId)
+           g.drawImage(Textures[Types.getTexture(id)], x * TileWidth - left, y * TileHeight - top, null);
+      }
+    }
+  }
+
+  /** Returns true if every tile of the chunk is empty **/
+  public boolean isEmpty(MapChunk chunk)
+  {
+    return EmptyId >= 0 && chunk.isAll(EmptyId);
+  }
+
+  /** Returns true if the tile at (col, row) is collidable (loading its chunk if needed) **/
+  public boolean isCollidable(int col, int row)
+  {
+    return Types.isCollidable(chunks.getChunkAt(col, row).getId(col, row));
+  }
+
+  public String getName()
+  {
+    return Name;
+  }
+
+  public int getIndex()
+  {
+    return Index;
+  }
+
+  /**
+     Returns the file the layer's tiles are read from. Above
+     the ground this is null if they come from the map's
+     binary file (or nowhere).
+  **/
+  public String getMapFile()
+  {
+    return MapFile;
+  }
+
+  public String getImgFile()
+  {
+    return ImgPath;
+  }
+
+  public int getEmptyId()
+  {
+    return EmptyId;
+  }
+
+  public boolean isAbove()
+  {
+    return bAbove;
+  }
+
+  public boolean isDynamic()
+  {
+    return bDynamic;
+  }
+
+  public TileTypes getTileTypes()
+  {
+    return Types;
+  }
+
+  public BufferedImage[] getTextures()
+  {
+    return Textures;
+  }
+
+  public ChunkSource getSource()
+  {
+    return source;
+  }
+
+  public ChunkManager getChunks()
+  {
+    return chunks;
+  }
+}
@@ -0,0 +1,210 @@
+import java.util.*;
+
+/**
+   A rectangle of tile IDs stored in as few bits as the
+   tiles allow.
+
+   The different IDs in the layer are listed in a palette,
+   and each tile stores only the index of its ID in the
+   palette, packed into longs. The number of bits per tile
+   is the smallest of 0, 1, 2, 4, 8 and 16 that can index
+   the palette, so a layer of a single ID costs nothing per
+   tile and one with up to 16 different IDs costs 4 bits per
+   tile. Since the entry size always divides 64, no entry is
+   ever split between two longs.
+
+   When set() brings in more IDs than the entries can
+   index, the layer is repacked with bigger entries. IDs
+   that are no longer used stay in the palette until the
+   next setAll().
+**/
+public class PackedTileLayer
+{
+  private int    Width;            // Width of the layer, in tiles
+  private int    Height;           // Height of the layer, in tiles
+  private char[] palette;          // The different IDs in the layer
+  private int    paletteSize;
+  private int    bitsLog;          // log2 of the bits per tile, or -1 for 0 bits
+  private long[] data;             // The palette indexes, 64 bits at a time
+
+  /** Creates a layer of width x height tiles, all with ID 0 **/
+  public PackedTileLayer(int width, int height)
+  {
+    Width   = width;
+    Height  = height;
+    palette = new char[1];
+    paletteSize = 1;
+    bitsLog = -1;
+  }
+
+  /** Returns the ID of the tile at (x, y) **/
+  public int get(int x, int y)
+  {
+    return get(y * Width + x);
+  }
+
+  /** Returns the ID of the i-th tile (row after row) **/
+  public int get(int i)
+  {
+    return palette[indexAt(i)];
+  }
+
+  /** Returns the palette index stored for the i-th tile **/
+  private int indexAt(int i)
+  {
+    if (bitsLog < 0)
+       return 0;
+    int bits = 1 << bitsLog;
+    int shift = (i << bitsLog) & 63;
+    long word = data[(i << bitsLog) >>> 6];
+    return (int)(word >>> shift) & ((1 << bits) - 1);
+  }
+
+  /** Changes the ID of the tile at (x, y) **/
+  public void set(int x, int y, int id)
+  {
+    set(y * Width + x, id);
+  }
+
+  /** Changes the ID of the i-th tile **/
+  public void set(int i, int id)
+  {
+    int p = indexOf(id);
+    if (p < 0)
+    {
+      p = add(id);
+      if (p >= capacity())
+         repack(bitsFor(paletteSize));
+    }
+    put(i, p);
+  }
+
+  /**
+     Replaces every tile with the IDs in ids (row after row),
+     rebuilding the palette from scratch.
+  **/
+  public void setAll(char[] ids)
+  {
+    int n = Width * Height;
+    paletteSize = 0;
+
+    /** find the palette first, so the layer is packed just once **/
+    int[] index = new int[n];
+    for (int i = 0; i < n; i++)
+    {
+      int p = indexOf(ids[i]);
+      index[i] = (p >= 0) ? p : add(ids[i]);
+    }
+    if (paletteSize == 0)
+       add(0);
+
+    bitsLog = bitsFor(paletteSize);
+    data = (bitsLog < 0) ? null : new long[(int)(((long)n << bitsLog) + 63 >>> 6)];
+    if (bitsLog >= 0)
+    {
+      for (int i = 0; i < n; i++)
+          put(i, index[i]);
+    }
+  }
+
+  /** Copies every tile's ID into dest (row after row) **/
+  public void getAll(char[] dest)
+  {
+    int n = Width * Height;
+    if (bitsLog < 0)
+    {
+      Arrays.fill(dest, 0, n, palette[0]);
+      return;
+    }
+    for (int i = 0; i < n; i++)
+        dest[i] = (char)get(i);
+  }
+
+  /** Returns the palette index of the ID, or -1 if it isn't in the palette **/
+  private int indexOf(int id)
+  {
+    for (int p = 0; p < paletteSize; p++)
+    {
+      if (palette[p] == id)
+         return p;
+    }
+    return -1;
+  }
+
+  /** Adds an ID to the palette and returns its index **/
+  private int add(int id)
+  {
+    if (paletteSize == palette.length)
+       palette = Arrays.copyOf(palette, palette.length * 2);
+    palette[paletteSize] = (char)id;
+    return paletteSize++;
+  }
+
+  /** Returns log2 of the bits per tile needed to index size palette entries (-1 for none) **/
+  private static int bitsFor(int size)
+  {
+    if (size <= 1)
+       return -1;
+    int bits = 32 - Integer.numberOfLeadingZeros(size - 1);   // 1 .. 16
+    return 32 - Integer.numberOfLeadingZeros(bits - 1);        // rounded up to a power of two
+  }
+
+  /** Returns how many palette entries the current entry size can index **/
+  private int capacity()
+  {
+    return (bitsLog < 0) ? 1 : 1 << (1 << bitsLog);
+  }
+
+  /** Stores palette index p for the i-th tile **/
+  private void put(int i, int p)
+  {
+    if (bitsLog < 0)
+       return;
+    int bits = 1 << bitsLog;
+    int shift = (i << bitsLog) & 63;
+    int w = (i << bitsLog) >>> 6;
+    long mask = ((1L << bits) - 1) << shift;
+    data[w] = (data[w] & ~mask) | ((long)p << shift);
+  }
+
+  /** Moves every tile into entries of 2^newBitsLog bits **/
+  private void repack(int newBitsLog)
+  {
+    int n = Width * Height;
+    int[] index = new int[n];
+    for (int i = 0; i < n; i++)
+        index[i] = indexAt(i);
+
+    bitsLog = newBitsLog;
+    data = new long[(int)(((long)n << bitsLog) + 63 >>> 6)];
+    for (int i = 0; i < n; i++)
+        put(i, index[i]);
+  }
+
+  public int getWidth()
+  {
+    return Width;
+  }
+
+  public int getHeight()
+  {
+    return Height;
+  }
+
+  /** Returns the number of bits each tile takes **/
+  public int getBitsPerTile()
+  {
+    return (bitsLog < 0) ? 0 : 1 << bitsLog;
+  }
+
+  public int getPaletteSize()
+  {
+    return paletteSize;
+  }
+
+  /** Returns the memory used by the packed tiles and the palette, in bytes **/
+  public long getBytes()
+  {
+    return ((data == null) ? 0 : 16L + 8L * data.length) + 16L + 2L * palette.length + 32L;
+  }
+}
@@ -0,0 +1,644 @@
+import java.util.*;
+
+/**
+   Finds paths for NPCs across a Map's tiles.
+
+   Sprites walk in the four directions only, so paths are
+   found by A* over a 4-connected grid, sped up with jump
+   point search: instead of putting every tile it walks past
+   on the open list, the search runs along straight lines
+   and only stops at tiles where a path could usefully turn
+   (jump points). The paths it finds are as short as plain
+   A*'s.
+
+   Whether each tile can be walked on is kept in a bitset of
+   its own, one bit per tile, a whole number of longs per
+   row. Horizontal runs are scanned 64 tiles at a time. The
+   bitset is updated whenever the map's tiles change (see
+   Map.TileListener).
+
+   Everything a search needs (costs, parents, the open list
+   as a binary heap) lives in int arrays which are reused by
+   every search. Instead of being cleared, their entries are
+   stamped with the number of the search that wrote them, so
+   starting a search costs nothing.
+
+   Recent paths are kept in an LRU cache. Any change to the
+   tiles throws the whole cache away, since a tile that
+   opens up can make any path too long.
+
+   Requests from many NPCs can be queued with request() and
+   answered a batch at a time by processRequests(), usually
+   once per update, so a crowd asking for paths at once is
+   spread over a few updates.
+
+   Not thread-safe; used from the game thread.
+**/
+public class Pathfinder implements Map.TileListener
+{
+  /** A path found by the Pathfinder **/
+  public static class Path
+  {
+    private int[] cols;               // The column of each waypoint
+    private int[] rows;               // The row of each waypoint
+    private int   length;             // Number of steps from start to goal
+
+    private Path(int[] cols, int[] rows, int length)
+    {
+      this.cols   = cols;
+      this.rows   = rows;
+      this.length = length;
+    }
+
+    /**
+       Returns the number of waypoints, including the start
+       and the goal. Consecutive waypoints are always in the
+       same row or column, with nothing in between them.
+    **/
+    public int getWaypointCount()
+    {
+      return cols.length;
+    }
+
+    public int getCol(int i)
+    {
+      return cols[i];
+    }
+
+    public int getRow(int i)
+    {
+      return rows[i];
+    }
+
+    /** Returns the number of single tile steps along the path **/
+    public int getLength()
+    {
+      return length;
+    }
+
+    @Override public String toString()
+    {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < cols.length; i++)
+      {
+        if (i > 0)
+           sb.append(" -> ");
+        sb.append('(').append(cols[i]).append(',').append(rows[i]).append(')');
+      }
+      return sb.toString();
+    }
+  }
+
+  /** Told the answer to a request() **/
+  public interface Listener
+  {
+    /** path is null if the goal can't be reached **/
+    public void pathFound(int entity, Path path);
+  }
+
+  private static final Path NO_PATH = new Path(new int[0], new int[0], -1);  // cached "unreachable"
+
+  private Map map;
+  private int Width;                  // Width of the map, in tiles
+  private int Height;                 // Height of the map, in tiles
+  private int RowWords;               // Longs per row of the bitset
+  private long[] walkable;            // One bit per tile; set if it can be walked on
+
+  /** Per tile, reused by every search **/
+  private int[] stamp;                // The search that last touched the tile
+  private int[] cost;                 // Steps from the start to the tile
+  private int[] parent;               // The jump point the tile was reached from
+  private int[] heapPos;              // Position in the heap, or -1 once closed
+  private int   search;               // Number of the current search
+
+  /**
+     The open list, a binary heap on f = cost + estimate.
+     Ties go to the tile furthest from the start, which is
+     usually nearest to the goal.
+  **/
+  private int[]  heap;
+  private long[] heapKey;             // f << 32, minus the cost
+  private int   heapSize;
+
+  private int goalCol;                // Goal of the current search
+  private int goalRow;
+
+  private LinkedHashMap<Long, Path> cache;   // Recent paths, least recently used first
+  private int CacheSize;
+
+  /** Queued requests, as a ring buffer **/
+  private int[] reqEntity;
+  private int[] reqStart;             // row * Width + col
+  private int[] reqGoal;
+  private int   reqHead;
+  private int   reqCount;
+  private Listener listener;
+
+  private long searches;              // Searches run (cache misses)
+  private long cacheHits;
+  private long expanded;              // Jump points taken off the open list
+
+  /**
+     Creates a pathfinder for the map, keeping up to
+     cacheSize recent paths. The map's data must be loaded.
+  **/
+  public Pathfinder(Map map, int cacheSize)
+  {
+    this.map  = map;
+    CacheSize = Math.max(0, cacheSize);
+    cache = new LinkedHashMap<Long, Path>(16, 0.75f, true)
+    {
+      protected boolean removeEldestEntry(java.util.Map.Entry<Long, Path> eldest)
+      {
+        return size() > CacheSize;
+      }
+    };
+    reqEntity = new int[64];
+    reqStart  = new int[64];
+    reqGoal   = new int[64];
+
+    rebuild();
+    map.addTileListener(this);
+  }
+
+  /** Stops following the map's changes **/
+  public void dispose()
+  {
+    map.removeTileListener(this);
+  }
+
+  /** Reads every tile of the map into the bitset **/
+  private void rebuild()
+  {
+    Width    = map.getMapWidth();
+    Height   = map.getMapHeight();
+    RowWords = (Width + 63) >> 6;
+    walkable = new long[RowWords * Height];
+
+    int n = Width * Height;
+    if (stamp == null || stamp.length != n)
+    {
+      stamp   = new int[n];
+      cost    = new int[n];
+      parent  = new int[n];
+      heapPos = new int[n];
+      heap    = new int[Math.max(16, n / 8)];
+      heapKey = new long[heap.length];
+      search  = 0;
+    }
+
+    /** the map already keeps the collidable tiles as bits of the same layout **/
+    long[] blocked = map.getCollisionBits();
+    int words = map.getCollisionRowWords();
+    long last = ((Width & 63) == 0) ? -1L : (1L << (Width & 63)) - 1;
+    for (int row = 0; row < Height && RowWords > 0; row++)
+    {
+      for (int w = 0; w < RowWords; w++)
+          walkable[row * RowWords + w] = ~blocked[row * words + w];
+      walkable[row * RowWords + RowWords - 1] &= last;
+    }
+  }
+
+  /** Updates the bitset and empties the cache when tiles change **/
+  public void tilesChanged(int col, int row, int width, int height)
+  {
+    cache.clear();
+    if (map.getMapWidth() != Width || map.getMapHeight() != Height
+        || (col == 0 && row == 0 && width == Width && height == Height))
+    {
+      rebuild();
+      return;
+    }
+
+    /** a few tiles; ask the map, which knows about setTile() **/
+    for (int r = row; r < row + height; r++)
+    {
+      for (int c = col; c < col + width; c++)
+      {
+        if (map.isBlockedTile(c, r))
+           walkable[r * RowWords + (c >> 6)] &= ~(1L << (c & 63));
+        else
+           walkable[r * RowWords + (c >> 6)] |= 1L << (c & 63);
+      }
+    }
+  }
+
+  /** Returns true if the tile can be walked on (false if it is off the map) **/
+  public boolean isWalkable(int col, int row)
+  {
+    if (col < 0 || row < 0 || col >= Width || row >= Height)
+       return false;
+    return (walkable[row * RowWords + (col >> 6)] & (1L << (col & 63))) != 0;
+  }
+
+  /**
+     Returns the walkable bits of the 64 tiles of a row
+     starting at col (bit 0 is col). Tiles off the map are 0.
+  **/
+  private long bits(int row, int col)
+  {
+    if (row < 0 || row >= Height || col >= Width || col <= -64)
+       return 0;
+    if (col < 0)
+       return bits(row, 0) << -col;
+
+    int w = row * RowWords + (col >> 6);
+    int s = col & 63;
+    long b = walkable[w] >>> s;
+    if (s != 0 && (col >> 6) + 1 < RowWords)
+       b |= walkable[w + 1] << (64 - s);
+    return b;
+  }
+
+  //---- Searching ---- //
+
+  /**
+     Finds a shortest path from one tile to another, or
+     returns null if there is none (or either end is not
+     walkable). The path may come from the cache.
+  **/
+  public Path findPath(int startCol, int startRow, int goalCol, int goalRow)
+  {
+    if (!isWalkable(startCol, startRow) || !isWalkable(goalCol, goalRow))
+       return null;
+
+    int start = startRow * Width + startCol;
+    int goal  = goalRow * Width + goalCol;
+    Long key = ((long)start << 32) | goal;
+    Path path = cache.get(key);
+    if (path != null)
+    {
+      cacheHits++;
+      return (path == NO_PATH) ? null : path;
+    }
+
+    searches++;
+    path = search(startCol, startRow, goalCol, goalRow);
+    if (CacheSize > 0)
+       cache.put(key, (path == null) ? NO_PATH : path);
+    return path;
+  }
+
+  /** Runs A* with jump point search **/
+  private Path search(int startCol, int startRow, int goalCol, int goalRow)
+  {
+    this.goalCol = goalCol;
+    this.goalRow = goalRow;
+    if (++search == Integer.MAX_VALUE)
+    {
+      Arrays.fill(stamp, 0);
+      search = 1;
+    }
+    heapSize = 0;
+
+    int start = startRow * Width + startCol;
+    int goal  = goalRow * Width + goalCol;
+    visit(start, 0, -1, startCol, startRow);
+
+    while (heapSize > 0)
+    {
+      int node = pop();
+      expanded++;
+      if (node == goal)
+         return buildPath(goal);
+
+      int col = node % Width;
+      int row = node / Width;
+      int p = parent[node];
+
+      if (p < 0)
+      {
+        /** the start: every direction **/
+        jump(node, col, row, 1, 0);
+        jump(node, col, row, -1, 0);
+        jump(node, col, row, 0, 1);
+        jump(node, col, row, 0, -1);
+        continue;
+      }
+
+      int dx = Integer.signum(col - p % Width);
+      int dy = Integer.signum(row - p / Width);
+      if (dx != 0)
+      {
+        /** moving sideways: carry on, or turn up or down **/
+        jump(node, col, row, dx, 0);
+        jump(node, col, row, 0, 1);
+        jump(node, col, row, 0, -1);
+      }
+      else
+      {
+        /** moving up or down: carry on, or turn left or right **/
+        jump(node, col, row, 0, dy);
+        jump(node, col, row, 1, 0);
+        jump(node, col, row, -1, 0);
+      }
+    }
+    return null;
+  }
+
+  /**
+     Jumps from node in the direction (dx, dy) and adds the
+     jump point it lands on, if any, to the open list.
+  **/
+  private void jump(int node, int col, int row, int dx, int dy)
+  {
+    int c = col, r = row;
+    if (dx != 0)
+    {
+      c = (dx > 0) ? jumpEast(col + 1, row) : jumpWest(col - 1, row);
+      if (c < 0)
+         return;
+    }
+    else
+    {
+      r = jumpVertical(col, row + dy, dy);
+      if (r < 0)
+         return;
+    }
+    int steps = Math.abs(c - col) + Math.abs(r - row);
+    visit(r * Width + c, cost[node] + steps, node, c, r);
+  }
+
+  /**
+     Walks east along a row from col and returns the column
+     of the first jump point, or -1 if a wall (or the edge)
+     comes first. A tile is a jump point if it is the goal,
+     or if the tile above or below it is open while the one
+     behind that was blocked (so a path may need to turn
+     there). Tiles are looked at 64 at a time.
+  **/
+  private int jumpEast(int col, int row)
+  {
+    if (col < 0)
+       return -1;
+    for (int c = col; c < Width; c += 64)
+    {
+      long open   = bits(row, c);
+      long up     = bits(row - 1, c);
+      long down   = bits(row + 1, c);
+      long forced = (up & ~bits(row - 1, c - 1)) | (down & ~bits(row + 1, c - 1));
+      long goalBit = (row == goalRow && goalCol >= c && goalCol < c + 64) ? 1L << (goalCol - c) : 0;
+
+      int wall = Long.numberOfTrailingZeros(~open);
+      int stop = Long.numberOfTrailingZeros(forced | goalBit);
+      if (stop < wall)
+         return c + stop;
+      if (wall < 64)
+         return -1;
+    }
+    return -1;
+  }
+
+  /** Like jumpEast(), walking west from col **/
+  private int jumpWest(int col, int row)
+  {
+    if (col >= Width)
+       return -1;
+    for (int c = col; c >= 0; c -= 64)
+    {
+      /** bit 63 is column c, bit 0 is c - 63 **/
+      int first   = c - 63;
+      long open   = bits(row, first);
+      long up     = bits(row - 1, first);
+      long down   = bits(row + 1, first);
+      long forced = (up & ~bits(row - 1, first + 1)) | (down & ~bits(row + 1, first + 1));
+      long goalBit = (row == goalRow && goalCol <= c && goalCol > c - 64) ? 1L << (goalCol - first) : 0;
+
+      int wall = Long.numberOfLeadingZeros(~open);
+      int stop = Long.numberOfLeadingZeros(forced | goalBit);
+      if (stop < wall)
+         return c - stop;
+      if (wall < 64)
+         return -1;
+    }
+    return -1;
+  }
+
+  /**
+     Walks up (dy = -1) or down (dy = 1) a column from row
+     and returns the row of the first jump point, or -1. On
+     top of the goal and forced turns, a tile is also a jump
+     point if a jump east or west from it finds one, since
+     the shortest path may turn there.
+  **/
+  private int jumpVertical(int col, int row, int dy)
+  {
+    for (int r = row; ; r += dy)
+    {
+      if (!isWalkable(col, r))
+         return -1;
+      if (col == goalCol && r == goalRow)
+         return r;
+      if ((isWalkable(col - 1, r) && !isWalkable(col - 1, r - dy))
+          || (isWalkable(col + 1, r) && !isWalkable(col + 1, r - dy)))
+         return r;
+      if (jumpEast(col + 1, r) >= 0 || jumpWest(col - 1, r) >= 0)
+         return r;
+    }
+  }
+
+  /** Puts a tile on the open list, or lowers its cost if it is there already **/
+  private void visit(int node, int g, int from, int col, int row)
+  {
+    if (stamp[node] != search)
+    {
+      stamp[node]   = search;
+      cost[node]    = g;
+      parent[node]  = from;
+      heapPos[node] = -1;
+      push(node, key(g, col, row));
+      return;
+    }
+    if (g >= cost[node] || heapPos[node] < 0)   // no better, or already closed
+       return;
+
+    cost[node]   = g;
+    parent[node] = from;
+    int i = heapPos[node];
+    heapKey[i] = key(g, col, row);
+    siftUp(i);
+  }
+
+  /** The heap key of a tile g steps from the start **/
+  private long key(int g, int col, int row)
+  {
+    return ((long)(g + estimate(col, row)) << 32) - g;
+  }
+
+  /** The number of steps to the goal if nothing were in the way **/
+  private int estimate(int col, int row)
+  {
+    return Math.abs(col - goalCol) + Math.abs(row - goalRow);
+  }
+
+  /** Follows the parents back from the goal **/
+  private Path buildPath(int goal)
+  {
+    int n = 0;
+    for (int node = goal; node >= 0; node = parent[node])
+        n++;
+
+    int[] cols = new int[n];
+    int[] rows = new int[n];
+    for (int node = goal; node >= 0; node = parent[node])
+    {
+      n--;
+      cols[n] = node % Width;
+      rows[n] = node / Width;
+    }
+    return new Path(cols, rows, cost[goal]);
+  }
+
+  //---- The open list ---- //
+
+  private void push(int node, long key)
+  {
+    if (heapSize == heap.length)
+    {
+      heap    = Arrays.copyOf(heap, heap.length * 2);
+      heapKey = Arrays.copyOf(heapKey, heapKey.length * 2);
+    }
+    heap[heapSize]    = node;
+    heapKey[heapSize] = key;
+    heapPos[node]   = heapSize;
+    siftUp(heapSize++);
+  }
+
+  /** Takes the tile with the lowest f off the open list (it is then closed) **/
+  private int pop()
+  {
+    int node = heap[0];
+    heapPos[node] = -1;
+    heapSize--;
+    if (heapSize > 0)
+    {
+      heap[0]    = heap[heapSize];
+      heapKey[0] = heapKey[heapSize];
+      heapPos[heap[0]] = 0;
+      siftDown(0);
+    }
+    return node;
+  }
+
+  private void siftUp(int i)
+  {
+    int node = heap[i];
+    long key = heapKey[i];
+    while (i > 0)
+    {
+      int p = (i - 1) >> 1;
+      if (heapKey[p] <= key)
+         break;
+      heap[i]    = heap[p];
+      heapKey[i] = heapKey[p];
+      heapPos[heap[i]] = i;
+      i = p;
+    }
+    heap[i]    = node;
+    heapKey[i] = key;
+    heapPos[node] = i;
+  }
+
+  private void siftDown(int i)
+  {
+    int node = heap[i];
+    long key = heapKey[i];
+    while (true)
+    {
+      int child = 2 * i + 1;
+      if (child >= heapSize)
+         break;
+      if (child + 1 < heapSize && heapKey[child + 1] < heapKey[child])
+         child++;
+      if (heapKey[child] >= key)
+         break;
+      heap[i]    = heap[child];
+      heapKey[i] = heapKey[child];
+      heapPos[heap[i]] = i;
+      i = child;
+    }
+    heap[i]    = node;
+    heapKey[i] = key;
+    heapPos[node] = i;
+  }
+
+  //---- Batches ---- //
+
+  /** Sets who is told the answers to request() **/
+  public void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  /**
+     Queues a request for a path for an entity. The answer
+     goes to the listener from a later processRequests().
+  **/
+  public void request(int entity, int startCol, int startRow, int goalCol, int goalRow)
+  {
+    if (reqCount == reqEntity.length)
+    {
+      int n = reqEntity.length * 2;
+      reqEntity = unwrap(reqEntity, n);
+      reqStart  = unwrap(reqStart, n);
+      reqGoal   = unwrap(reqGoal, n);
+      reqHead   = 0;
+    }
+    int i = (reqHead + reqCount++) % reqEntity.length;
+    reqEntity[i] = entity;
+    reqStart[i]  = startRow * Width + startCol;
+    reqGoal[i]   = goalRow * Width + goalCol;
+  }
+
+  /** Copies a ring buffer into a bigger one, oldest entry first **/
+  private int[] unwrap(int[] ring, int n)
+  {
+    int[] a = new int[n];
+    for (int i = 0; i < reqCount; i++)
+        a[i] = ring[(reqHead + i) % ring.length];
+    return a;
+  }
+
+  /**
+     Answers queued requests, oldest first, until they are
+     all answered or budgetNanos has passed (at least one is
+     answered each call). Returns the number answered.
+  **/
+  public int processRequests(long budgetNanos)
+  {
+    long deadline = System.nanoTime() + budgetNanos;
+    int done = 0;
+    while (reqCount > 0)
+    {
+      int i = reqHead;
+      reqHead = (reqHead + 1) % reqEntity.length;
+      reqCount--;
+
+      int s = reqStart[i];
+      int g = reqGoal[i];
+      Path path = findPath(s % Width, s / Width, g % Width, g / Width);
+      if (listener != null)
+         listener.pathFound(reqEntity[i], path);
+      done++;
+
+      if (System.nanoTime() - deadline >= 0)
+         break;
+    }
+    return done;
+  }
+
+  /** Returns the number of requests waiting for processRequests() **/
+  public int getPendingCount()
+  {
+    return reqCount;
+  }
+
+  /** Returns a one-line summary of the pathfinder statistics **/
+  public String getStats()
+  {
+    long requests = searches + cacheHits;
+    return "paths=" + requests + " searched=" + searches + " cached=" + cache.size() + "/" + CacheSize
+         + " hit rate=" + ((requests == 0) ? 0 : (100 * cacheHits / requests)) + "%"
+         + " jump points/search=" + ((searches == 0) ? 0 : expanded / searches);
+  }
+}
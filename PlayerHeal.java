@@ -11,6 +11,9 @@ import javax.swing.ImageIcon;
 **/
 public class PlayerHeal extends Spell
 {
+  // The tiled image holding the spell's animation frames
+  private static final String EFFECTS_FILE = "../art/effects32.png";
+
   /** The images that are used to draw the animation
       for this spell **/
   private BufferedImage forming;
@@ -64,57 +67,44 @@ public class PlayerHeal extends Spell
   }
   
   /**
-     Uses the ImageTileLoader class to load BufferedImages
-     which represent the various stages of the spell **/
+     Uses the AssetCache to load BufferedImages
+     which represent the various stages of the spell.
+     The effects sheet is only decoded once, however many
+     spells use it.
+  **/
   protected void loadTiledImages()
   {
-    ImageTileLoader.setTiledImage("../art/effects32.png");
-    forming = ImageTileLoader.getTile(1, 4);
-    formed = ImageTileLoader.getTile(1, 8);
-    dissipating = ImageTileLoader.getTile(1, 5);
-    dissipated = ImageTileLoader.getTile(1, 6);
-    
-    // IMPORTANT: Clear the ImageTileLoader
-    ImageTileLoader.clearTiledImage();
+    forming = loadTile(1, 4);
+    formed = loadTile(1, 8);
+    dissipating = loadTile(1, 5);
+    dissipated = loadTile(1, 6);
+  }
+
+  /** Returns the 32x32 tile at (32x,32y) of the effects sheet **/
+  private BufferedImage loadTile(int x, int y)
+  {
+    return AssetCache.getDefault().acquire(EFFECTS_FILE, x*32, y*32, 32, 32);
+  }
+
+  /** Releases the animation frames back to the AssetCache **/
+  public void dispose()
+  {
+    super.dispose();
+    AssetCache cache = AssetCache.getDefault();
+    cache.release(forming);
+    cache.release(formed);
+    cache.release(dissipating);
+    cache.release(dissipated);
+    forming = formed = dissipating = dissipated = null;
   }
 
   /**
      Draws the animation image onto the sprite casting
      this spell, because it is a self-heal.
   **/
-  public void draw(Graphics g, long elapsedTime)
+  public void draw(Graphics g)
   {
-    /** If the spell was just cast... **/
-    if (state == SpellState.CASTING)
-    {
-      anim.start(); // start the animation (from the beginning)
-      g.drawImage(anim.getImage(), caster.getX(), caster.getY(), null);
-      spellTimer += elapsedTime; // increase the spell timer so that the spell knows
-                                 // when it is finished casting
-
-      state = SpellState.CAST;   // the spell has now been 'cast', we just need to update
-                                 // its animation from now on
-    }
-
-    /** If the spell has already been cast **/
-    else if (state == SpellState.CAST)
-    {
-      anim.update(elapsedTime); // update the animation since the last drawing
-      g.drawImage(anim.getImage(), caster.getX(), caster.getY(), null);
-      spellTimer += elapsedTime;
-    }
-
-    /** The spell is done casting if this is true **/
-    if (spellTimer > anim.getTotalDuration())
-    {
-      effect();
-      
-    /**
-       The spell has finished casting,
-       so we need to reset its state variable and timer.
-    **/
-    state = SpellState.STANDBY;
-    spellTimer = 0;
-    }
+    if (state != SpellState.STANDBY)
+       g.drawImage(anim.getImage(), caster.getX(), caster.getY(), null);
   }
-}
\ No newline at end of file
+}
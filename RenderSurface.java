@@ -0,0 +1,57 @@
+import java.awt.*;
+
+/**
+   Somewhere the game's frames are drawn: a window, or just
+   an image in memory when there is no display.
+
+   A frame is drawn with the graphics from getDrawGraphics()
+   and handed back to show(). Surfaces whose contents can be
+   lost (see StrategySurface) may ask for the frame to be
+   drawn again:
+
+       do
+       {
+         Graphics2D g = surface.getDrawGraphics();
+         draw(g);
+       }
+       while (!surface.show(g));
+
+   When the surface keeps the last frame (preservesContents()),
+   a frame may draw over only the parts that changed and show
+   just those with show(g, region).
+**/
+public interface RenderSurface
+{
+  /** The width of the surface, in pixels **/
+  int getWidth();
+
+  /** The height of the surface, in pixels **/
+  int getHeight();
+
+  /** Returns the graphics the next frame should be drawn with **/
+  Graphics2D getDrawGraphics();
+
+  /**
+     Shows the frame drawn with g, which mustn't be used
+     afterwards. Returns false if the frame was lost and has
+     to be drawn again.
+  **/
+  boolean show(Graphics2D g);
+
+  /**
+     Shows the part of the frame in region (the whole frame
+     if it is null). Surfaces that can only show whole frames
+     show everything.
+  **/
+  boolean show(Graphics2D g, Rectangle region);
+
+  /**
+     Returns true if the graphics of the next frame still hold
+     the last frame shown, so only what changed has to be
+     drawn.
+  **/
+  boolean preservesContents();
+
+  /** Releases the surface's resources **/
+  void dispose();
+}
@@ -0,0 +1,290 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+   Steps many independent worlds at a fixed tick rate,
+   without drawing any of them, on a work-stealing pool of
+   threads. This is what a server hosting many games runs.
+
+   A clock thread marks the start of each tick and hands
+   every world whose previous tick has finished to the pool.
+   A world is only ever stepped by one thread at a time; if it
+   is still busy when the next tick starts, it catches up on
+   the missed ticks (up to MAX_CATCH_UP of them in a row) as
+   soon as it is done, and any further ones are dropped.
+
+   For every world, the host records how late each tick
+   started after it was due, and how long it took from when
+   it was due until it finished, in LatencyHistograms.
+
+   Usage:
+       java SimulationHost [worlds] [seconds] [threads]
+**/
+public class SimulationHost
+{
+  // max number of ticks a world may run back to back to catch up
+  private static final int MAX_CATCH_UP = 5;
+
+  /** Feeds a world its commands (e.g. from the network, or an AI) each tick **/
+  public interface Driver
+  {
+    void tick(World world, long tick);
+  }
+
+  /** A hosted world **/
+  private class Slot implements Runnable
+  {
+    final String name;
+    final World world;
+    final Driver driver;
+    final AtomicBoolean busy = new AtomicBoolean();   // being stepped (or queued to be)?
+
+    long ticks;              // ticks stepped (changed under the slot's lock by the thread stepping it)
+    long dropped;            // ticks skipped because the world fell too far behind (same)
+    volatile long overruns;  // ticks that started while the world was still busy (clock thread only)
+    Throwable failure;       // what stopped the world, if anything
+
+    LatencyHistogram lag = new LatencyHistogram();      // due until started
+    LatencyHistogram latency = new LatencyHistogram();  // due until finished
+
+    Slot(String name, World world, Driver driver)
+    {
+      this.name   = name;
+      this.world  = world;
+      this.driver = driver;
+    }
+
+    /** Steps the world up to the current tick **/
+    public void run()
+    {
+      try
+      {
+        long target = currentTick;
+        int steps = 0;
+        while (ticks < target && steps < MAX_CATCH_UP && failure == null)
+        {
+          long due = startTime + ticks * TickNanos;
+          long start = System.nanoTime();
+
+          world.update(getTickMillis(ticks));
+          if (driver != null)
+             driver.tick(world, ticks);
+
+          long end = System.nanoTime();
+          synchronized (this)
+          {
+            lag.record(start - due);
+            latency.record(end - due);
+            ticks++;
+          }
+          steps++;
+        }
+
+        /** too far behind; forget the rest rather than fall further behind **/
+        if (ticks < target && steps >= MAX_CATCH_UP)
+        {
+          synchronized (this)
+          {
+            dropped += target - ticks;
+            ticks = target;
+          }
+        }
+      }
+      catch (RuntimeException e)
+      {
+        System.err.println("Error in world " + name + ":\n" + e);
+        failure = e;
+      }
+      finally
+      {
+        busy.set(false);
+      }
+    }
+  }
+
+  private long TickNanos;                 // The length of a tick
+  private ForkJoinPool pool;              // Steps the worlds
+  private CopyOnWriteArrayList<Slot> slots;
+  private Thread clock;                   // Starts the ticks
+  private volatile boolean isRunning;
+  private volatile long currentTick;      // Number of ticks that have started
+  private volatile long startTime;        // When tick 0 was due
+
+  /** Creates a host that ticks ticksPerSecond times a second on the given number of threads **/
+  public SimulationHost(int ticksPerSecond, int threads)
+  {
+    TickNanos  = 1000000000L / ticksPerSecond;
+    slots      = new CopyOnWriteArrayList<Slot>();
+
+    final AtomicInteger count = new AtomicInteger();
+    pool = new ForkJoinPool(Math.max(1, threads), new ForkJoinPool.ForkJoinWorkerThreadFactory()
+    {
+      public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+      {
+        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        t.setName("sim-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    }, null, true);   // FIFO: ticks are events, not divide-and-conquer work
+  }
+
+  /**
+     Adds a loaded world, which is stepped from the next tick
+     on. Worlds should be renderless (see World.setRenderless).
+  **/
+  public void addWorld(String name, World world, Driver driver)
+  {
+    Slot slot = new Slot(name, world, driver);
+    slot.ticks = currentTick;
+    slots.add(slot);
+  }
+
+  /** Stops stepping a world. Returns false if there is no such world. **/
+  public boolean removeWorld(String name)
+  {
+    for (Slot slot : slots)
+    {
+      if (slot.name.equals(name))
+         return slots.remove(slot);
+    }
+    return false;
+  }
+
+  /** Starts ticking **/
+  public void start()
+  {
+    isRunning = true;
+    startTime = System.nanoTime();
+    clock = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        tickLoop();
+      }
+    }, "sim-clock");
+    clock.setDaemon(true);
+    clock.start();
+  }
+
+  /** Stops ticking and waits for the worlds being stepped to finish **/
+  public void stop() throws InterruptedException
+  {
+    isRunning = false;
+    if (clock != null)
+       clock.join();
+    pool.shutdown();
+    pool.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  /** Starts a tick every TickNanos, handing each idle world to the pool **/
+  private void tickLoop()
+  {
+    long tick = 0;
+    while (isRunning)
+    {
+      long due = startTime + tick * TickNanos;
+      long wait;
+      while ((wait = due - System.nanoTime()) > 0)
+        LockSupport.parkNanos(wait);
+
+      tick++;
+      currentTick = tick;
+      for (Slot slot : slots)
+      {
+        if (slot.busy.compareAndSet(false, true))
+           pool.execute(slot);
+        else
+           slot.overruns++;
+      }
+    }
+  }
+
+  /**
+     Returns the milliseconds World.update() is handed for a
+     tick. Ticks that aren't a whole number of milliseconds
+     long (60 a second is 16.67ms) are handed 16 or 17, so
+     that they add up to the right time.
+  **/
+  private long getTickMillis(long tick)
+  {
+    return ((tick + 1) * TickNanos) / 1000000L - (tick * TickNanos) / 1000000L;
+  }
+
+  public int getWorldCount()
+  {
+    return slots.size();
+  }
+
+  /** Returns a line per world with its tick counts and latencies **/
+  public String getReport()
+  {
+    StringBuilder sb = new StringBuilder();
+    LatencyHistogram all = new LatencyHistogram();
+    long ticks = 0, dropped = 0, overruns = 0;
+    for (Slot slot : slots)
+    {
+      synchronized (slot)
+      {
+        sb.append(String.format("  %-10s ticks %d dropped %d overruns %d | lag %s | latency %s%n",
+                                slot.name, slot.ticks, slot.dropped, slot.overruns, slot.lag, slot.latency));
+        all.add(slot.latency);
+        ticks    += slot.ticks;
+        dropped  += slot.dropped;
+        overruns += slot.overruns;
+      }
+    }
+    return String.format("%d worlds on %d threads at %d ticks/s: %d ticks, %d dropped, %d overruns, latency %s%n",
+                         slots.size(), pool.getParallelism(), 1000000000L / TickNanos, ticks, dropped, overruns, all)
+         + sb;
+  }
+
+  /**
+     Loads a number of renderless worlds from TileTest.ini,
+     has their players walk around, and reports the tick
+     latencies after running them for a while.
+  **/
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    int worlds  = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+    int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+    int threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+    GameConfig config = GameConfig.load(TileTest.INI_FILE);
+    AssetCache.getDefault().setBudget(config.getAssetCacheBytes());
+
+    SimulationHost host = new SimulationHost(config.getInt("UpdateRate", 100), threads);
+    final Direction[] path = { Direction.EAST, Direction.SOUTH, Direction.WEST, Direction.NORTH };
+    ArrayList<World> loaded = new ArrayList<World>();
+    for (int i = 0; i < worlds; i++)
+    {
+      World world = new World(config, config.getFrameWidth(), config.getFrameHeight());
+      world.setRenderless(true);
+      if (!world.load())
+         System.exit(1);
+      loaded.add(world);
+
+      /** each player walks its own square, starting at a different corner **/
+      final int offset = i;
+      host.addWorld("world-" + i, world, new Driver()
+      {
+        public void tick(World world, long tick)
+        {
+          world.move(path[(int)((tick / 8 + offset) % path.length)]);
+        }
+      });
+    }
+
+    host.start();
+    Thread.sleep(seconds * 1000L);
+    host.stop();
+    System.out.print(host.getReport());
+
+    for (World world : loaded)
+        world.dispose();
+  }
+}
@@ -0,0 +1,303 @@
+import java.util.*;
+
+/**
+   Finds the entities near a point or inside an area without
+   looking at every entity.
+
+   The map is divided into a uniform grid of square cells,
+   each a whole number of tiles wide. Every cell keeps a list
+   of the entities in it. The lists are linked through int
+   arrays indexed by entity ID (head of each cell, next and
+   previous of each entity), so moving an entity from one
+   cell to another is a few array writes and nothing is ever
+   allocated. Entities outside the map are kept in the
+   nearest edge cell.
+
+   An EntityStore given an index (EntityStore.setIndex())
+   keeps it up to date as its entities are created, moved
+   and removed.
+
+   Queries write the IDs they find into a buffer supplied by
+   the caller and return how many they wrote; they stop when
+   the buffer is full.
+**/
+public class SpatialHash
+{
+  private int CellWidth;            // Width of a cell, in pixels
+  private int CellHeight;           // Height of a cell, in pixels
+  private int Cols;                 // Number of cell columns
+  private int Rows;                 // Number of cell rows
+
+  private int[] head;               // First entity in each cell, or -1
+  private int[] next;               // Next entity in the same cell, or -1 (by ID)
+  private int[] prev;               // Previous entity in the same cell, or -1 (by ID)
+  private int[] cellOf;             // The cell of each entity, or -1 if not indexed (by ID)
+  private int[] px;                 // X position of each entity (by ID)
+  private int[] py;                 // Y position of each entity (by ID)
+  private int   count;              // Number of entities indexed
+
+  private long[] nearest;           // Scratch space of nearest(): distance << 32 | ID
+
+  /**
+     Creates an index for a map of mapWidth x mapHeight tiles
+     of tileWidth x tileHeight pixels, with cells that are
+     tilesPerCell tiles wide and high.
+  **/
+  public SpatialHash(int mapWidth, int mapHeight, int tileWidth, int tileHeight, int tilesPerCell)
+  {
+    CellWidth  = tileWidth * tilesPerCell;
+    CellHeight = tileHeight * tilesPerCell;
+    Cols       = Math.max(1, (mapWidth + tilesPerCell - 1) / tilesPerCell);
+    Rows       = Math.max(1, (mapHeight + tilesPerCell - 1) / tilesPerCell);
+
+    head = new int[Cols * Rows];
+    Arrays.fill(head, -1);
+    next    = new int[0];
+    prev    = new int[0];
+    cellOf  = new int[0];
+    px      = new int[0];
+    py      = new int[0];
+    nearest = new long[16];
+  }
+
+  /** Returns the cell column of an X position, clamped to the grid **/
+  private int col(int x)
+  {
+    return Math.min(Cols - 1, Math.max(0, Math.floorDiv(x, CellWidth)));
+  }
+
+  /** Returns the cell row of a Y position, clamped to the grid **/
+  private int row(int y)
+  {
+    return Math.min(Rows - 1, Math.max(0, Math.floorDiv(y, CellHeight)));
+  }
+
+  /** Makes room for IDs up to id **/
+  private void ensureId(int id)
+  {
+    if (id < cellOf.length)
+       return;
+
+    int n = Math.max(id + 1, cellOf.length * 2);
+    int old = cellOf.length;
+    next   = Arrays.copyOf(next, n);
+    prev   = Arrays.copyOf(prev, n);
+    cellOf = Arrays.copyOf(cellOf, n);
+    px     = Arrays.copyOf(px, n);
+    py     = Arrays.copyOf(py, n);
+    Arrays.fill(cellOf, old, n, -1);
+  }
+
+  /** Adds an entity at (x, y), or moves it there if it is already indexed **/
+  public void insert(int id, int x, int y)
+  {
+    ensureId(id);
+    if (cellOf[id] >= 0)
+    {
+      move(id, x, y);
+      return;
+    }
+    px[id] = x;
+    py[id] = y;
+    link(id, row(y) * Cols + col(x));
+    count++;
+  }
+
+  /** Removes an entity from the index **/
+  public void remove(int id)
+  {
+    if (id >= cellOf.length || cellOf[id] < 0)
+       return;
+    unlink(id);
+    count--;
+  }
+
+  /**
+     Tells the index an entity moved to (x, y). The lists only
+     change when the entity crossed into another cell.
+  **/
+  public void move(int id, int x, int y)
+  {
+    px[id] = x;
+    py[id] = y;
+    int cell = row(y) * Cols + col(x);
+    if (cell == cellOf[id])
+       return;
+    unlink(id);
+    link(id, cell);
+  }
+
+  private void link(int id, int cell)
+  {
+    int first = head[cell];
+    next[id] = first;
+    prev[id] = -1;
+    if (first >= 0)
+       prev[first] = id;
+    head[cell] = id;
+    cellOf[id] = cell;
+  }
+
+  private void unlink(int id)
+  {
+    int p = prev[id];
+    int n = next[id];
+    if (p >= 0)
+       next[p] = n;
+    else
+       head[cellOf[id]] = n;
+    if (n >= 0)
+       prev[n] = p;
+    cellOf[id] = -1;
+  }
+
+  /** Removes every entity **/
+  public void clear()
+  {
+    Arrays.fill(head, -1);
+    Arrays.fill(cellOf, -1);
+    count = 0;
+  }
+
+  /** Number of entities indexed **/
+  public int getCount()
+  {
+    return count;
+  }
+
+  /**
+     Finds the entities within radius pixels of (x, y) and
+     writes their IDs into out. Returns how many were written.
+  **/
+  public int queryRadius(int x, int y, int radius, int[] out)
+  {
+    long r2 = (long)radius * radius;
+    int found = 0;
+    int c0 = col(x - radius), c1 = col(x + radius);
+    int r0 = row(y - radius), r1 = row(y + radius);
+    for (int r = r0; r <= r1; r++)
+    {
+      for (int c = c0; c <= c1; c++)
+      {
+        for (int id = head[r * Cols + c]; id >= 0; id = next[id])
+        {
+          long dx = px[id] - x;
+          long dy = py[id] - y;
+          if (dx * dx + dy * dy > r2)
+             continue;
+          if (found == out.length)
+             return found;
+          out[found++] = id;
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+     Finds the entities inside the width x height rectangle
+     whose top left corner is (x, y) and writes their IDs
+     into out. Returns how many were written.
+  **/
+  public int queryRect(int x, int y, int width, int height, int[] out)
+  {
+    int found = 0;
+    int c0 = col(x), c1 = col(x + width - 1);
+    int r0 = row(y), r1 = row(y + height - 1);
+    for (int r = r0; r <= r1; r++)
+    {
+      for (int c = c0; c <= c1; c++)
+      {
+        for (int id = head[r * Cols + c]; id >= 0; id = next[id])
+        {
+          if (px[id] < x || py[id] < y || px[id] >= x + width || py[id] >= y + height)
+             continue;
+          if (found == out.length)
+             return found;
+          out[found++] = id;
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+     Finds the out.length entities nearest to (x, y) (fewer
+     if there aren't that many), and writes their IDs into
+     out, nearest first. Returns how many were written.
+
+     The cells are searched in rings around (x, y), and the
+     search stops once no cell of the next ring can be closer
+     than the furthest entity found so far.
+  **/
+  public int queryNearest(int x, int y, int[] out)
+  {
+    int k = out.length;
+    if (k == 0 || count == 0)
+       return 0;
+    if (nearest.length < k)
+       nearest = new long[k];
+
+    int found = 0;
+    int cx = col(x);
+    int cy = row(y);
+    int maxRing = Math.max(Math.max(cx, Cols - 1 - cx), Math.max(cy, Rows - 1 - cy));
+
+    for (int ring = 0; ring <= maxRing; ring++)
+    {
+      /** every cell of this ring is at least this far away **/
+      if (found == k && ring > 0)
+      {
+        long gap = (long)(ring - 1) * Math.min(CellWidth, CellHeight);
+        if (gap * gap > (nearest[k - 1] >>> 32))
+           break;
+      }
+
+      for (int r = cy - ring; r <= cy + ring; r++)
+      {
+        if (r < 0 || r >= Rows)
+           continue;
+        boolean edgeRow = (r == cy - ring || r == cy + ring);
+        for (int c = cx - ring; c <= cx + ring; c += (edgeRow ? 1 : 2 * ring))
+        {
+          if (c >= 0 && c < Cols)
+             found = collectNearest(head[r * Cols + c], x, y, k, found);
+          if (ring == 0)
+             break;
+        }
+      }
+    }
+
+    for (int i = 0; i < found; i++)
+        out[i] = (int)nearest[i];
+    return found;
+  }
+
+  /**
+     Adds the entities of a cell's list to the sorted k best
+     in nearest[0 .. found-1]; returns the new count.
+  **/
+  private int collectNearest(int id, int x, int y, int k, int found)
+  {
+    for (; id >= 0; id = next[id])
+    {
+      long dx = px[id] - x;
+      long dy = py[id] - y;
+      long d2 = Math.min(dx * dx + dy * dy, 0x7FFFFFFFL);   // leaves room for the ID
+      long entry = (d2 << 32) | id;
+
+      if (found == k && entry >= nearest[k - 1])
+         continue;
+
+      /** insertion sort; k is small **/
+      int i = (found < k) ? found++ : k - 1;
+      while (i > 0 && nearest[i - 1] > entry)
+      {
+        nearest[i] = nearest[i - 1];
+        i--;
+      }
+      nearest[i] = entry;
+    }
+    return found;
+  }
+}
@@ -1,4 +1,6 @@
 import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.Rectangle;
 
 /**
    A Spell is any action taken by a sprite,
@@ -41,6 +43,8 @@ public abstract class Spell
   **/
   protected long spellTimer;
 
+  protected boolean bDisposed;          // Were the spell's images released? It can't be cast then
+
   /** 
       Creates a spell with no name and no animation.
       Not really useful at all, actually.
@@ -64,11 +68,12 @@ public abstract class Spell
 
   /**
      Called to indicate that the spell has just been
-     cast. This puts the spell in the CASTING state.
+     cast. This puts the spell in the CASTING state,
+     unless it is being cast already or was disposed.
   **/
   public void cast(Sprite caster, Sprite target)
   {
-    if (state == SpellState.STANDBY)
+    if (state == SpellState.STANDBY && !bDisposed)
     {
       this.caster = caster;
       this.target = target;
@@ -104,10 +109,80 @@ public abstract class Spell
   protected abstract void createAnimation();
   
   /**
-     The draw() method actually animates the
-     spell, depending on how much time has elapsed
-     since the spell was cast and the current animation
-     frame that needs to be drawn.
+     Advances the spell by elapsedTime: its animation moves
+     on, and once the animation has played through, the
+     spell's effect goes through and it goes back to STANDBY.
+
+     This is called for every update of the game, whether or
+     not the spell is ever drawn.
+  **/
+  public void update(long elapsedTime)
+  {
+    /** If the spell was just cast... **/
+    if (state == SpellState.CASTING)
+    {
+      anim.start(); // start the animation (from the beginning)
+      spellTimer += elapsedTime; // increase the spell timer so that the spell knows
+                                 // when it is finished casting
+
+      state = SpellState.CAST;   // the spell has now been 'cast', we just need to update
+                                 // its animation from now on
+    }
+
+    /** If the spell has already been cast **/
+    else if (state == SpellState.CAST)
+    {
+      anim.update(elapsedTime); // update the animation since the last update
+      spellTimer += elapsedTime;
+    }
+
+    /** The spell is done casting if this is true **/
+    if (state != SpellState.STANDBY && spellTimer > anim.getTotalDuration())
+    {
+      effect();
+      
+      /**
+         The spell has finished casting,
+         so we need to reset its state variable and timer.
+      **/
+      state = SpellState.STANDBY;
+      spellTimer = 0;
+    }
+  }
+
+  /**
+     Releases the spell's images (see AssetCache); the spell
+     stops and can't be cast again. Subclasses that acquire
+     images must release them here.
+  **/
+  public void dispose()
+  {
+    bDisposed = true;
+    state = SpellState.STANDBY;
+    spellTimer = 0;
+    caster = null;
+    target = null;
+  }
+
+  /**
+     The draw() method draws the current frame of the
+     spell's animation; update() decides which frame that is.
   **/
-  protected abstract void draw(Graphics g, long elapsedTime);
+  protected abstract void draw(Graphics g);
+
+  /**
+     Returns the part of the screen draw() covers right now,
+     or null if it draws nothing. By default that is the
+     animation's current frame at the caster's position;
+     spells that draw elsewhere override this.
+  **/
+  public Rectangle getBounds()
+  {
+    if (state == SpellState.STANDBY || caster == null || anim == null)
+       return null;
+    Image img = anim.getImage();
+    if (img == null)
+       return null;
+    return new Rectangle(caster.getX(), caster.getY(), img.getWidth(null), img.getHeight(null));
+  }
 }
\ No newline at end of file
@@ -1,9 +1,5 @@
-import javax.imageio.*;
-import java.io.*;
 import java.awt.image.*;
-import java.util.*;
 import java.awt.*;
-import java.awt.geom.AffineTransform;
 
 /**
    The Sprite class represents a character in the game.
@@ -12,32 +8,23 @@ import java.awt.geom.AffineTransform;
    
    At this time, sprites do not have inventories, but that
    will be a future addition.
+
+   A Sprite is a view of one entity of an EntityStore, where
+   its state is actually kept. A sprite created on its own
+   gets a store of its own; the many NPCs of a world share
+   one store and don't need Sprite objects at all.
 **/
 public class Sprite
 {
-  protected int LocationX;      // The X location of this Sprite on the map
-  protected int LocationY;      // The Y location of this Sprite on the map
-  protected Direction dir;      // The direction the sprite is facing right now
-  protected Direction oldDir;   // The direction the sprite was just facing
-
-  protected BufferedImage img;  // The Image used to represent this Sprite
-  
-  /** Attributes **/
-  protected int[] Attributes;  // Stores all of the attributes for retrieval
-  protected int Strength;       // The physical strength of this sprite
-  protected int Defense;        // The physical defense of this sprite
-  protected int MagicDefense;   // The magical defense of this sprite
+  protected EntityStore store;  // Where this sprite's state is kept
+  protected int id;             // This sprite's entity in the store
+  private boolean bOwnsStore;   // Was the store created for this sprite alone?
 
-  /** Stats **/
-  protected int Health;         // How much health does the sprite have?
-  protected int Mana;           // How much Mana does the sprite have?
+  private int[] Attributes;     // Filled in by getAttributes(), to save allocating it each time
 
-  /** Abilities **/
-  protected Spell[] Spells;     // The spells that this sprite can use
-  
   protected Sprite()
   {
-    // stuff
+    this(0, 0, null, Direction.NORTH, 100, 100, 10, 10, 10, null);
   }
 
   public Sprite(String imgURL)
@@ -45,35 +32,46 @@ public class Sprite
     this(0, 0, imgURL, Direction.NORTH, 100, 100, 10, 10, 10, null);
   }
   
+  /** Creates a sprite in a store of its own **/
   public Sprite(int x, int y, String imgURL, Direction dir, int health, int mana, int str, int def, int mdef, Spell[] sp)
   {
-    LocationX = x;
-    LocationY = y;
-    this.dir = dir;
-    oldDir = Direction.NORTH;
-    Health = health;
-    Mana = mana;
-    Strength = str;
-    Defense = def;
-    MagicDefense = mdef;
-    Spells = sp;
-    
+    store = new EntityStore(1);
+    bOwnsStore = true;
+    int type = (imgURL == null) ? -1 : store.getType(imgURL);
+    id = store.create(type, x, y, dir, health, mana, str, def, mdef, sp);
     Attributes = new int[3];
-    Attributes[0] = str;
-    Attributes[1] = def;
-    Attributes[2] = mdef;
+  }
 
-    try { img = ImageIO.read(new File(imgURL)); } catch (IOException e) {
-    System.out.println("Error reading img.\n"+e); }
+  /** Creates a view of an entity that already exists in a store **/
+  public Sprite(EntityStore store, int id)
+  {
+    this.store = store;
+    this.id = id;
+    Attributes = new int[3];
+  }
+
+  /** Returns the ID of this sprite's entity **/
+  public int getId()
+  {
+    return id;
+  }
+
+  public EntityStore getStore()
+  {
+    return store;
   }
   
   public Spell[] getSpells()
   {
-    return Spells;
+    return store.getSpells(id);
   }
   
+  /** Returns the sprite's strength, defense and magic defense **/
   public int[] getAttributes()
   {
+    Attributes[0] = store.getStrength(id);
+    Attributes[1] = store.getDefense(id);
+    Attributes[2] = store.getMagicDefense(id);
     return Attributes;
   }
   
@@ -92,12 +90,8 @@ public class Sprite
   **/
   public void takeDamage(int amount)
   {
-    Health -= amount;
-    if (Health < 0)
-    {
-      Health = 0;
-      die();
-    }
+    if (store.damage(id, amount))
+       die();
   }
   
   /**
@@ -111,9 +105,7 @@ public class Sprite
   **/
   public void heal(int amount)
   {
-    Health += amount;
-    if (Health > 100)
-       Health = 100;
+    store.heal(id, amount);
   }
   
   
@@ -125,19 +117,17 @@ public class Sprite
   **/
   public void drainMana(int amount)
   {
-    Mana -= amount;
-    if (Mana < 0)
-       Mana = 0;
+    store.drainMana(id, amount);
   }
 
   public int getHealth()
   {
-    return Health;
+    return store.getHealth(id);
   }
   
   public int getMana()
   {
-    return Mana;
+    return store.getMana(id);
   }
 
   /**
@@ -152,12 +142,12 @@ public class Sprite
 
   public int getX()
   {
-    return LocationX;
+    return store.getX(id);
   }
 
   public int getY()
   {
-    return LocationY;
+    return store.getY(id);
   }
   
   
@@ -167,7 +157,7 @@ public class Sprite
   **/
   public Direction getFacing()
   {
-    return dir;
+    return store.getFacing(id);
   }
   
   /**
@@ -176,180 +166,44 @@ public class Sprite
   **/
   public Direction getPrevFacing()
   {
-    return oldDir;
-  }
-  
-  /**
-     Orients the sprite to the value of dir.
-     
-     This method can only be called by the Sprite class
-     and its subclasses; the game calls changeDir() instead,
-     which alters the sprite's direction. This method is
-     then called internally.
-  **/
-  protected void orient()
-  {
-    switch(dir) // The direction we want the sprite to face
-    {
-      case NORTH:
-           orientNorth();
-           break;
-      case EAST:
-           orientEast();
-           break;
-      case SOUTH:
-           orientSouth();
-           break;
-      case WEST:
-           orientWest();
-           break;
-    }
+    return store.getPrevFacing(id);
   }
   
   /**
      Called by the game to indicate that the sprite
-     should change its direction.
+     should change its direction. The four facings are
+     rotated once when the image is loaded (see SpriteFacings),
+     so turning is just a lookup when the sprite is drawn.
   **/
   public void changeDir(Direction direction)
   {
-    oldDir = dir;
-    dir = direction;
-    orient();
+    store.setFacing(id, direction);
   }
 
-  /**
-     Turns the sprite to face North
-  **/
-  protected void orientNorth()
-  {
-    AffineTransform transform = new AffineTransform();
-    switch(oldDir) // the direction the sprite was just facing
-    {
-      case NORTH:
-           // already facing north
-           return;
-      case EAST:
-           // need to rotate 90
-           transform.rotate((-Math.PI/2), img.getWidth()/2, img.getHeight()/2);
-           break;
-      case SOUTH:
-           // need to rotate 180
-           transform.rotate(Math.PI, img.getWidth()/2, img.getHeight()/2);
-           break;
-      case WEST:
-           // need to rotate -90
-           transform.rotate(Math.PI/2, img.getWidth()/2, img.getHeight()/2);
-           break;
-    }
-    oldDir = dir;
-
-    AffineTransformOp op = new AffineTransformOp(transform, AffineTransformOp.TYPE_BILINEAR);
-    img = op.filter(img, null);
-
-    dir = Direction.NORTH;
-  }
-  
-  /**
-     Turns the sprite to face East
-  **/
-  protected void orientEast()
+  public void move(int x, int y)
   {
-    AffineTransform transform = new AffineTransform();
-    switch(oldDir)
-    {
-      case NORTH:
-           // rotate 90
-           transform.rotate(Math.PI/2, img.getWidth()/2, img.getHeight()/2);
-           break;
-      case EAST:
-           // already facing east
-           return;
-      case SOUTH:
-           // rotate -90
-           transform.rotate(-Math.PI/2, img.getWidth()/2, img.getHeight()/2);
-           break;
-      case WEST:
-           // rotate 180
-           transform.rotate(Math.PI, img.getWidth()/2, img.getHeight()/2);
-           break;
-    }
-    oldDir = dir;
-
-    AffineTransformOp op = new AffineTransformOp(transform, AffineTransformOp.TYPE_BILINEAR);
-    img = op.filter(img, null);
-
-    dir = Direction.EAST;
+    store.move(id, x, y);
   }
 
-  /** 
-      Turns the sprite to face South
-  **/
-  protected void orientSouth()
-  {
-    AffineTransform transform = new AffineTransform();
-    switch(oldDir)
-    {
-      case NORTH:
-           // rotate 180
-           transform.rotate(Math.PI, img.getWidth()/2, img.getHeight()/2);
-           break;
-      case EAST:
-           // rotate 90
-           transform.rotate(Math.PI/2, img.getWidth()/2, img.getHeight()/2);
-           break;
-      case SOUTH:
-           // already South
-           return;
-      case WEST:
-           // rotate -90
-           transform.rotate(-Math.PI/2, img.getWidth()/2, img.getHeight()/2);
-           break;
-    }
-    oldDir = dir;
-
-    AffineTransformOp op = new AffineTransformOp(transform, AffineTransformOp.TYPE_BILINEAR);
-    img = op.filter(img, null);
-
-    dir = Direction.SOUTH;
-  }
-  
   /**
-     Turns the sprite to face West
+     Called when the sprite is removed from the game. Its
+     entity is removed from the store, and if the store was
+     the sprite's own, its images are released from the
+     AssetCache.
   **/
-  protected void orientWest()
+  public void dispose()
   {
-    AffineTransform transform = new AffineTransform();
-    switch(oldDir)
-    {
-      case NORTH:
-           // rotate -90
-           transform.rotate(-Math.PI/2, img.getWidth()/2, img.getHeight()/2);
-           break;
-      case EAST:
-           // rotate 180
-           transform.rotate(Math.PI, img.getWidth()/2, img.getHeight()/2);
-           break;
-      case SOUTH:
-           // rotate 90
-           transform.rotate(Math.PI/2, img.getWidth()/2, img.getHeight()/2);
-           break;
-      case WEST:
-           // already facing West
-           return;
-    }
-    oldDir = dir;
-
-    AffineTransformOp op = new AffineTransformOp(transform, AffineTransformOp.TYPE_BILINEAR);
-    img = op.filter(img, null);
-
-    dir = Direction.WEST;
+    if (!store.exists(id))
+       return;
+    store.remove(id);
+    if (bOwnsStore)
+       store.dispose();
   }
 
-
-  public void move(int x, int y)
+  /** Returns the image the sprite is drawn with right now (it depends on its facing) **/
+  public BufferedImage getImage()
   {
-    LocationX += x;
-    LocationY += y;
+    return store.getImage(id);
   }
 
   /**
@@ -358,6 +212,6 @@ public class Sprite
   **/
   public void draw(Graphics2D g)
   {
-    g.drawImage(img, LocationX, LocationY, null);
+    g.drawImage(store.getImage(id), store.getX(id), store.getY(id), null);
   }  
-}
\ No newline at end of file
+}
@@ -0,0 +1,105 @@
+import java.awt.image.*;
+
+/**
+   Holds the four facings (North, East, South, West) of
+   every sprite image, computed once when the image is
+   first loaded.
+
+   The image file is assumed to show the sprite facing
+   North. The other facings are exact 90 degree rotations
+   of it, done by moving pixels rather than by resampling,
+   so turning a sprite never costs any quality or any
+   allocation. The facings are kept in the AssetCache, so
+   every sprite that uses the same image file shares the
+   same four images.
+
+   This class is composed entirely of static methods
+   and cannot be instantiated.
+**/
+public final class SpriteFacings
+{
+  /**
+     Acquires the four facings of the image file from the
+     AssetCache, indexed by Direction.ordinal(), or returns
+     null if it couldn't be read. Pass the result to
+     release() once it is no longer needed.
+  **/
+  public static BufferedImage[] get(String imgURL)
+  {
+    AssetCache cache = AssetCache.getDefault();
+    BufferedImage[] images = new BufferedImage[Direction.values().length];
+    for (Direction d : Direction.values())
+    {
+      /** the directions are in clockwise order, starting from North **/
+      images[d.ordinal()] = cache.acquireRotated(imgURL, d.ordinal());
+      if (images[d.ordinal()] == null)
+      {
+        release(images);
+        return null;
+      }
+    }
+    return images;
+  }
+
+  /** Releases facings acquired by get() **/
+  public static void release(BufferedImage[] images)
+  {
+    if (images == null)
+       return;
+    for (BufferedImage img : images)
+        AssetCache.getDefault().release(img);
+  }
+
+  /**
+     Computes the four facings of an image that faces North,
+     indexed by Direction.ordinal().
+  **/
+  public static BufferedImage[] rotations(BufferedImage north)
+  {
+    BufferedImage[] images = new BufferedImage[Direction.values().length];
+    images[Direction.NORTH.ordinal()] = north;
+    images[Direction.EAST.ordinal()]  = rotate(north, 1);
+    images[Direction.SOUTH.ordinal()] = rotate(north, 2);
+    images[Direction.WEST.ordinal()]  = rotate(north, 3);
+    return images;
+  }
+
+  /**
+     Rotates an image clockwise by quarterTurns * 90 degrees,
+     copying each pixel to its new place.
+  **/
+  public static BufferedImage rotate(BufferedImage src, int quarterTurns)
+  {
+    int w = src.getWidth();
+    int h = src.getHeight();
+    boolean swap = (quarterTurns & 1) != 0;
+    int dw = swap ? h : w;
+    int dh = swap ? w : h;
+
+    int[] in  = src.getRGB(0, 0, w, h, null, 0, w);
+    int[] out = new int[in.length];
+
+    for (int y = 0; y < h; y++)
+    {
+      for (int x = 0; x < w; x++)
+      {
+        int dx, dy;
+        switch (quarterTurns & 3)
+        {
+          case 1:  dx = h - 1 - y; dy = x;         break; // 90 clockwise
+          case 2:  dx = w - 1 - x; dy = h - 1 - y; break; // 180
+          case 3:  dx = y;         dy = w - 1 - x; break; // 90 counter-clockwise
+          default: dx = x;         dy = y;         break;
+        }
+        out[dy * dw + dx] = in[y * w + x];
+      }
+    }
+
+    BufferedImage dst = ImageUtils.createCompatibleImage(dw, dh, src.getColorModel().getTransparency());
+    dst.setRGB(0, 0, dw, dh, out, 0, dw);
+    return dst;
+  }
+
+  /** Can't create a SpriteFacings **/
+  private SpriteFacings(){}
+}
@@ -0,0 +1,70 @@
+import java.awt.image.*;
+
+/**
+   What every sprite of one kind has in common: its image,
+   in each of the four facings. An EntityStore keeps one
+   SpriteType per image, however many entities use it.
+**/
+public class SpriteType
+{
+  private String ImgPath;            // The image file the facings were made from
+  private BufferedImage[] facings;   // The image facing each Direction, or null if it couldn't be read
+  private int Width;                 // The width of the image facing North
+  private int Height;                // The height of the image facing North
+
+  /** Acquires the facings of the image file from the AssetCache **/
+  public SpriteType(String imgURL)
+  {
+    ImgPath = imgURL;
+    facings = SpriteFacings.get(imgURL);
+    if (facings != null)
+    {
+      Width  = facings[0].getWidth();
+      Height = facings[0].getHeight();
+    }
+  }
+
+  /** Returns the image facing a direction (by Direction.ordinal()), or null **/
+  public BufferedImage getImage(int facing)
+  {
+    return (facings == null) ? null : facings[facing];
+  }
+
+  public String getImgPath()
+  {
+    return ImgPath;
+  }
+
+  public int getWidth()
+  {
+    return Width;
+  }
+
+  public int getHeight()
+  {
+    return Height;
+  }
+
+  /**
+     Returns the width of the image facing a direction (by
+     Direction.ordinal()); East and West are turned a quarter,
+     so they are as wide as the image facing North is high.
+  **/
+  public int getWidth(int facing)
+  {
+    return ((facing & 1) == 0) ? Width : Height;
+  }
+
+  /** Returns the height of the image facing a direction (by Direction.ordinal()) **/
+  public int getHeight(int facing)
+  {
+    return ((facing & 1) == 0) ? Height : Width;
+  }
+
+  /** Releases the facings back to the AssetCache **/
+  public void dispose()
+  {
+    SpriteFacings.release(facings);
+    facings = null;
+  }
+}
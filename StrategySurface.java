@@ -0,0 +1,99 @@
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+   A RenderSurface that draws straight into the back buffer
+   of a window's BufferStrategy (page flipping where the
+   hardware supports it).
+
+   The strategy's buffers can be lost or restored while a
+   frame is drawn (e.g. when the display mode changes); show()
+   then returns false and the frame is drawn again.
+
+   A strategy can only show its whole back buffer, and after
+   a flip the back buffer holds an older frame unless it is
+   a copy of the one shown (FlipContents.COPIED, or a blit
+   strategy), so with page flipping every frame is usually
+   drawn in full.
+**/
+public class StrategySurface implements RenderSurface
+{
+  private Window window;
+  private BufferStrategy strategy;
+  private int buffers;             // The number of buffers in the strategy
+
+  /**
+     Creates a strategy with the given number of buffers
+     (2 or 3) for a window, which must be visible. Throws an
+     exception if the window can't have one.
+  **/
+  public StrategySurface(Window window, int buffers)
+  {
+    this.window = window;
+    window.setIgnoreRepaint(true);
+    this.buffers = Math.max(2, Math.min(3, buffers));
+    window.createBufferStrategy(this.buffers);
+    strategy = window.getBufferStrategy();
+  }
+
+  public int getWidth()
+  {
+    return window.getWidth();
+  }
+
+  public int getHeight()
+  {
+    return window.getHeight();
+  }
+
+  public boolean isPageFlipping()
+  {
+    return strategy.getCapabilities().isPageFlipping();
+  }
+
+  public Graphics2D getDrawGraphics()
+  {
+    return (Graphics2D)strategy.getDrawGraphics();
+  }
+
+  public boolean show(Graphics2D g)
+  {
+    g.dispose();
+
+    /** the buffer was restored while drawing; what was drawn is gone **/
+    if (strategy.contentsRestored())
+       return false;
+
+    strategy.show();
+
+    // sync the display
+    Toolkit.getDefaultToolkit().sync();
+
+    return !strategy.contentsLost();
+  }
+
+  /** Shows the whole frame; a strategy can't show only part of it **/
+  public boolean show(Graphics2D g, Rectangle region)
+  {
+    return show(g);
+  }
+
+  /**
+     Returns true if the back buffer is a copy of the frame
+     last shown: with two buffers that are blitted, or flipped
+     with the contents copied.
+  **/
+  public boolean preservesContents()
+  {
+    if (buffers != 2 || strategy.contentsLost())
+       return false;
+    BufferCapabilities caps = strategy.getCapabilities();
+    return !caps.isPageFlipping() || caps.getFlipContents() == BufferCapabilities.FlipContents.COPIED;
+  }
+
+  public void dispose()
+  {
+    strategy.dispose();
+    window.setIgnoreRepaint(false);
+  }
+}
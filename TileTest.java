@@ -16,15 +16,13 @@ public class TileTest extends JFrame implements Runnable
   // The .ini file used by this version of the program
   public static final String INI_FILE = "TileTest.ini";
   
-  // number of 0ms delays before thread yields
-  private static final int NO_DELAYS_PER_YIELD = 16;
-  
   // max number of frames un-rendered
   private static final int MAX_FRAME_SKIPS = 5;
   
-  private static final int FPS = 100; // the desired FPS
+  private static final int FPS = 100; // the desired FPS (and updates per second)
 
   private static String VersionID;   // Game version
+  private GameConfig config;         // The settings read from INI_FILE
   private volatile boolean isRunning;// is the game running?
 
   private int FrameWidth;            // The width of the Frame
@@ -32,22 +30,19 @@ public class TileTest extends JFrame implements Runnable
   
   private Thread animator;           // create a thread seperate from AWT dispatch for rendering
 
-  private Map[]           maps;      // Used to store the tileset
-
-  private BufferedImage   bImg;      // Back buffer img
-  private Graphics2D       dbg;      // Back buffer graphics
+  private World           world;     // The map, the player and everything else in the game
+  private LoadingPipeline loader;    // Loads the game's assets at startup
+  private RenderSurface   surface;   // Where the frames are drawn
+  private volatile boolean bLoaded;  // Has the loading pipeline finished?
+  private boolean bDirtyRects;       // Draw only what changed, when the surface keeps the last frame?
   
   private Font font;                 // Font used to write messages to the screen
   private FontMetrics metrics;       // Config. for the font
 
-  private Sprite player;             // The player character
-  private Spell[] spells;            // The player's spells
-
-  private int tWidth;
-  private int tHeight;
-  
   private long gameStartTime;        // time that the game started
-  private long period;               // the period between rendering
+  private long period;               // the period between rendering (ms)
+  private LoopScheduler scheduler;   // Runs the game loop
+  private FrameProfiler profiler;    // Times each phase of every frame
 
 
   protected GameAction moveUp;
@@ -57,6 +52,7 @@ public class TileTest extends JFrame implements Runnable
   protected GameAction moveRight;
   protected GameAction heal;
   protected GameAction takeDamage;
+  protected GameAction showProfile;
   protected InputManager inputManager;
 
   //---- Methods ---- //
@@ -87,6 +83,17 @@ public class TileTest extends JFrame implements Runnable
     isRunning = false;
     // set the period
     period = (long)1000.0 / FPS;
+
+    /**
+       The game is updated in fixed steps and rendered at a
+       steady rate; see FixedStepScheduler.
+    **/
+    scheduler = new FixedStepScheduler(config.getInt("UpdateRate", FPS), config.getInt("FrameRate", FPS), MAX_FRAME_SKIPS);
+
+    /** Times the phases of each frame; F3 shows the timings **/
+    profiler = new FrameProfiler(config.getBoolean("Profiler", true));
+    profiler.setOverlay(config.getBoolean("ProfilerOverlay", false));
+    bDirtyRects = config.getBoolean("DirtyRects", true);
     
     /** Create the game's input manager **/
     inputManager = new InputManager(this);
@@ -102,25 +109,98 @@ public class TileTest extends JFrame implements Runnable
     metrics = this.getFontMetrics(font);
 
     /**
-       Create the player's spells. This is a test area
-       and should be changed/deleted when a better approach
-       is implemented.
+       The world is loaded in the background by the
+       loading pipeline, while run() shows a loading screen.
     **/
-    spells = new Spell[1];
-    spells[0] = new PlayerHeal();
-    player = new Sprite(FrameWidth/2, FrameHeight/2, "../art/player.png", Direction.NORTH, 100, 100, 10, 10, 10, spells);
+    world = new World(config, FrameWidth, FrameHeight);
+    world.setProfiler(profiler);
+    loader = new LoadingPipeline(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    world.addLoadingSteps(loader);
+    loader.start();
+
+    /** the frame's contents may be gone when the window comes back; draw it all again **/
+    addWindowListener(new WindowAdapter()
+    {
+      public void windowDeiconified(WindowEvent e)
+      {
+        world.invalidate();
+      }
+
+      public void windowActivated(WindowEvent e)
+      {
+        world.invalidate();
+      }
+    });
+    addComponentListener(new ComponentAdapter()
+    {
+      public void componentShown(ComponentEvent e)
+      {
+        world.invalidate();
+      }
+
+      public void componentResized(ComponentEvent e)
+      {
+        world.invalidate();
+      }
+    });
+  }
 
-    /**
-       Creates the map. For now, there is only one map.
-       This is also a test area and should be changed
-       or deleted.
-    **/
-    maps = new Map[1];
-    maps[0] = new Map(this, player);
+  /** The window was uncovered; the next frame is drawn in full **/
+  public void paint(Graphics g)
+  {
+    super.paint(g);
+    if (world != null)
+       world.invalidate();
+  }
+
+  /**
+     Shows the loading screen until the loading pipeline is
+     done. Returns false if something failed to load.
+  **/
+  private boolean waitForLoading()
+  {
+    while (isRunning && !loader.isDone())
+    {
+      render(1f);
+      try
+      {
+        Thread.sleep(period);
+      }
+      catch (InterruptedException ex){}
+    }
+
+    System.out.print(loader.finish());
+    if (loader.getFailure() != null)
+    {
+      System.err.println("Error loading the game:");
+      loader.getFailure().printStackTrace();
+      return false;
+    }
+    bLoaded = true;
+    profiler.reset();
+    return true;
+  }
+
+  /**
+     Draws the loading screen: a progress bar and
+     the steps that are loading right now.
+  **/
+  private void drawLoading(Graphics2D g)
+  {
+    g.setColor(Color.black);
+    g.fillRect(0, 0, FrameWidth, FrameHeight);
 
-    tWidth = maps[0].getTileWidth();
-    tHeight = maps[0].getTileHeight();
-    bImg = new BufferedImage(FrameWidth,FrameHeight,BufferedImage.TYPE_INT_RGB);
+    int barWidth = FrameWidth / 2;
+    int barX = (FrameWidth - barWidth) / 2;
+    int barY = FrameHeight / 2;
+
+    g.setFont(font);
+    g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+    g.setColor(Color.WHITE);
+    g.drawString("Loading...", barX, barY - metrics.getHeight());
+    g.drawRect(barX, barY, barWidth, 16);
+    g.fillRect(barX, barY, (int)(barWidth * loader.getProgress()), 16);
+    g.drawString(loader.getRunning(), barX, barY + 16 + metrics.getHeight());
   }
 
   /**
@@ -137,11 +217,13 @@ public class TileTest extends JFrame implements Runnable
     moveDown = new GameAction("move down");
     heal = new GameAction("heal", GameAction.DETECT_INITIAL_PRESS_ONLY);
     takeDamage = new GameAction("takeDamage", GameAction.DETECT_INITIAL_PRESS_ONLY);
+    showProfile = new GameAction("showProfile", GameAction.DETECT_INITIAL_PRESS_ONLY);
 
     inputManager.mapToKey(exit, KeyEvent.VK_ESCAPE);
     inputManager.mapToKey(moveDown, KeyEvent.VK_DOWN);
     inputManager.mapToKey(heal, KeyEvent.VK_H);
     inputManager.mapToKey(takeDamage, KeyEvent.VK_E);
+    inputManager.mapToKey(showProfile, KeyEvent.VK_F3);
 
     inputManager.mapToKey(moveUp, KeyEvent.VK_UP);
 
@@ -153,44 +235,37 @@ public class TileTest extends JFrame implements Runnable
   /**
      Updates the game's state.
      For now, this just checks the input
+     (and applies hot reloads)
   **/
   private void update(long elapsedTime)
   {
+    world.update(elapsedTime);
     checkInput();
   }
 
   private void checkInput()
   {
     if (moveLeft.isPressed())
-    {
-      maps[0].adjustX(tWidth);
-      player.changeDir(Direction.WEST);
-    }
+       world.move(Direction.WEST);
     if (moveRight.isPressed())
-    {
-      maps[0].adjustX(-tWidth);
-      player.changeDir(Direction.EAST);
-    }
+       world.move(Direction.EAST);
     if (moveUp.isPressed())
-    {
-      maps[0].adjustY(tHeight);
-      player.changeDir(Direction.NORTH);
-    }
+       world.move(Direction.NORTH);
     if (moveDown.isPressed())
-    {
-      maps[0].adjustY(-tHeight);
-      player.changeDir(Direction.SOUTH);
-    }
+       world.move(Direction.SOUTH);
     if (exit.isPressed())
        stop();
 
     if (takeDamage.isPressed())
-       player.takeDamage(10);
+       world.damagePlayer(10);
 
     if (heal.isPressed())
     {
-      player.castSpell(spells[0], player);
+      world.castHeal();
     }
+
+    if (showProfile.isPressed())
+       profiler.toggleOverlay();
   }
 
   /**
@@ -201,66 +276,42 @@ public class TileTest extends JFrame implements Runnable
   **/
   public void run()
   {
-    // set up variables for calculating the FPS
-    long beforeTime, afterTime, timeDiff, sleepTime;
-    long overSleepTime = 0L;
-    int  noDelays      = 0;
-    long excess        = 0L;
+    isRunning = true;
+    setVisible(true);
+    setUpRendering();
+    if (!waitForLoading())
+       stop();
 
     gameStartTime = System.nanoTime();
-    beforeTime    = gameStartTime;
-    
-    long startTime = System.nanoTime() / 1000000L; // nano->milli
-    long currTime = startTime;
 
-    isRunning = true;
-    setVisible(true);
-    while (isRunning)
+    scheduler.run(new LoopScheduler.Target()
     {
-      long elapsedTime = System.nanoTime() / 1000000L - currTime;
-      currTime += elapsedTime;
-
-      update(elapsedTime);
-      render(elapsedTime);
-      paintScreen();
-
-      // calculate the FPS
-       afterTime = System.nanoTime();
-       timeDiff = afterTime - beforeTime;
-       sleepTime = (period - timeDiff) - overSleepTime;
-
-       if (sleepTime > 0)  // Some time left in this cycle...
-       {
-         try
-         {
-           Thread.sleep(sleepTime/1000000L); // nano -> milli
-         }
-         catch (InterruptedException ex){}
-         overSleepTime = (System.nanoTime() - afterTime) - sleepTime;
-       }
-       else // sleepTime <= 0; the frame took longer than the period
-       {
-         excess -= sleepTime;       // store excess time value
-         overSleepTime = 0L;
-
-         if (++noDelays >= NO_DELAYS_PER_YIELD)
-         {
-           Thread.yield(); // give another thread a chance to run
-           noDelays = 0;
-         }
-       }
-
-       beforeTime = System.nanoTime();
-
-       // adjust if necessary to maintain desired FPS
-       int skips = 0;
-       while ((excess > period) && (skips < MAX_FRAME_SKIPS))
-       {
-         excess -= period;
-         update(elapsedTime);    // update state but don't render
-         skips++;
-       }
-    }
+      public boolean isRunning()
+      {
+        return isRunning;
+      }
+
+      public void update(long stepMillis)
+      {
+        profiler.begin(FrameProfiler.Phase.UPDATE);
+        TileTest.this.update(stepMillis);
+        profiler.end(FrameProfiler.Phase.UPDATE);
+      }
+
+      public void render(float alpha, long elapsedMillis)
+      {
+        TileTest.this.render(alpha);
+        profiler.endFrame();
+      }
+    });
+
+    System.out.println("Game loop: " + scheduler.getFrames() + " frames, "
+                       + scheduler.getSkippedFrames() + " skipped, " + scheduler.getLateFrames() + " late");
+    if (profiler.isEnabled())
+       System.out.print(profiler.getReport());
+
+    world.dispose();
+
     /** Now that we're done playing... adios! **/
     System.exit(0);
   }
@@ -275,113 +326,118 @@ public class TileTest extends JFrame implements Runnable
   }
   
   /**
-     Handles all of the rendering done for the game
+     Sets up active rendering. By default the game draws
+     straight into the back buffer of a BufferStrategy
+     (page flipping where the hardware supports it). With
+     RenderMode=image in the .INI file, or if no strategy
+     can be created, it falls back to drawing into an image
+     and copying that onto the frame.
+
+     Must be called once the frame is visible.
   **/
-  private void render(long elapsedTime)
+  private void setUpRendering()
   {
-    /** 
-        Gets the graphic's context to the backbuffer
-        and clears it to a black background.
-    **/
-    dbg = (Graphics2D)bImg.getGraphics();
-    dbg.setColor(Color.black);
-    dbg.fillRect(0,0, FrameWidth, FrameHeight);
-
-    /** If we can't draw the map, abandon ship **/
-    if (!((maps[0].draw(dbg))))
-       return;
-
-    player.draw(dbg); // Draw the player sprite
-
-    /** for all of the player's spells... **/
-    for (Spell sp : spells)
+    if (config.get("RenderMode", "strategy").equals("strategy"))
     {
-      /** if one of the spells is being cast... **/
-      if (sp.getState() == SpellState.CAST || sp.getState() == SpellState.CASTING)
-         /** make sure the spell's effect goes through **/
-         sp.draw(dbg, elapsedTime);
+      try
+      {
+        StrategySurface strategy = new StrategySurface(this, config.getInt("BufferCount", 2));
+        System.out.println("Rendering with a " + config.getInt("BufferCount", 2) + " buffer strategy"
+                           + (strategy.isPageFlipping() ? " (page flipping)" : ""));
+        surface = strategy;
+        return;
+      }
+      catch (Exception e)
+      {
+        System.err.println("No BufferStrategy available, using the back buffer image:\n"+e);
+        setIgnoreRepaint(false);
+      }
     }
-    /**
-       Draw the player's stats on the screen. This needs
-       to be overhauled later.
-    **/
-    drawStats(dbg);
-    
-    // Get rid of the graphic's context since we're done drawing
-    dbg.dispose();
+    surface = new ImageSurface(this, FrameWidth, FrameHeight);
   }
 
   /**
-     Paints the backbuffer image
-     to the canvas
+     Handles all of the rendering done for the game: draws
+     a frame onto the surface and shows it. If the surface
+     lost the frame (e.g. the display mode changed), it is
+     drawn again.
+
+     When the surface keeps the last frame, only the parts
+     of the world that changed are drawn and shown (see
+     World.getDirtyRegion()), and a frame where nothing
+     changed isn't drawn at all. DirtyRects=false in the
+     .INI file draws every frame in full.
   **/
-  private void paintScreen()
+  private void render(float alpha)
   {
-    try
+    if (bLoaded && bDirtyRects && surface.preservesContents())
     {
-      // get this JFrame's graphics context
-      Graphics g = this.getGraphics();
-
-      // if the backbuffer is not null
-      if ((g != null) && (bImg != null))
-         // draw the backbuffer img using the graphics context
-         g.drawImage(bImg, 0, 0, null);
+      DirtyRegion region = world.getDirtyRegion(alpha);
+      if (region.isEmpty())
+         return;
+
+      Rectangle bounds = region.getBounds();
+      Graphics2D g = surface.getDrawGraphics();
+      world.draw(g, alpha, region);
+
+      profiler.begin(FrameProfiler.Phase.PRESENT);
+      boolean shown = surface.show(g, bounds);
+      profiler.end(FrameProfiler.Phase.PRESENT);
+      if (shown)
+         return;
+
+      /** the frame was lost, so what was drawn before it is gone too **/
+      world.invalidate();
+    }
 
-      // sync the display
-      Toolkit.getDefaultToolkit().sync();
+    boolean shown;
+    do
+    {
+      Graphics2D g = surface.getDrawGraphics();
+      drawFrame(g, alpha);
 
-      // dispose of the graphics context
-      g.dispose();
+      profiler.begin(FrameProfiler.Phase.PRESENT);
+      shown = surface.show(g);
+      profiler.end(FrameProfiler.Phase.PRESENT);
     }
-    catch (Exception e) {} // ignore it
+    while (!shown);
+  }
+
+  /**
+     Draws either the loading screen or the game,
+     using the given graphics context.
+  **/
+  private void drawFrame(Graphics2D g, float alpha)
+  {
+    if (bLoaded)
+       world.draw(g, alpha);
+    else
+       drawLoading(g);
   }
 
   /** 
-      Loads configuration settings from a .INI file
-      using a String tokenizer.
+      Loads configuration settings from the .INI file.
+      The file is only read once; the resulting GameConfig
+      is shared with the rest of the game.
   **/
   private void loadMainConfig()
   {
-    InputStream in = this.getClass().getResourceAsStream(INI_FILE);
-    BufferedReader br = new BufferedReader(new InputStreamReader(in));
+    config = GameConfig.load(INI_FILE);
 
-    String line;
-    String[] tokens;
-    try
-    {
-     while ((line = br.readLine()) != null)
-     {
-       if (line.length() == 0)     // blank line
-          continue;
-       if (line.startsWith("["))   // comment
-          continue;
-
-       tokens = line.split("=");
-       printTokens(tokens);
-       if (tokens[0].equals("Version"))
-       {
-         VersionID = tokens[1];
-       }
-       else if (tokens[0].equals("FrameWidth"))
-       {
-         FrameWidth = Integer.parseInt(tokens[1]);
-       }
-       else if (tokens[0].equals("FrameHeight"))
-       {
-         FrameHeight = Integer.parseInt(tokens[1]);
-       }
-     }
-     br.close();
-    }
-    catch (IOException e)
-    {
-      System.err.println("Error reading file("+INI_FILE+"):\n"+e);
-    }
+    VersionID   = config.getVersion();
+    FrameWidth  = config.getFrameWidth();
+    FrameHeight = config.getFrameHeight();
+    AssetCache.getDefault().setBudget(config.getAssetCacheBytes());
     
     // initialize the rest of the code
     init();
   }
 
+  public GameConfig getConfig()
+  {
+    return config;
+  }
+
   public int getFrameWidth()
   {
     return FrameWidth;
@@ -397,42 +453,4 @@ public class TileTest extends JFrame implements Runnable
   {
     new TileTest().startGame();
   }
-
-  /** DEBUG METHOD. **/
-  private void printTokens(String[] tokens)
-  {
-    for (int i = 0; i < tokens.length; i++)
-        System.out.println(tokens[i]);
-  }
-
-  /**
-     Draws the player's stats onto the screen
-     
-     DEBUG METHOD.
-  **/
-  private void drawStats(Graphics2D g)
-  {
-    g.setColor(Color.WHITE);
-    g.setFont(font);
-
-    int space = 10;
-    
-    g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-
-    String msg = Integer.toString(player.getHealth());
-    int x = (FrameWidth - 20) - metrics.stringWidth(msg);
-    int y = (FrameHeight - 30)- metrics.getHeight();
-    g.drawString(msg, x, y);
-
-    y += space;
-    msg = Integer.toString(player.getMana());
-    g.drawString(msg, x, y);
-
-    for (int i : player.getAttributes())
-    {
-      y += space;
-      msg = Integer.toString(i);
-      g.drawString(msg, x, y);
-    }
-  }
-}
\ No newline at end of file
+}
@@ -0,0 +1,58 @@
+/**
+   What every tile with the same ID has in common: the
+   texture it is drawn with, whether sprites collide with
+   it, what it costs to walk across and whether it is
+   animated.
+
+   There is one TileType per tile ID, shared by every tile
+   of the map with that ID (see TileTypes), so the map only
+   has to store the IDs.
+**/
+public final class TileType
+{
+  private int     Id;              // The tile ID
+  private int     Texture;         // Index of the texture it is drawn with
+  private boolean bCollidable;     // Can sprites collide with this tile?
+  private int     Cost;            // Cost of walking across it (1 = normal)
+  private boolean bAnimated;       // Does its texture change over time?
+
+  public TileType(int id, int texture, boolean collidable, int cost, boolean animated)
+  {
+    Id          = id;
+    Texture     = texture;
+    bCollidable = collidable;
+    Cost        = cost;
+    bAnimated   = animated;
+  }
+
+  public int getId()
+  {
+    return Id;
+  }
+
+  public int getTexture()
+  {
+    return Texture;
+  }
+
+  public boolean isCollidable()
+  {
+    return bCollidable;
+  }
+
+  public int getCost()
+  {
+    return Cost;
+  }
+
+  public boolean isAnimated()
+  {
+    return bAnimated;
+  }
+
+  @Override public String toString()
+  {
+    return "tile " + Id + " (texture " + Texture + (bCollidable ? ", collidable" : "")
+         + ", cost " + Cost + (bAnimated ? ", animated" : "") + ")";
+  }
+}
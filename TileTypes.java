@@ -0,0 +1,137 @@
+import java.util.*;
+
+/**
+   The table of tile types, indexed by tile ID.
+
+   The types are read from the game's configuration:
+
+     CollidableTiles=1,5,6     IDs sprites collide with
+     AnimatedTiles=12          IDs whose texture changes over time
+     TileCost.3=4              cost of walking across tiles with ID 3
+     TileTexture.7=2           draw tiles with ID 7 using texture 2
+
+   By default every tile is drawn with the texture of the
+   same index, costs 1 to walk across and isn't animated,
+   and only tile 1 is collidable. Textures that aren't on
+   the tile sheet are reported and replaced by texture 0.
+
+   The layers of a map above the ground (see MapLayer) each
+   have their own table, read from the same keys with the
+   layer's prefix in front ("Layer1.CollidableTiles=...");
+   none of their tiles are collidable by default.
+
+   The properties that are looked up for every tile every
+   frame are also kept in primitive arrays (collidable IDs
+   as a bitset), so checking a tile never has to touch a
+   TileType object. The table never changes once made, so
+   it can be shared by every thread.
+**/
+public final class TileTypes
+{
+  private TileType[] types;        // The type of each ID
+  private long[]     collidable;   // Bit id is set if the ID is collidable
+  private int[]      textures;     // The texture of each ID
+
+  /**
+     Creates a table of count types (IDs 0 .. count-1) with
+     the default properties.
+  **/
+  public TileTypes(int count)
+  {
+    this(count, new GameConfig());
+  }
+
+  /** Creates a table of count types, with the properties set in config **/
+  public TileTypes(int count, GameConfig config)
+  {
+    this(count, config, "");
+  }
+
+  /**
+     Creates a table of count types, with the properties set
+     in config under keys starting with prefix.
+  **/
+  public TileTypes(int count, GameConfig config, String prefix)
+  {
+    int textureCount = count;      // the textures of the tile sheet
+    count = Math.max(2, count);
+    Set<Integer> solid    = parseIds(config.get(prefix + "CollidableTiles", prefix.isEmpty() ? "1" : ""));
+    Set<Integer> animated = parseIds(config.get(prefix + "AnimatedTiles", ""));
+
+    types      = new TileType[count];
+    collidable = new long[(count + 63) >> 6];
+    textures   = new int[count];
+    for (int id = 0; id < count; id++)
+    {
+      types[id] = new TileType(id, textureOf(id, textureCount, config, prefix), solid.contains(id),
+                               config.getInt(prefix + "TileCost." + id, 1), animated.contains(id));
+      textures[id] = types[id].getTexture();
+      if (types[id].isCollidable())
+         collidable[id >> 6] |= 1L << (id & 63);
+    }
+  }
+
+  /**
+     Returns the texture set for the ID in config, or the ID
+     itself by default. Textures that aren't on the tile
+     sheet (0 .. textureCount-1) are replaced by texture 0.
+  **/
+  private static int textureOf(int id, int textureCount, GameConfig config, String prefix)
+  {
+    String key = prefix + "TileTexture." + id;
+    int texture = config.getInt(key, id);
+    if (texture >= 0 && texture < textureCount)
+       return texture;
+    if (config.get(key, null) != null)
+       System.err.println("Bad tile texture: " + key + "=" + texture + " (the tile sheet has " + textureCount + " textures)");
+    return 0;
+  }
+
+  /** Reads a comma separated list of IDs **/
+  private static Set<Integer> parseIds(String list)
+  {
+    HashSet<Integer> ids = new HashSet<Integer>();
+    for (String s : list.split(","))
+    {
+      s = s.trim();
+      if (s.length() == 0)
+         continue;
+      try
+      {
+        ids.add(Integer.parseInt(s));
+      }
+      catch (NumberFormatException e)
+      {
+        System.err.println("Bad tile ID: " + s);
+      }
+    }
+    return ids;
+  }
+
+  /**
+     Returns the type of tiles with the ID. IDs beyond the
+     table share the type of ID 0.
+  **/
+  public TileType get(int id)
+  {
+    return (id < types.length) ? types[id] : types[0];
+  }
+
+  /** Returns true if tiles with the ID are collidable **/
+  public boolean isCollidable(int id)
+  {
+    return id < types.length && (collidable[id >> 6] & (1L << (id & 63))) != 0;
+  }
+
+  /** Returns the texture tiles with the ID are drawn with **/
+  public int getTexture(int id)
+  {
+    return (id < textures.length) ? textures[id] : textures[0];
+  }
+
+  /** Returns the number of types in the table **/
+  public int getCount()
+  {
+    return types.length;
+  }
+}
@@ -0,0 +1,709 @@
+import java.awt.*;
+import java.io.*;
+import java.util.Arrays;
+
+/**
+   The game world: the map, the player and the player's
+   spells, and how they are updated and drawn.
+
+   The world knows nothing about windows or keyboards. It
+   is drawn onto any Graphics2D (see RenderSurface) and
+   driven through methods like move(), so the same world
+   runs in the TileTest window, headless on a server (see
+   HeadlessRunner), or in a benchmark. A world that is never
+   drawn at all can be stepped by a SimulationHost.
+
+   A world is not thread-safe, but it doesn't share anything
+   mutable with other worlds either, so different worlds may
+   be updated on different threads at the same time.
+**/
+public class World
+{
+  private GameConfig config;         // The game's settings
+  private int ViewWidth;             // The width of the area the world is drawn into
+  private int ViewHeight;            // The height of the area the world is drawn into
+
+  private Map[]       maps;          // Used to store the tileset
+  private Sprite      player;        // The player character
+  private EntityStore npcs;          // Everyone else walking around the map
+  private Spell[]     spells;        // The player's spells
+  private HotReloader reloader;      // Reloads the map when its files change (optional)
+  private Pathfinder  pathfinder;    // Finds paths for the NPCs
+  private FlowField   flow;          // Leads the NPCs to the player (only if there are NPCs)
+  private long PathBudget;           // Time each update may spend finding paths, in ns
+  private FrameProfiler profiler;    // Times each phase of every frame
+  private boolean bRenderless;       // Is the world never drawn?
+
+  private int tWidth;
+  private int tHeight;
+
+  private static final int STAT_SPACE = 10; // Distance between the lines of stats, in pixels
+
+  private Font font;                 // Font used to write the stats to the screen
+  private FontMetrics metrics;       // Config. for the font (found when first drawn)
+  private Font profileFont;          // Font used by the profiler's overlay
+  private FontMetrics profileMetrics;
+
+  /** What the last frame drawn showed, to find what changed since (see getDirtyRegion()) **/
+  private DirtyRegion dirty;         // The parts of the view to draw again
+  private boolean   bDrawn;          // Has a frame been drawn yet?
+  private volatile boolean bInvalidated; // Must the next frame be drawn whole? (set from any thread)
+  private int       drawnLeft;       // Camera position of the last frame
+  private int       drawnTop;
+  private Image     drawnPlayer;     // The player's image in the last frame ...
+  private int       drawnPlayerX;    // ... and where it was
+  private int       drawnPlayerY;
+  private Rectangle[] drawnSpells;   // Where each spell was drawn, or null
+  private String    drawnStats;      // The stats that were shown ...
+  private Rectangle drawnStatsBounds; // ... and where
+  private Rectangle drawnOverlay;    // Where the profiler's overlay was, or null
+
+  /**
+     Creates an empty world drawn into a viewWidth x
+     viewHeight area. Nothing is loaded until the steps from
+     addLoadingSteps() have run.
+  **/
+  public World(GameConfig config, int viewWidth, int viewHeight)
+  {
+    this.config = config;
+    ViewWidth   = viewWidth;
+    ViewHeight  = viewHeight;
+    spells      = new Spell[1];
+    maps        = new Map[1];
+    npcs        = new EntityStore(Math.max(16, config.getInt("NpcCount", 0)));
+    profiler    = new FrameProfiler(false);
+    PathBudget  = config.getInt("PathBudgetMicros", 1000) * 1000L;
+    font        = new Font("SansSerif", Font.BOLD, 16);
+    profileFont = new Font("Monospaced", Font.PLAIN, 12);
+    dirty       = new DirtyRegion(viewWidth, viewHeight);
+    drawnSpells = new Rectangle[spells.length];
+  }
+
+  /**
+     Adds the steps that load the world to a pipeline. The
+     map data, the tile sheet, the player's image and the
+     spell effects don't depend on each other, so they are
+     loaded at the same time; the world is put together once
+     they are all done.
+  **/
+  public void addLoadingSteps(LoadingPipeline loader)
+  {
+    LoadingPipeline.Task mapConfig = loader.add("map config", new Runnable()
+    {
+      public void run()
+      {
+        /**
+           Creates the map. For now, there is only one map.
+           This is also a test area and should be changed
+           or deleted.
+        **/
+        maps[0] = new Map(config, ViewWidth, ViewHeight);
+        maps[0].setPrefetching(!bRenderless);
+      }
+    });
+
+    LoadingPipeline.Task mapData = loader.add("map data", new Runnable()
+    {
+      public void run()
+      {
+        maps[0].loadMapData();
+      }
+    }, mapConfig);
+
+    LoadingPipeline.Task textures = loader.add("tile textures", new Runnable()
+    {
+      public void run()
+      {
+        /** a world that is never drawn doesn't need its own copy of the textures **/
+        if (!bRenderless)
+           maps[0].loadTextures();
+      }
+    }, mapConfig);
+
+    LoadingPipeline.Task spellTask = loader.add("spells", new Runnable()
+    {
+      public void run()
+      {
+        /**
+           Create the player's spells. This is a test area
+           and should be changed/deleted when a better approach
+           is implemented.
+        **/
+        spells[0] = new PlayerHeal();
+      }
+    });
+
+    LoadingPipeline.Task playerTask = loader.add("player", new Runnable()
+    {
+      public void run()
+      {
+        player = new Sprite(ViewWidth/2, ViewHeight/2, "../art/player.png", Direction.NORTH, 100, 100, 10, 10, 10, spells);
+      }
+    });
+
+    LoadingPipeline.Task npcTask = loader.add("npcs", new Runnable()
+    {
+      public void run()
+      {
+        spawnNpcs(config.getInt("NpcCount", 0), config.get("NpcImage", "../art/player.png"));
+      }
+    }, mapData);
+
+    LoadingPipeline.Task pathTask = loader.add("paths", new Runnable()
+    {
+      public void run()
+      {
+        pathfinder = new Pathfinder(maps[0], config.getInt("PathCacheSize", 256));
+      }
+    }, mapData);
+
+    LoadingPipeline.Task flowTask = loader.add("flow field", new Runnable()
+    {
+      public void run()
+      {
+        if (config.getInt("NpcCount", 0) <= 0)
+           return;
+        flow = new FlowField(maps[0], config.getInt("FlowRadius", 48));
+
+        /** a world with a window to keep smooth repairs the field on a thread of its own **/
+        if (config.getBoolean("FlowThread", true) && !bRenderless)
+           flow.start();
+      }
+    }, mapData);
+
+    loader.add("world", new Runnable()
+    {
+      public void run()
+      {
+        maps[0].setPlayer(player);
+        tWidth = maps[0].getTileWidth();
+        tHeight = maps[0].getTileHeight();
+
+        /** tiles that change have to be drawn again **/
+        if (!bRenderless)
+        {
+          maps[0].addTileListener(new Map.TileListener()
+          {
+            public void tilesChanged(int col, int row, int width, int height)
+            {
+              Camera camera = maps[0].getCamera();
+              dirty.add(col * tWidth - camera.getX(), row * tHeight - camera.getY(), width * tWidth, height * tHeight);
+            }
+          });
+        }
+
+        if (config.isHotReload() && !bRenderless)
+        {
+          try
+          {
+            reloader = new HotReloader(maps[0]);
+            reloader.start();
+          }
+          catch (IOException e)
+          {
+            System.err.println("Hot reload is not available:\n"+e);
+            reloader = null;
+          }
+        }
+      }
+    }, mapData, textures, spellTask, playerTask, npcTask, pathTask, flowTask);
+  }
+
+  /**
+     Puts count NPCs on random open tiles of the map, each
+     walking in a random direction.
+  **/
+  private void spawnNpcs(int count, String imgURL)
+  {
+    if (count <= 0)
+       return;
+
+    Map map = maps[0];
+    npcs.setIndex(new SpatialHash(map.getMapWidth(), map.getMapHeight(), map.getTileWidth(), map.getTileHeight(),
+                                  Math.max(1, config.getInt("SpatialCellTiles", 2))));
+
+    int type = npcs.getType(imgURL);
+    java.util.Random random = new java.util.Random(count);
+    for (int n = 0; n < count; n++)
+    {
+      /** give up on a spot after a few tries; the map may be mostly walls **/
+      int col = 0, row = 0;
+      for (int tries = 0; tries < 16; tries++)
+      {
+        col = random.nextInt(map.getMapWidth());
+        row = random.nextInt(map.getMapHeight());
+        if (!map.isBlockedTile(col, row))
+           break;
+      }
+
+      Direction dir = Direction.values()[random.nextInt(4)];
+      int id = npcs.create(type, col * map.getTileWidth(), row * map.getTileHeight(), dir, 100, 100, 10, 10, 10, null);
+      npcs.setSpeed(id, 1 + random.nextInt(2));
+    }
+  }
+
+  /**
+     Loads the world on the calling thread (using a few
+     loader threads) and waits until it is done. Returns
+     false if something failed to load.
+  **/
+  public boolean load() throws InterruptedException
+  {
+    LoadingPipeline loader = new LoadingPipeline(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    addLoadingSteps(loader);
+    loader.start();
+    loader.waitFor();
+
+    System.out.print(loader.finish());
+    if (loader.getFailure() != null)
+    {
+      System.err.println("Error loading the world:");
+      loader.getFailure().printStackTrace();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+     Marks the world as one that is never drawn, so that
+     loading it skips the tile textures and it doesn't start
+     any background threads. Must be called before loading.
+  **/
+  public void setRenderless(boolean renderless)
+  {
+    bRenderless = renderless;
+  }
+
+  public boolean isRenderless()
+  {
+    return bRenderless;
+  }
+
+  /** Sets the profiler the world's updates and frames are timed with **/
+  public void setProfiler(FrameProfiler profiler)
+  {
+    this.profiler = profiler;
+  }
+
+  /**
+     Advances the world by one step. Commands such as move()
+     belong to the step that was last begun.
+  **/
+  public void update(long elapsedTime)
+  {
+    maps[0].saveState();
+    npcs.saveState();
+
+    /** the NPCs near the player chase it **/
+    if (flow != null)
+    {
+      Camera camera = maps[0].getCamera();
+      flow.setGoal(maps[0].getColumn(camera.toWorldX(player.getX())), maps[0].getRow(camera.toWorldY(player.getY())));
+      flow.update();
+    }
+    npcs.update(maps[0], flow);
+
+    /** put in place any map or tile sheet changes made by the designers **/
+    if (reloader != null && reloader.applyPending())
+       invalidate();
+
+    /** answer the NPCs' path requests, as many as there is time for **/
+    if (pathfinder != null)
+       pathfinder.processRequests(PathBudget);
+
+    /** spells being cast move on whether or not they are drawn **/
+    for (Spell sp : spells)
+        sp.update(elapsedTime);
+  }
+
+  /**
+     Moves the player one tile in a direction (by scrolling
+     the map underneath), unless a collidable tile is in the
+     way, and turns the player to face it.
+  **/
+  public void move(Direction dir)
+  {
+    switch (dir)
+    {
+      case WEST:
+           maps[0].adjustX(tWidth);
+           break;
+      case EAST:
+           maps[0].adjustX(-tWidth);
+           break;
+      case NORTH:
+           maps[0].adjustY(tHeight);
+           break;
+      case SOUTH:
+           maps[0].adjustY(-tHeight);
+           break;
+    }
+    player.changeDir(dir);
+  }
+
+  /** The player casts their heal on themself **/
+  public void castHeal()
+  {
+    player.castSpell(spells[0], player);
+  }
+
+  /** The player takes damage **/
+  public void damagePlayer(int amount)
+  {
+    player.takeDamage(amount);
+  }
+
+  /**
+     Draws one frame of the world. The map scrolls smoothly
+     between updates according to alpha. Renderless worlds
+     can't be drawn.
+  **/
+  public void draw(Graphics2D g, float alpha)
+  {
+    drawScene(g, alpha, null);
+    remember(alpha);
+  }
+
+  /**
+     Draws only the parts of the frame in the region (see
+     getDirtyRegion()); the rest of g must still hold the
+     last frame drawn. Only what lies inside the region is
+     touched.
+  **/
+  public void draw(Graphics2D g, float alpha, DirtyRegion region)
+  {
+    if (region.isFull())
+    {
+      draw(g, alpha);
+      return;
+    }
+
+    Shape clip = g.getClip();
+    drawScene(g, alpha, region);
+    g.setClip(clip);
+    remember(alpha);
+  }
+
+  /**
+     Works out which parts of the view the frame at alpha
+     has to draw again, compared with the last frame drawn:
+     where sprites and spells were and are, stats that
+     changed, the profiler's overlay and tiles that changed.
+     When the map scrolled, everything has to be drawn.
+
+     The region returned belongs to the world and is emptied
+     when the next frame is drawn.
+  **/
+  public DirtyRegion getDirtyRegion(float alpha)
+  {
+    Camera camera = maps[0].getCamera();
+    int left = camera.getX(alpha);
+    int top  = camera.getY(alpha);
+    /** cleared before drawing, so an invalidate() while the frame is drawn isn't lost **/
+    boolean invalidated = bInvalidated;
+    if (invalidated)
+       bInvalidated = false;
+    if (invalidated || !bDrawn || left != drawnLeft || top != drawnTop)
+    {
+      dirty.markFull();
+      return dirty;
+    }
+
+    npcs.markDirty(dirty, left, top, ViewWidth, ViewHeight, alpha);
+
+    Image img = player.getImage();
+    if (img != drawnPlayer || player.getX() != drawnPlayerX || player.getY() != drawnPlayerY)
+    {
+      if (drawnPlayer != null)
+         dirty.add(drawnPlayerX, drawnPlayerY, drawnPlayer.getWidth(null), drawnPlayer.getHeight(null));
+      if (img != null)
+         dirty.add(player.getX(), player.getY(), img.getWidth(null), img.getHeight(null));
+    }
+
+    /** spells are animated, so they are drawn again every frame they show **/
+    for (int i = 0; i < spells.length; i++)
+    {
+      dirty.add(drawnSpells[i]);
+      dirty.add(spellBounds(spells[i]));
+    }
+
+    if (!statLine().equals(drawnStats))
+    {
+      dirty.add(drawnStatsBounds);
+      dirty.add(statsBounds());
+    }
+
+    dirty.add(drawnOverlay);
+    dirty.add(profiler.getOverlayBounds(profileMetrics));
+    return dirty;
+  }
+
+  /**
+     Makes the next frame draw the whole view. May be called
+     from any thread (e.g. the AWT event thread when the
+     window is uncovered).
+  **/
+  public void invalidate()
+  {
+    bInvalidated = true;
+  }
+
+  /** Remembers what the frame just drawn showed **/
+  private void remember(float alpha)
+  {
+    Camera camera = maps[0].getCamera();
+    drawnLeft    = camera.getX(alpha);
+    drawnTop     = camera.getY(alpha);
+    drawnPlayer  = player.getImage();
+    drawnPlayerX = player.getX();
+    drawnPlayerY = player.getY();
+    for (int i = 0; i < spells.length; i++)
+        drawnSpells[i] = spellBounds(spells[i]);
+    drawnStats       = statLine();
+    drawnStatsBounds = statsBounds();
+    drawnOverlay     = profiler.getOverlayBounds(profileMetrics);
+    bDrawn = true;
+    dirty.clear();
+  }
+
+  /** Returns where the spell is drawn, or null if it isn't **/
+  private Rectangle spellBounds(Spell sp)
+  {
+    if (sp.getState() == SpellState.CAST || sp.getState() == SpellState.CASTING)
+       return sp.getBounds();
+    return null;
+  }
+
+  /**
+     Draws everything, or only what lies inside the region
+     if there is one. Each part of the scene is drawn a
+     rectangle of the region at a time, clipped to it (the
+     map's layers cull their tiles to the clip), except for
+     the entities, which EntityStore goes through only once.
+  **/
+  private void drawScene(Graphics2D g, float alpha, DirtyRegion region)
+  {
+    int passes = (region == null) ? 1 : region.getCount();
+
+    /** If we can't draw the map, abandon ship **/
+    profiler.begin(FrameProfiler.Phase.MAP);
+    boolean drawn = true;
+    for (int i = 0; i < passes; i++)
+    {
+      clip(g, region, i);
+
+      /** Clears the frame to a black background. **/
+      g.setColor(Color.black);
+      g.fillRect(0,0, ViewWidth, ViewHeight);
+      drawn &= maps[0].drawBelow(g, alpha);
+    }
+    profiler.end(FrameProfiler.Phase.MAP);
+    if (!drawn)
+       return;
+
+    profiler.begin(FrameProfiler.Phase.SPRITES);
+    Camera camera = maps[0].getCamera();
+    npcs.draw(g, camera.getX(alpha), camera.getY(alpha), ViewWidth, ViewHeight, alpha, region);
+    for (int i = 0; i < passes; i++)
+    {
+      clip(g, region, i);
+      player.draw(g); // Draw the player sprite
+    }
+    profiler.end(FrameProfiler.Phase.SPRITES);
+
+    /** the map's overlay layers cover the sprites **/
+    profiler.begin(FrameProfiler.Phase.MAP);
+    for (int i = 0; i < passes; i++)
+    {
+      clip(g, region, i);
+      maps[0].drawAbove(g, alpha);
+    }
+    profiler.end(FrameProfiler.Phase.MAP);
+
+    for (int i = 0; i < passes; i++)
+    {
+      clip(g, region, i);
+      drawOverlays(g);
+    }
+  }
+
+  /** Clips g to the i-th rectangle of the region, if there is one **/
+  private static void clip(Graphics2D g, DirtyRegion region, int i)
+  {
+    if (region != null)
+       g.setClip(region.getRect(i));
+  }
+
+  /** Draws what goes over the map: the spells, the stats and the profiler's overlay **/
+  private void drawOverlays(Graphics2D g)
+  {
+    profiler.begin(FrameProfiler.Phase.SPELLS);
+    /** for all of the player's spells... **/
+    for (Spell sp : spells)
+    {
+      /** if one of the spells is being cast... **/
+      if (sp.getState() == SpellState.CAST || sp.getState() == SpellState.CASTING)
+         /** draw the spell's effect **/
+         sp.draw(g);
+    }
+    profiler.end(FrameProfiler.Phase.SPELLS);
+
+    /**
+       Draw the player's stats on the screen. This needs
+       to be overhauled later.
+    **/
+    profiler.begin(FrameProfiler.Phase.HUD);
+    if (metrics == null)
+    {
+      metrics = g.getFontMetrics(font);
+      profileMetrics = g.getFontMetrics(profileFont);
+    }
+    drawStats(g);
+    profiler.drawOverlay(g, profileFont, profileMetrics);
+    profiler.end(FrameProfiler.Phase.HUD);
+  }
+
+  /**
+     Draws the player's stats onto the screen
+     
+     DEBUG METHOD.
+  **/
+  private void drawStats(Graphics2D g)
+  {
+    g.setColor(Color.WHITE);
+    g.setFont(font);
+    g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+    String[] lines = statLines();
+    int x = statsLeft(lines);
+    int y = statsTop();
+    for (String msg : lines)
+    {
+      g.drawString(msg, x, y);
+      y += STAT_SPACE;
+    }
+  }
+
+  /** Returns the lines of stats: health, mana, then the attributes **/
+  private String[] statLines()
+  {
+    int[] attributes = player.getAttributes();
+    String[] lines = new String[2 + attributes.length];
+    lines[0] = Integer.toString(player.getHealth());
+    lines[1] = Integer.toString(player.getMana());
+    for (int i = 0; i < attributes.length; i++)
+        lines[2 + i] = Integer.toString(attributes[i]);
+    return lines;
+  }
+
+  /** Returns the stats as one string, to tell when they change **/
+  private String statLine()
+  {
+    return Arrays.toString(statLines());
+  }
+
+  /** Returns where the lines of stats start; the health line ends 20 pixels from the edge **/
+  private int statsLeft(String[] lines)
+  {
+    return (ViewWidth - 20) - metrics.stringWidth(lines[0]);
+  }
+
+  /** Returns the baseline of the first line of stats **/
+  private int statsTop()
+  {
+    return (ViewHeight - 30) - metrics.getHeight();
+  }
+
+  /** Returns the part of the screen drawStats() covers, or null before the first frame **/
+  private Rectangle statsBounds()
+  {
+    if (metrics == null)
+       return null;
+    String[] lines = statLines();
+    int width = 0;
+    for (String msg : lines)
+        width = Math.max(width, metrics.stringWidth(msg));
+    int top = statsTop() - metrics.getAscent();
+    int bottom = statsTop() + (lines.length - 1) * STAT_SPACE + metrics.getDescent();
+    return new Rectangle(statsLeft(lines) - 1, top - 1, width + 2, bottom - top + 2);
+  }
+
+  /** Stops the world's background threads and releases its images **/
+  public void dispose()
+  {
+    if (reloader != null)
+       reloader.stop();
+    if (pathfinder != null)
+       pathfinder.dispose();
+    if (flow != null)
+       flow.dispose();
+    if (player != null)
+       player.dispose();
+    for (Spell sp : spells)
+    {
+      if (sp != null)
+         sp.dispose();
+    }
+    npcs.dispose();
+    if (maps[0] != null)
+       maps[0].dispose();
+  }
+
+  public Map getMap()
+  {
+    return maps[0];
+  }
+
+  public Sprite getPlayer()
+  {
+    return player;
+  }
+
+  public EntityStore getNpcs()
+  {
+    return npcs;
+  }
+
+  public Pathfinder getPathfinder()
+  {
+    return pathfinder;
+  }
+
+  /** Returns the field leading the NPCs to the player, or null if there are no NPCs **/
+  public FlowField getFlowField()
+  {
+    return flow;
+  }
+
+  /**
+     Finds the NPCs within radius pixels of a point of the
+     map (in world pixels) and writes their IDs into out.
+     Returns how many were written.
+  **/
+  public int findNpcs(int x, int y, int radius, int[] out)
+  {
+    SpatialHash index = npcs.getIndex();
+    return (index == null) ? 0 : index.queryRadius(x, y, radius, out);
+  }
+
+  /**
+     Finds the out.length NPCs nearest to a point of the map
+     and writes their IDs into out, nearest first. Returns
+     how many were written.
+  **/
+  public int findNearestNpcs(int x, int y, int[] out)
+  {
+    SpatialHash index = npcs.getIndex();
+    return (index == null) ? 0 : index.queryNearest(x, y, out);
+  }
+
+  public int getViewWidth()
+  {
+    return ViewWidth;
+  }
+
+  public int getViewHeight()
+  {
+    return ViewHeight;
+  }
+}
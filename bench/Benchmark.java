@@ -0,0 +1,106 @@
+import java.util.*;
+
+/**
+   A benchmark of one of the engine's hot paths, run by
+   BenchmarkRunner.
+
+   A benchmark declares its parameters and the values each
+   one should be measured with; the runner measures every
+   combination of them. setUp() builds everything the
+   measured operation needs, so run() does nothing but the
+   operation itself. Whatever run() computes should be
+   passed to the Blackhole, or the JIT may remove it.
+**/
+public abstract class Benchmark
+{
+  /** The parameter values of one run of a benchmark **/
+  public static class Params
+  {
+    private LinkedHashMap<String, String> values;
+
+    public Params(LinkedHashMap<String, String> values)
+    {
+      this.values = values;
+    }
+
+    public String get(String name)
+    {
+      String value = values.get(name);
+      if (value == null)
+         throw new IllegalArgumentException("No value for parameter " + name);
+      return value;
+    }
+
+    public int getInt(String name)
+    {
+      return Integer.parseInt(get(name));
+    }
+
+    public boolean getBoolean(String name)
+    {
+      return Boolean.parseBoolean(get(name));
+    }
+
+    public Set<String> getNames()
+    {
+      return values.keySet();
+    }
+
+    /** Returns "name=value,name=value", the form the runner passes to a forked JVM **/
+    public String toString()
+    {
+      StringBuilder sb = new StringBuilder();
+      for (String name : values.keySet())
+      {
+        if (sb.length() > 0)
+           sb.append(',');
+        sb.append(name).append('=').append(values.get(name));
+      }
+      return sb.toString();
+    }
+
+    /** Reads the form written by toString() **/
+    public static Params parse(String s)
+    {
+      LinkedHashMap<String, String> values = new LinkedHashMap<String, String>();
+      for (String pair : s.split(","))
+      {
+        int eq = pair.indexOf('=');
+        if (eq > 0)
+           values.put(pair.substring(0, eq), pair.substring(eq + 1));
+      }
+      return new Params(values);
+    }
+  }
+
+  private LinkedHashMap<String, String[]> params = new LinkedHashMap<String, String[]>();
+
+  /** Declares a parameter and the values it is measured with by default **/
+  protected void param(String name, String... values)
+  {
+    params.put(name, values);
+  }
+
+  /** Returns every parameter and its values **/
+  public LinkedHashMap<String, String[]> getParams()
+  {
+    return params;
+  }
+
+  /** Returns the name results are reported under **/
+  public String getName()
+  {
+    return getClass().getSimpleName();
+  }
+
+  /** Prepares a run with the given parameter values **/
+  public abstract void setUp(Params p) throws Exception;
+
+  /** Performs the measured operation once **/
+  public abstract void run(Blackhole bh);
+
+  /** Releases what setUp() created **/
+  public void tearDown() throws Exception
+  {
+  }
+}
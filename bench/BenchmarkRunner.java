@@ -0,0 +1,521 @@
+import java.io.*;
+import java.util.*;
+
+/**
+   Runs the engine's benchmarks and writes their results in
+   a machine-readable form, so they can be compared from one
+   build to the next.
+
+   Usage:
+       java BenchmarkRunner [options] [name ...]
+
+   Only the benchmarks whose names contain one of the given
+   names are run (all of them if none are given). Options:
+
+       -l               list the benchmarks and their parameters
+       -wi <count>      warmup iterations (default 3)
+       -i <count>       measured iterations (default 5)
+       -r <millis>      length of each iteration (default 1000)
+       -f <count>       JVMs to fork per run; 0 runs in this JVM (default 1)
+       -p name=a,b      measure a parameter with these values instead
+       -jvmArgs <args>  extra arguments for the forked JVMs
+       -rf json|csv     write the results in this format (default json)
+       -rff <file>      write the results to this file (default benchmark-results.json/.csv)
+
+   The results are only written to a file if -rf or -rff is
+   given; otherwise they are just printed.
+
+   Every benchmark is measured for every combination of its
+   parameters, each in a fresh JVM by default so that one
+   benchmark's JIT profile doesn't slow down the next. The
+   score is the average time per operation; its error is
+   the 99.9% confidence interval over all the iterations.
+
+   The JSON results have the same layout as JMH's, so the
+   same tools can read and compare them.
+**/
+public final class BenchmarkRunner
+{
+  private static final String RESULT_PREFIX = "#RESULT";
+
+  // time each batch of operations takes at least, so reading the clock doesn't skew short operations
+  private static final long MIN_BATCH_NANOS = 100000L;
+
+  /** The measurements of one benchmark with one set of parameter values **/
+  private static class Result
+  {
+    String benchmark;
+    Benchmark.Params params;
+    ArrayList<double[]> forks = new ArrayList<double[]>();  // ns/op of each iteration, per fork
+
+    double getScore()
+    {
+      double sum = 0;
+      int n = 0;
+      for (double[] fork : forks)
+      {
+        for (double v : fork)
+        {
+          sum += v;
+          n++;
+        }
+      }
+      return (n == 0) ? Double.NaN : sum / n;
+    }
+
+    /** Half the width of the 99.9% confidence interval of the score **/
+    double getError()
+    {
+      double mean = getScore();
+      double sq = 0;
+      int n = 0;
+      for (double[] fork : forks)
+      {
+        for (double v : fork)
+        {
+          sq += (v - mean) * (v - mean);
+          n++;
+        }
+      }
+      if (n < 2)
+         return Double.NaN;
+      return studentT999(n - 1) * Math.sqrt(sq / (n - 1)) / Math.sqrt(n);
+    }
+
+    int getSamples()
+    {
+      int n = 0;
+      for (double[] fork : forks)
+          n += fork.length;
+      return n;
+    }
+  }
+
+  private int warmupIterations = 3;
+  private int iterations = 5;
+  private long iterationMillis = 1000;
+  private int forks = 1;
+  private String jvmArgs = "";
+  private String format = "json";
+  private String resultFile;              // Where the results are written, or null to only print them
+  private boolean bWriteResults;          // Was -rf or -rff given?
+  private LinkedHashMap<String, String[]> overrides = new LinkedHashMap<String, String[]>();
+  private ArrayList<String> filters = new ArrayList<String>();
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length > 0 && args[0].equals("--child"))
+    {
+      runChild(args);
+      return;
+    }
+
+    BenchmarkRunner runner = new BenchmarkRunner();
+    boolean list = false;
+    for (int i = 0; i < args.length; i++)
+    {
+      String arg = args[i];
+      if (arg.equals("-l"))
+         list = true;
+      else if (arg.equals("-wi"))
+         runner.warmupIterations = Integer.parseInt(args[++i]);
+      else if (arg.equals("-i"))
+         runner.iterations = Integer.parseInt(args[++i]);
+      else if (arg.equals("-r"))
+         runner.iterationMillis = Long.parseLong(args[++i]);
+      else if (arg.equals("-f"))
+         runner.forks = Integer.parseInt(args[++i]);
+      else if (arg.equals("-jvmArgs"))
+         runner.jvmArgs = args[++i];
+      else if (arg.equals("-rf"))
+      {
+        runner.format = args[++i];
+        runner.bWriteResults = true;
+      }
+      else if (arg.equals("-rff"))
+      {
+        runner.resultFile = args[++i];
+        runner.bWriteResults = true;
+      }
+      else if (arg.equals("-p"))
+      {
+        String p = args[++i];
+        int eq = p.indexOf('=');
+        runner.overrides.put(p.substring(0, eq), p.substring(eq + 1).split(","));
+      }
+      else if (arg.startsWith("-"))
+      {
+        System.err.println("Unknown option: " + arg);
+        System.exit(1);
+      }
+      else
+        runner.filters.add(arg);
+    }
+
+    if (!runner.format.equals("json") && !runner.format.equals("csv"))
+    {
+      System.err.println("Unknown result format: " + runner.format);
+      System.exit(1);
+    }
+    if (runner.bWriteResults && runner.resultFile == null)
+       runner.resultFile = "benchmark-results." + runner.format;
+
+    if (list)
+       runner.list();
+    else
+       runner.runAll();
+  }
+
+  /** Prints every benchmark and its parameters **/
+  private void list()
+  {
+    for (Benchmark b : select())
+    {
+      System.out.println(b.getName());
+      for (String name : b.getParams().keySet())
+          System.out.println("  " + name + " = " + String.join(",", b.getParams().get(name)));
+    }
+  }
+
+  /** Returns the benchmarks matching the names given on the command line **/
+  private ArrayList<Benchmark> select()
+  {
+    ArrayList<Benchmark> selected = new ArrayList<Benchmark>();
+    for (Benchmark b : EngineBenchmarks.all())
+    {
+      boolean match = filters.isEmpty();
+      for (String f : filters)
+          match |= b.getName().contains(f);
+      if (match)
+         selected.add(b);
+    }
+    return selected;
+  }
+
+  /** Runs the selected benchmarks and writes the result file **/
+  private void runAll() throws Exception
+  {
+    ArrayList<Result> results = new ArrayList<Result>();
+    for (Benchmark b : select())
+    {
+      for (Benchmark.Params params : combinations(b))
+      {
+        Result r = new Result();
+        r.benchmark = b.getName();
+        r.params = params;
+        System.out.println("# " + b.getName() + " " + params);
+
+        if (forks == 0)
+           r.forks.add(measure(b, params, warmupIterations, iterations, iterationMillis));
+        else
+        {
+          for (int f = 0; f < forks; f++)
+          {
+            double[] scores = fork(b, params);
+            if (scores != null)
+               r.forks.add(scores);
+          }
+        }
+
+        if (!r.forks.isEmpty())
+        {
+          System.out.printf("  %.3f +- %.3f ns/op%n", r.getScore(), r.getError());
+          results.add(r);
+        }
+      }
+    }
+
+    printSummary(results);
+    if (resultFile == null)
+       return;
+
+    Writer out = new BufferedWriter(new FileWriter(resultFile));
+    try
+    {
+      if (format.equals("json"))
+         writeJson(results, out);
+      else
+         writeCsv(results, out);
+    }
+    finally
+    {
+      out.close();
+    }
+    System.out.println("Results written to " + resultFile);
+  }
+
+  /** Returns every combination of a benchmark's parameter values **/
+  private ArrayList<Benchmark.Params> combinations(Benchmark b)
+  {
+    ArrayList<LinkedHashMap<String, String>> combos = new ArrayList<LinkedHashMap<String, String>>();
+    combos.add(new LinkedHashMap<String, String>());
+    for (String name : b.getParams().keySet())
+    {
+      String[] values = overrides.containsKey(name) ? overrides.get(name) : b.getParams().get(name);
+      ArrayList<LinkedHashMap<String, String>> next = new ArrayList<LinkedHashMap<String, String>>();
+      for (LinkedHashMap<String, String> combo : combos)
+      {
+        for (String value : values)
+        {
+          LinkedHashMap<String, String> c = new LinkedHashMap<String, String>(combo);
+          c.put(name, value);
+          next.add(c);
+        }
+      }
+      combos = next;
+    }
+
+    ArrayList<Benchmark.Params> params = new ArrayList<Benchmark.Params>();
+    for (LinkedHashMap<String, String> combo : combos)
+        params.add(new Benchmark.Params(combo));
+    return params;
+  }
+
+  /**
+     Measures a benchmark in a new JVM and returns the score
+     of each of its iterations, or null if it failed.
+  **/
+  private double[] fork(Benchmark b, Benchmark.Params params) throws IOException, InterruptedException
+  {
+    ArrayList<String> cmd = new ArrayList<String>();
+    cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    cmd.add("-Djava.awt.headless=true");
+    for (String arg : jvmArgs.trim().split("\\s+"))
+    {
+      if (arg.length() > 0)
+         cmd.add(arg);
+    }
+    cmd.add("-cp");
+    cmd.add(System.getProperty("java.class.path"));
+    cmd.add(BenchmarkRunner.class.getName());
+    cmd.add("--child");
+    cmd.add(b.getName());
+    cmd.add(params.toString());
+    cmd.add(Integer.toString(warmupIterations));
+    cmd.add(Integer.toString(iterations));
+    cmd.add(Long.toString(iterationMillis));
+
+    ProcessBuilder pb = new ProcessBuilder(cmd);
+    pb.redirectErrorStream(true);
+    Process p = pb.start();
+
+    double[] scores = null;
+    BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+    String line;
+    while ((line = in.readLine()) != null)
+    {
+      if (line.startsWith(RESULT_PREFIX))
+      {
+        String[] parts = line.substring(RESULT_PREFIX.length()).trim().split(" ");
+        scores = new double[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            scores[i] = Double.parseDouble(parts[i]);
+      }
+      else
+        System.out.println("  " + line);
+    }
+
+    if (p.waitFor() != 0)
+    {
+      System.err.println("  forked JVM failed with exit code " + p.exitValue());
+      return null;
+    }
+    return scores;
+  }
+
+  /** Runs one benchmark in this (forked) JVM and prints its scores **/
+  private static void runChild(String[] args) throws Exception
+  {
+    String name = args[1];
+    Benchmark.Params params = Benchmark.Params.parse(args[2]);
+    for (Benchmark b : EngineBenchmarks.all())
+    {
+      if (b.getName().equals(name))
+      {
+        double[] scores = measure(b, params, Integer.parseInt(args[3]), Integer.parseInt(args[4]), Long.parseLong(args[5]));
+        StringBuilder sb = new StringBuilder(RESULT_PREFIX);
+        for (double s : scores)
+            sb.append(' ').append(s);
+        System.out.println(sb);
+        return;
+      }
+    }
+    throw new IllegalArgumentException("No benchmark named " + name);
+  }
+
+  /**
+     Warms a benchmark up, then measures it, returning the
+     average ns per operation of each measured iteration.
+  **/
+  private static double[] measure(Benchmark b, Benchmark.Params params, int warmups, int count, long millis)
+    throws Exception
+  {
+    Blackhole bh = new Blackhole();
+    b.setUp(params);
+    try
+    {
+      long nanos = millis * 1000000L;
+
+      /** find a batch size that takes long enough to time **/
+      int batch = 1;
+      while (batch < (1 << 30))
+      {
+        long start = System.nanoTime();
+        for (int i = 0; i < batch; i++)
+            b.run(bh);
+        if (System.nanoTime() - start >= MIN_BATCH_NANOS)
+           break;
+        batch *= 2;
+      }
+
+      for (int w = 0; w < warmups; w++)
+          System.out.printf("Warmup %d: %.3f ns/op%n", w + 1, iteration(b, bh, batch, nanos));
+
+      double[] scores = new double[count];
+      for (int i = 0; i < count; i++)
+      {
+        scores[i] = iteration(b, bh, batch, nanos);
+        System.out.printf("Iteration %d: %.3f ns/op%n", i + 1, scores[i]);
+      }
+
+      if (bh.getSink() == 42)     // keep the sink alive
+         System.out.print("");
+      return scores;
+    }
+    finally
+    {
+      b.tearDown();
+    }
+  }
+
+  /** Runs whole batches for at least nanos and returns the ns per operation **/
+  private static double iteration(Benchmark b, Blackhole bh, int batch, long nanos)
+  {
+    long ops = 0;
+    long start = System.nanoTime();
+    long elapsed;
+    do
+    {
+      for (int i = 0; i < batch; i++)
+          b.run(bh);
+      ops += batch;
+      elapsed = System.nanoTime() - start;
+    }
+    while (elapsed < nanos);
+    return (double)elapsed / ops;
+  }
+
+  /** Prints a table of every result **/
+  private static void printSummary(ArrayList<Result> results)
+  {
+    int nameWidth = "Benchmark".length();
+    int paramWidth = "Params".length();
+    for (Result r : results)
+    {
+      nameWidth  = Math.max(nameWidth, r.benchmark.length());
+      paramWidth = Math.max(paramWidth, r.params.toString().length());
+    }
+
+    String row = "%-" + nameWidth + "s  %-" + paramWidth + "s";
+    System.out.println();
+    System.out.printf(row + " %14s %12s  %s%n", "Benchmark", "Params", "Score", "Error", "Units");
+    for (Result r : results)
+        System.out.printf(row + " %14.3f %12.3f  ns/op%n", r.benchmark, r.params, r.getScore(), r.getError());
+  }
+
+  /** Writes the results in JMH's JSON layout **/
+  private void writeJson(ArrayList<Result> results, Writer out) throws IOException
+  {
+    out.write("[\n");
+    for (int i = 0; i < results.size(); i++)
+    {
+      Result r = results.get(i);
+      out.write("  {\n");
+      out.write("    \"benchmark\" : " + quote(r.benchmark) + ",\n");
+      out.write("    \"mode\" : \"avgt\",\n");
+      out.write("    \"threads\" : 1,\n");
+      out.write("    \"forks\" : " + r.forks.size() + ",\n");
+      out.write("    \"jvm\" : " + quote(System.getProperty("java.home")) + ",\n");
+      out.write("    \"vmVersion\" : " + quote(System.getProperty("java.vm.version")) + ",\n");
+      out.write("    \"warmupIterations\" : " + warmupIterations + ",\n");
+      out.write("    \"warmupTime\" : " + quote(iterationMillis + " ms") + ",\n");
+      out.write("    \"measurementIterations\" : " + iterations + ",\n");
+      out.write("    \"measurementTime\" : " + quote(iterationMillis + " ms") + ",\n");
+      out.write("    \"params\" : {");
+      String sep = "\n";
+      for (String name : r.params.getNames())
+      {
+        out.write(sep + "      " + quote(name) + " : " + quote(r.params.get(name)));
+        sep = ",\n";
+      }
+      out.write("\n    },\n");
+      out.write("    \"primaryMetric\" : {\n");
+      out.write("      \"score\" : " + number(r.getScore()) + ",\n");
+      out.write("      \"scoreError\" : " + number(r.getError()) + ",\n");
+      out.write("      \"scoreUnit\" : \"ns/op\",\n");
+      out.write("      \"rawData\" : [");
+      for (int f = 0; f < r.forks.size(); f++)
+      {
+        out.write((f == 0) ? "\n        [" : ",\n        [");
+        double[] fork = r.forks.get(f);
+        for (int k = 0; k < fork.length; k++)
+            out.write(((k == 0) ? "" : ", ") + number(fork[k]));
+        out.write("]");
+      }
+      out.write("\n      ]\n");
+      out.write("    }\n");
+      out.write((i == results.size() - 1) ? "  }\n" : "  },\n");
+    }
+    out.write("]\n");
+  }
+
+  /** Writes the results in JMH's CSV layout, one column per parameter **/
+  private static void writeCsv(ArrayList<Result> results, Writer out) throws IOException
+  {
+    LinkedHashSet<String> names = new LinkedHashSet<String>();
+    for (Result r : results)
+        names.addAll(r.params.getNames());
+
+    out.write("\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\",\"Score Error (99.9%)\",\"Unit\"");
+    for (String name : names)
+        out.write(",\"Param: " + name + "\"");
+    out.write("\n");
+
+    for (Result r : results)
+    {
+      out.write(quote(r.benchmark) + ",\"avgt\",1," + r.getSamples() + ","
+                + number(r.getScore()) + "," + number(r.getError()) + ",\"ns/op\"");
+      for (String name : names)
+          out.write("," + (r.params.getNames().contains(name) ? r.params.get(name) : ""));
+      out.write("\n");
+    }
+  }
+
+  private static String quote(String s)
+  {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  private static String number(double d)
+  {
+    return (Double.isNaN(d) || Double.isInfinite(d)) ? "\"NaN\"" : Double.toString(d);
+  }
+
+  /** Two-sided 99.9% critical values of Student's t distribution, by degrees of freedom **/
+  private static final double[] T_999 = {
+    636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+    4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+    3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+  };
+
+  private static double studentT999(int df)
+  {
+    if (df <= T_999.length)
+       return T_999[df - 1];
+    /** approaches the normal distribution's 3.291 **/
+    return 3.291 + (T_999[T_999.length - 1] - 3.291) * T_999.length / df;
+  }
+
+  /** Can't create a BenchmarkRunner from outside **/
+  private BenchmarkRunner(){}
+}
@@ -0,0 +1,37 @@
+/**
+   Consumes the results of benchmarked operations so that
+   the JIT can't prove they are unused and remove them.
+**/
+public final class Blackhole
+{
+  private long sink;                 // every consumed value, mixed together
+  private volatile Object trap;      // never equal to a consumed object
+
+  public void consume(int value)
+  {
+    sink = sink * 31 + value;
+  }
+
+  public void consume(long value)
+  {
+    sink = sink * 31 + value;
+  }
+
+  public void consume(boolean value)
+  {
+    sink = sink * 31 + (value ? 1 : 0);
+  }
+
+  public void consume(Object value)
+  {
+    /** the volatile read can't be folded away, so neither can the object **/
+    if (value == trap)
+       sink++;
+  }
+
+  /** Returns the mix of every consumed value, so the sink itself is used **/
+  public long getSink()
+  {
+    return sink;
+  }
+}
@@ -0,0 +1,922 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import javax.imageio.*;
+
+/**
+   The benchmarks of the engine's hot paths, and the
+   fixtures they are built from.
+
+   Every asset a benchmark needs (tile sheet, map, sprite
+   image) is generated into a temporary directory, so the
+   results only depend on the parameters, and everything is
+   drawn into off-screen BufferedImages, so the benchmarks
+   run on machines without a display.
+**/
+public final class EngineBenchmarks
+{
+  private static final int TILE_SIZE   = 32;
+  private static final int VIEW_WIDTH  = 1024;
+  private static final int VIEW_HEIGHT = 768;
+
+  /** Returns a new instance of every benchmark **/
+  public static ArrayList<Benchmark> all()
+  {
+    ArrayList<Benchmark> list = new ArrayList<Benchmark>();
+    list.add(new MapDraw());
+    list.add(new MapScroll());
+    list.add(new AnimationUpdate());
+    list.add(new SpriteChangeDir());
+    list.add(new GameActionGetAmount());
+    list.add(new TileLoaderGetTile());
+    list.add(new TileBlit());
+    list.add(new EntityUpdate());
+    list.add(new EntityDraw());
+    list.add(new SpatialQuery());
+    list.add(new PathFind());
+    list.add(new FlowFieldUpdate());
+    list.add(new TileCollision());
+    list.add(new LayeredDraw());
+    list.add(new DirtyDraw());
+    return list;
+  }
+
+  /** Map.draw() of a full view of the map **/
+  public static class MapDraw extends Benchmark
+  {
+    private Map map;
+    private Graphics2D g;
+    private File dir;
+
+    public MapDraw()
+    {
+      param("mapSize", "64", "1024");
+      param("tileCount", "16", "256");
+      param("imageType", "INT_RGB", "COMPATIBLE");
+      param("chunkCache", "true", "false");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      map = createMap(dir, p.getInt("mapSize"), p.getInt("tileCount"));
+      map.setChunkCaching(p.getBoolean("chunkCache"));
+      g = createTarget(p.get("imageType"), VIEW_WIDTH, VIEW_HEIGHT).createGraphics();
+    }
+
+    public void run(Blackhole bh)
+    {
+      bh.consume(map.draw(g));
+    }
+
+    public void tearDown()
+    {
+      g.dispose();
+      map.getChunks().shutdown();
+      deleteDir(dir);
+    }
+  }
+
+  /**
+     Map.adjustX() and adjustY(): the camera walks a square
+     of 16 tiles a side, one tile per operation, so it keeps
+     crossing chunk boundaries and prefetching chunks.
+  **/
+  public static class MapScroll extends Benchmark
+  {
+    private Map map;
+    private Sprite player;
+    private File dir;
+    private int step;
+
+    public MapScroll()
+    {
+      param("mapSize", "64", "1024");
+      param("tileCount", "16");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      map = createMap(dir, p.getInt("mapSize"), p.getInt("tileCount"));
+      player = new Sprite(VIEW_WIDTH/2, VIEW_HEIGHT/2, createSpriteImage(dir), Direction.NORTH, 100, 100, 10, 10, 10, null);
+      map.setPlayer(player);
+    }
+
+    public void run(Blackhole bh)
+    {
+      int side = (step++ >> 4) & 3;
+      if (side == 0)
+         map.adjustX(-TILE_SIZE);
+      else if (side == 1)
+         map.adjustY(-TILE_SIZE);
+      else if (side == 2)
+         map.adjustX(TILE_SIZE);
+      else
+         map.adjustY(TILE_SIZE);
+      bh.consume(map.getCamera().getX());
+    }
+
+    public void tearDown()
+    {
+      player.dispose();
+      map.getChunks().shutdown();
+      deleteDir(dir);
+    }
+  }
+
+  /** Animation.update() with a frame time that doesn't divide the frame durations **/
+  public static class AnimationUpdate extends Benchmark
+  {
+    private Animation anim;
+
+    public AnimationUpdate()
+    {
+      param("frames", "2", "16", "128");
+    }
+
+    public void setUp(Params p)
+    {
+      anim = new Animation();
+      BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+      for (int i = 0; i < p.getInt("frames"); i++)
+          anim.addFrame(img, 50);
+    }
+
+    public void run(Blackhole bh)
+    {
+      anim.update(7);
+      bh.consume(anim.getImage());
+    }
+  }
+
+  /** Sprite.changeDir() over a crowd of sprites sharing one image **/
+  public static class SpriteChangeDir extends Benchmark
+  {
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private Sprite[] sprites;
+    private File dir;
+    private int next;
+
+    public SpriteChangeDir()
+    {
+      param("spriteCount", "1", "100", "1000");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      String img = createSpriteImage(dir);
+      sprites = new Sprite[p.getInt("spriteCount")];
+      for (int i = 0; i < sprites.length; i++)
+          sprites[i] = new Sprite(i, i, img, Direction.NORTH, 100, 100, 10, 10, 10, null);
+    }
+
+    public void run(Blackhole bh)
+    {
+      int i = next++;
+      Sprite s = sprites[i % sprites.length];
+      s.changeDir(DIRECTIONS[(i / sprites.length + i) & 3]);
+      bh.consume(s.getFacing());
+    }
+
+    public void tearDown()
+    {
+      for (Sprite s : sprites)
+          s.dispose();
+      deleteDir(dir);
+    }
+  }
+
+  /** GameAction.getAmount() as the game polls it each update, with keys being pressed meanwhile **/
+  public static class GameActionGetAmount extends Benchmark
+  {
+    private GameAction[] actions;
+    private int next;
+
+    public GameActionGetAmount()
+    {
+      param("actions", "1", "16");
+      param("behavior", "NORMAL", "DETECT_INITIAL_PRESS_ONLY");
+    }
+
+    public void setUp(Params p)
+    {
+      int behavior = p.get("behavior").equals("NORMAL") ? GameAction.NORMAL : GameAction.DETECT_INITIAL_PRESS_ONLY;
+      actions = new GameAction[p.getInt("actions")];
+      for (int i = 0; i < actions.length; i++)
+          actions[i] = new GameAction("action " + i, behavior);
+    }
+
+    public void run(Blackhole bh)
+    {
+      int i = next++;
+      GameAction a = actions[i % actions.length];
+      if ((i & 7) == 0)
+         a.press();
+      else if ((i & 7) == 4)
+         a.release();
+      bh.consume(a.getAmount());
+    }
+  }
+
+  /** ImageTileLoader.getTile() from tile sheets of different pixel formats **/
+  public static class TileLoaderGetTile extends Benchmark
+  {
+    private ImageTileLoader loader;
+    private int cols;
+    private int count;
+    private int next;
+
+    public TileLoaderGetTile()
+    {
+      param("tileCount", "16", "256");
+      param("imageType", "INT_ARGB", "3BYTE_BGR", "COMPATIBLE");
+    }
+
+    public void setUp(Params p)
+    {
+      count = p.getInt("tileCount");
+      cols = sheetColumns(count);
+      BufferedImage sheet = createTarget(p.get("imageType"), cols * TILE_SIZE, (count / cols) * TILE_SIZE);
+      paintTiles(sheet, cols, count / cols);
+      loader = new ImageTileLoader(sheet);
+    }
+
+    public void run(Blackhole bh)
+    {
+      int i = next++ % count;
+      bh.consume(loader.getTile(i % cols, i / cols));
+    }
+  }
+
+  /**
+     Blitting a full screen of tiles, made with getSubimage()
+     (sharing the sheet's raster) or copied into compatible
+     images by ImageUtils, onto either kind of back buffer
+  **/
+  public static class TileBlit extends Benchmark
+  {
+    private BufferedImage[] tiles;
+    private Graphics2D g;
+    private int next;
+
+    public TileBlit()
+    {
+      param("tiles", "getSubimage", "compatible");
+      param("imageType", "INT_RGB", "COMPATIBLE");
+    }
+
+    public void setUp(Params p)
+    {
+      int count = 16;
+      int cols = sheetColumns(count);
+      BufferedImage sheet = new BufferedImage(cols * TILE_SIZE, (count / cols) * TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+      paintTiles(sheet, cols, count / cols);
+
+      boolean compatible = p.get("tiles").equals("compatible");
+      tiles = new BufferedImage[count];
+      for (int i = 0; i < count; i++)
+      {
+        int x = (i % cols) * TILE_SIZE;
+        int y = (i / cols) * TILE_SIZE;
+        tiles[i] = compatible ? ImageUtils.copyRegion(sheet, x, y, TILE_SIZE, TILE_SIZE)
+                              : sheet.getSubimage(x, y, TILE_SIZE, TILE_SIZE);
+      }
+      g = createTarget(p.get("imageType"), VIEW_WIDTH, VIEW_HEIGHT).createGraphics();
+    }
+
+    public void run(Blackhole bh)
+    {
+      int f = next++;
+      for (int y = 0; y < VIEW_HEIGHT / TILE_SIZE; y++)
+      {
+        for (int x = 0; x < VIEW_WIDTH / TILE_SIZE; x++)
+            g.drawImage(tiles[(x + y + f) % tiles.length], x * TILE_SIZE, y * TILE_SIZE, null);
+      }
+      bh.consume(f);
+    }
+
+    public void tearDown()
+    {
+      g.dispose();
+    }
+  }
+
+  /** EntityStore.update(): one step of a crowd of walking NPCs **/
+  public static class EntityUpdate extends Benchmark
+  {
+    private Map map;
+    private EntityStore store;
+    private File dir;
+
+    public EntityUpdate()
+    {
+      param("entityCount", "1000", "100000");
+      param("mapSize", "256");
+      param("indexed", "false", "true");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      map = createMap(dir, p.getInt("mapSize"), 16);
+      store = createCrowd(dir, map, p.getInt("entityCount"));
+      if (p.getBoolean("indexed"))
+         store.setIndex(new SpatialHash(map.getMapWidth(), map.getMapHeight(), TILE_SIZE, TILE_SIZE, 2));
+    }
+
+    public void run(Blackhole bh)
+    {
+      store.saveState();
+      store.update(map);
+      bh.consume(store.getCount());
+    }
+
+    public void tearDown()
+    {
+      store.dispose();
+      map.getChunks().shutdown();
+      deleteDir(dir);
+    }
+  }
+
+  /** EntityStore.draw() of a crowd, most of which is outside the view **/
+  public static class EntityDraw extends Benchmark
+  {
+    private EntityStore store;
+    private Map map;
+    private Graphics2D g;
+    private File dir;
+
+    public EntityDraw()
+    {
+      param("entityCount", "1000", "100000");
+      param("mapSize", "256");
+      param("imageType", "INT_RGB", "COMPATIBLE");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      map = createMap(dir, p.getInt("mapSize"), 16);
+      store = createCrowd(dir, map, p.getInt("entityCount"));
+      g = createTarget(p.get("imageType"), VIEW_WIDTH, VIEW_HEIGHT).createGraphics();
+    }
+
+    public void run(Blackhole bh)
+    {
+      store.draw(g, 0, 0, VIEW_WIDTH, VIEW_HEIGHT, 0.5f);
+      bh.consume(store.getCount());
+    }
+
+    public void tearDown()
+    {
+      g.dispose();
+      store.dispose();
+      map.getChunks().shutdown();
+      deleteDir(dir);
+    }
+  }
+
+  /**
+     Finding the entities near a point of a crowd, with the
+     SpatialHash, against looking at every entity ("scan").
+  **/
+  public static class SpatialQuery extends Benchmark
+  {
+    private Map map;
+    private EntityStore store;
+    private SpatialHash index;
+    private String query;
+    private int radius;
+    private int[] out;
+    private int[] points;             // Query points, as x,y pairs
+    private int next;
+    private File dir;
+
+    public SpatialQuery()
+    {
+      param("entityCount", "1000", "100000");
+      param("mapSize", "256");
+      param("query", "radius", "rect", "nearest", "scan");
+      param("radius", "64", "256");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      map = createMap(dir, p.getInt("mapSize"), 16);
+      store = createCrowd(dir, map, p.getInt("entityCount"));
+      index = new SpatialHash(map.getMapWidth(), map.getMapHeight(), TILE_SIZE, TILE_SIZE, 2);
+      store.setIndex(index);
+      query = p.get("query");
+      radius = p.getInt("radius");
+      out = new int[query.equals("nearest") ? 8 : 4096];
+
+      Random random = new Random(1);
+      int w = map.getMapWidth() * TILE_SIZE;
+      int h = map.getMapHeight() * TILE_SIZE;
+      points = new int[2 * 1024];
+      for (int i = 0; i < points.length; i++)
+          points[i] = random.nextInt((i & 1) == 0 ? w : h);
+    }
+
+    public void run(Blackhole bh)
+    {
+      int x = points[next];
+      int y = points[next + 1];
+      next = (next + 2) & (points.length - 1);
+
+      if (query.equals("radius"))
+         bh.consume(index.queryRadius(x, y, radius, out));
+      else if (query.equals("rect"))
+         bh.consume(index.queryRect(x - radius, y - radius, 2 * radius, 2 * radius, out));
+      else if (query.equals("nearest"))
+         bh.consume(index.queryNearest(x, y, out));
+      else
+         bh.consume(scan(x, y));
+    }
+
+    /** What finding the entities in range costs without an index **/
+    private int scan(int x, int y)
+    {
+      long r2 = (long)radius * radius;
+      int found = 0;
+      for (int i = 0; i < store.getCount(); i++)
+      {
+        int id = store.getId(i);
+        long dx = store.getX(id) - x;
+        long dy = store.getY(id) - y;
+        if (dx * dx + dy * dy <= r2 && found < out.length)
+           out[found++] = id;
+      }
+      return found;
+    }
+
+    public void tearDown()
+    {
+      store.dispose();
+      map.getChunks().shutdown();
+      deleteDir(dir);
+    }
+  }
+
+  /**
+     Pathfinder.findPath() between random open tiles of a map
+     with scattered walls, with and without the path cache
+  **/
+  public static class PathFind extends Benchmark
+  {
+    private Map map;
+    private Pathfinder pathfinder;
+    private int[] ends;               // Start and goal tiles, as col,row,col,row
+    private int next;
+    private File dir;
+
+    public PathFind()
+    {
+      param("mapSize", "64", "256");
+      param("walls", "0.1", "0.3");
+      param("cacheSize", "0", "256");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      int size = p.getInt("mapSize");
+      map = createMap(dir, size, 16, Double.parseDouble(p.get("walls")));
+      pathfinder = new Pathfinder(map, p.getInt("cacheSize"));
+
+      /** 64 different requests, so a cache of 256 holds all of them **/
+      Random random = new Random(size);
+      ends = new int[4 * 64];
+      for (int i = 0; i < ends.length; i += 2)
+      {
+        do
+        {
+          ends[i]     = random.nextInt(size);
+          ends[i + 1] = random.nextInt(size);
+        }
+        while (!pathfinder.isWalkable(ends[i], ends[i + 1]));
+      }
+    }
+
+    public void run(Blackhole bh)
+    {
+      Pathfinder.Path path = pathfinder.findPath(ends[next], ends[next + 1], ends[next + 2], ends[next + 3]);
+      next = (next + 4) % ends.length;
+      bh.consume(path);
+    }
+
+    public void tearDown()
+    {
+      pathfinder.dispose();
+      map.getChunks().shutdown();
+      deleteDir(dir);
+    }
+  }
+
+  /**
+     FlowField.update() after the goal moves one tile, or
+     after a tile near the goal is blocked or opened
+  **/
+  public static class FlowFieldUpdate extends Benchmark
+  {
+    private Map map;
+    private FlowField flow;
+    private String change;
+    private int col, row;             // The goal
+    private boolean flip;
+    private File dir;
+
+    public FlowFieldUpdate()
+    {
+      param("mapSize", "256", "1024");
+      param("radius", "32", "64");
+      param("change", "goal", "tile");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      int size = p.getInt("mapSize");
+      map = createMap(dir, size, 16, 0.1);
+      flow = new FlowField(map, p.getInt("radius"));
+      change = p.get("change");
+
+      col = size / 2;
+      row = size / 2;
+      map.setTile(col, row, 0);
+      map.setTile(col + 1, row, 0);
+      flow.setGoal(col, row);
+      flow.update();
+    }
+
+    public void run(Blackhole bh)
+    {
+      flip = !flip;
+      if (change.equals("goal"))
+         flow.setGoal(flip ? col + 1 : col, row);
+      else
+         map.setTile(col + 2, row + 1, flip ? 1 : 0);
+      flow.update();
+      bh.consume(flow.getDistance(col - 5, row - 5));
+    }
+
+    public void tearDown()
+    {
+      flow.dispose();
+      map.getChunks().shutdown();
+      deleteDir(dir);
+    }
+  }
+
+  /** Map.isBlockedTile() of random tiles all over the map **/
+  public static class TileCollision extends Benchmark
+  {
+    private Map map;
+    private int[] tiles;              // Tiles to test, as col,row
+    private int next;
+    private File dir;
+
+    public TileCollision()
+    {
+      param("mapSize", "256", "2048");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      int size = p.getInt("mapSize");
+      map = createMap(dir, size, 16, 0.2);
+
+      Random random = new Random(size);
+      tiles = new int[2 * 4096];
+      for (int i = 0; i < tiles.length; i++)
+          tiles[i] = random.nextInt(size);
+    }
+
+    public void run(Blackhole bh)
+    {
+      bh.consume(map.isBlockedTile(tiles[next], tiles[next + 1]));
+      next = (next + 2) % tiles.length;
+    }
+
+    public void tearDown()
+    {
+      map.getChunks().shutdown();
+      deleteDir(dir);
+    }
+  }
+
+  /**
+     Map.draw() of a full view of a map of several layers,
+     the top one drawn over the sprites, after a tile of the
+     top layer changed
+  **/
+  public static class LayeredDraw extends Benchmark
+  {
+    private Map map;
+    private Graphics2D g;
+    private int top;
+    private int next;
+    private File dir;
+
+    public LayeredDraw()
+    {
+      param("layers", "1", "4");
+      param("dynamic", "false", "true");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      map = createLayeredMap(dir, 256, p.getInt("layers"), p.getBoolean("dynamic"));
+      top = map.getLayerCount() - 1;
+      g = createTarget("COMPATIBLE", VIEW_WIDTH, VIEW_HEIGHT).createGraphics();
+    }
+
+    public void run(Blackhole bh)
+    {
+      int i = next++;
+      map.setTile(top, i % 16, (i / 16) % 16, (i & 1) + 1);
+      bh.consume(map.draw(g));
+    }
+
+    public void tearDown()
+    {
+      g.dispose();
+      map.dispose();
+      deleteDir(dir);
+    }
+  }
+
+  /**
+     A frame of a view that doesn't scroll while a few
+     entities walk about: drawing the map and the entities
+     in full ("full"), against drawing only where entities
+     were and are ("dirty", see DirtyRegion)
+  **/
+  public static class DirtyDraw extends Benchmark
+  {
+    private Map map;
+    private EntityStore store;
+    private DirtyRegion region;
+    private Graphics2D g;
+    private boolean bDirty;
+    private File dir;
+
+    public DirtyDraw()
+    {
+      param("mode", "full", "dirty");
+      param("entityCount", "4", "32");
+    }
+
+    public void setUp(Params p) throws IOException
+    {
+      dir = createTempDir();
+      map = createMap(dir, 32, 16);
+      store = createCrowd(dir, map, p.getInt("entityCount"));
+      region = new DirtyRegion(VIEW_WIDTH, VIEW_HEIGHT);
+      bDirty = p.get("mode").equals("dirty");
+      g = createTarget("COMPATIBLE", VIEW_WIDTH, VIEW_HEIGHT).createGraphics();
+      map.draw(g);
+      store.draw(g, 0, 0, VIEW_WIDTH, VIEW_HEIGHT, 1f);
+    }
+
+    public void run(Blackhole bh)
+    {
+      store.update(map);
+      if (bDirty)
+         store.markDirty(region, 0, 0, VIEW_WIDTH, VIEW_HEIGHT, 1f);
+      if (!bDirty || region.isFull())
+      {
+        map.draw(g);
+        store.draw(g, 0, 0, VIEW_WIDTH, VIEW_HEIGHT, 1f);
+        bh.consume(store.getCount());
+        region.clear();
+        return;
+      }
+
+      for (int i = 0; i < region.getCount(); i++)
+      {
+        g.setClip(region.getRect(i));
+        map.draw(g);
+      }
+      store.draw(g, 0, 0, VIEW_WIDTH, VIEW_HEIGHT, 1f, region);
+      g.setClip(null);
+      bh.consume(region.getArea());
+      region.clear();
+    }
+
+    public void tearDown()
+    {
+      g.dispose();
+      store.dispose();
+      map.getChunks().shutdown();
+      deleteDir(dir);
+    }
+  }
+
+  //---- Fixtures ---- //
+
+  /** Creates count entities walking about at random places of the map **/
+  static EntityStore createCrowd(File dir, Map map, int count) throws IOException
+  {
+    EntityStore store = new EntityStore(count);
+    int type = store.getType(createSpriteImage(dir));
+    Random random = new Random(count);
+    int w = map.getMapWidth() * map.getTileWidth();
+    int h = map.getMapHeight() * map.getTileHeight();
+    for (int i = 0; i < count; i++)
+    {
+      int id = store.create(type, random.nextInt(w), random.nextInt(h), Direction.values()[random.nextInt(4)],
+                            100, 100, 10, 10, 10, null);
+      store.setSpeed(id, 1 + random.nextInt(2));
+    }
+    return store;
+  }
+
+  /**
+     Creates a loaded mapSize x mapSize map of random tiles
+     drawn from a sheet of tileCount tiles. None of the tiles
+     are collidable, so the camera can go anywhere.
+  **/
+  static Map createMap(File dir, int mapSize, int tileCount) throws IOException
+  {
+    return createMap(dir, mapSize, tileCount, 0);
+  }
+
+  /** Like createMap(), with about walls of the tiles collidable **/
+  static Map createMap(File dir, int mapSize, int tileCount, double walls) throws IOException
+  {
+    int cols = sheetColumns(tileCount);
+    int rows = tileCount / cols;
+
+    BufferedImage sheet = new BufferedImage(cols * TILE_SIZE, rows * TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+    paintTiles(sheet, cols, rows);
+    File sheetFile = new File(dir, "sheet.png");
+    ImageIO.write(sheet, "png", sheetFile);
+
+    Random random = new Random(mapSize * 31 + tileCount);
+    char[][] ids = new char[mapSize][mapSize];
+    for (char[] row : ids)
+    {
+      for (int x = 0; x < row.length; x++)
+      {
+        int id = random.nextInt(tileCount);
+        row[x] = (char)((id == 1) ? 0 : id);   // 1 is the collidable tile
+        if (random.nextDouble() < walls)
+           row[x] = 1;
+      }
+    }
+    File mapFile = new File(dir, "map.tmap");
+    BinaryMapFile.write(mapFile, TILE_SIZE, TILE_SIZE, ids);
+
+    GameConfig config = new GameConfig();
+    config.set("ImgFile", sheetFile.getPath());
+    config.set("TileCountX", Integer.toString(cols));
+    config.set("TileCountY", Integer.toString(rows));
+    config.set("TileWidth", Integer.toString(TILE_SIZE));
+    config.set("TileHeight", Integer.toString(TILE_SIZE));
+    config.set("MapFile", mapFile.getPath());
+    config.set("MapWidth", Integer.toString(mapSize));
+    config.set("MapHeight", Integer.toString(mapSize));
+
+    Map map = new Map(config, VIEW_WIDTH, VIEW_HEIGHT);
+    map.loadMapData();
+    map.loadTextures();
+    return map;
+  }
+
+  /**
+     Creates a loaded mapSize x mapSize map of the given
+     number of layers in one binary file: random ground tiles
+     and, above them, layers with a tile on every tenth place
+     (ID 0 is empty). The top layer is drawn over the sprites
+     and may be marked dynamic.
+  **/
+  static Map createLayeredMap(File dir, int mapSize, int layerCount, boolean dynamic) throws IOException
+  {
+    BufferedImage sheet = new BufferedImage(4 * TILE_SIZE, 4 * TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+    paintTiles(sheet, 4, 4);
+    File sheetFile = new File(dir, "sheet.png");
+    ImageIO.write(sheet, "png", sheetFile);
+
+    Random random = new Random(mapSize * 31 + layerCount);
+    char[][][] layers = new char[layerCount][mapSize][mapSize];
+    for (int i = 0; i < layerCount; i++)
+    {
+      for (char[] row : layers[i])
+      {
+        for (int x = 0; x < row.length; x++)
+        {
+          if (i == 0)
+             row[x] = (char)(2 + random.nextInt(14));
+          else if (random.nextInt(10) == 0)
+             row[x] = (char)(1 + random.nextInt(15));
+        }
+      }
+    }
+    File mapFile = new File(dir, "layers.tmap");
+    BinaryMapFile.write(mapFile, TILE_SIZE, TILE_SIZE, layers);
+
+    GameConfig config = new GameConfig();
+    config.set("ImgFile", sheetFile.getPath());
+    config.set("TileCountX", "4");
+    config.set("TileCountY", "4");
+    config.set("TileWidth", Integer.toString(TILE_SIZE));
+    config.set("TileHeight", Integer.toString(TILE_SIZE));
+    config.set("MapFile", mapFile.getPath());
+    config.set("MapLayers", Integer.toString(layerCount));
+    if (layerCount > 1)
+    {
+      config.set("Layer" + (layerCount - 1) + ".Above", "true");
+      config.set("Layer" + (layerCount - 1) + ".Dynamic", Boolean.toString(dynamic));
+    }
+
+    Map map = new Map(config, VIEW_WIDTH, VIEW_HEIGHT);
+    map.loadMapData();
+    map.loadTextures();
+    return map;
+  }
+
+  /** Writes a sprite image into dir and returns its path **/
+  static String createSpriteImage(File dir) throws IOException
+  {
+    BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = img.createGraphics();
+    g.setColor(Color.RED);
+    g.fillOval(4, 4, TILE_SIZE - 8, TILE_SIZE - 8);
+    g.dispose();
+
+    File f = new File(dir, "sprite.png");
+    ImageIO.write(img, "png", f);
+    return f.getPath();
+  }
+
+  /**
+     Creates an image of the named type: INT_RGB, INT_ARGB,
+     3BYTE_BGR, or COMPATIBLE (see ImageUtils).
+  **/
+  static BufferedImage createTarget(String type, int width, int height)
+  {
+    if (type.equals("COMPATIBLE"))
+       return ImageUtils.createCompatibleImage(width, height, Transparency.OPAQUE);
+    if (type.equals("INT_RGB"))
+       return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    if (type.equals("INT_ARGB"))
+       return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    if (type.equals("3BYTE_BGR"))
+       return new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    throw new IllegalArgumentException("Unknown image type " + type);
+  }
+
+  /** Fills each tile of a sheet with its own color and a border **/
+  static void paintTiles(BufferedImage sheet, int cols, int rows)
+  {
+    Graphics2D g = sheet.createGraphics();
+    for (int y = 0; y < rows; y++)
+    {
+      for (int x = 0; x < cols; x++)
+      {
+        g.setColor(Color.getHSBColor((float)(y * cols + x) / (cols * rows), 0.6f, 0.8f));
+        g.fillRect(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+        g.setColor(Color.DARK_GRAY);
+        g.drawRect(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE - 1, TILE_SIZE - 1);
+      }
+    }
+    g.dispose();
+  }
+
+  /** The number of columns of a square-ish sheet of count tiles **/
+  static int sheetColumns(int count)
+  {
+    int cols = (int)Math.ceil(Math.sqrt(count));
+    while (count % cols != 0)
+      cols++;
+    return cols;
+  }
+
+  static File createTempDir() throws IOException
+  {
+    return java.nio.file.Files.createTempDirectory("tilebench").toFile();
+  }
+
+  static void deleteDir(File dir)
+  {
+    File[] files = dir.listFiles();
+    if (files != null)
+    {
+      for (File f : files)
+          f.delete();
+    }
+    dir.delete();
+  }
+
+  /** Can't create an EngineBenchmarks **/
+  private EngineBenchmarks(){}
+}